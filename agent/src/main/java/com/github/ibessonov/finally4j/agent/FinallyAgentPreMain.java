@@ -15,15 +15,84 @@
  */
 package com.github.ibessonov.finally4j.agent;
 
-import com.github.ibessonov.finally4j.agent.transformer.FinallyClassFileTransformer;
-
 import java.lang.instrument.Instrumentation;
 
 /**
+ * Agent entry point, both for {@code -javaagent} and for dynamic attach to a running JVM. Transformer that is registered
+ * here doesn't load ASM until the first class that uses "Finally" is found, see {@link LazyClassFileTransformer}. Agent
+ * arguments are a comma-separated list of options:
+ * <ul>
+ *     <li>{@code pretransform[=threads]} - transform classes listed in build-time indexes of the class path in
+ *     background threads, before they are loaded. One thread is used by default.</li>
+ *     <li>{@code batch=size} - maximal number of already loaded classes retransformed at once after dynamic attach,
+ *     see {@link LoadedClassesRetransformer}. Default is {@value LoadedClassesRetransformer#DEFAULT_BATCH_SIZE}.</li>
+ * </ul>
+ *
  * @author ibessonov
  */
 public final class FinallyAgentPreMain {
+    private static final String PRETRANSFORM_OPTION = "pretransform";
+    private static final String BATCH_OPTION = "batch";
+
+    /** Whether the agent has already been started, repeated attach must not transform classes twice. */
+    private static boolean started;
+
+    private int pretransformThreads;
+
+    private int batchSize = LoadedClassesRetransformer.DEFAULT_BATCH_SIZE;
+
+    private FinallyAgentPreMain(String args) {
+        if (args != null) {
+            for (String option : args.split(",")) {
+                String[] keyValue = option.trim().split("=", 2);
+
+                if (keyValue[0].equals(PRETRANSFORM_OPTION)) {
+                    pretransformThreads = keyValue.length == 1 ? 1 : Integer.parseInt(keyValue[1]);
+                } else if (keyValue[0].equals(BATCH_OPTION) && keyValue.length == 2) {
+                    batchSize = Integer.parseInt(keyValue[1]);
+
+                    if (batchSize <= 0) {
+                        throw new IllegalArgumentException("Batch size must be positive: " + option);
+                    }
+                } else if (!keyValue[0].isEmpty()) {
+                    throw new IllegalArgumentException("Unknown finally4j agent option: " + option);
+                }
+            }
+        }
+    }
+
     public static void premain(String args, Instrumentation instrumentation) {
-        instrumentation.addTransformer(new FinallyClassFileTransformer());
+        var agent = new FinallyAgentPreMain(args);
+
+        if (start()) {
+            instrumentation.addTransformer(new LazyClassFileTransformer(agent.pretransformThreads));
+        }
+    }
+
+    /**
+     * Dynamic attach. Classes that had been loaded before the attach get their {@code finally} blocks transformed, but
+     * {@code @Memoize}, {@code @OnReturn} and {@code @OnThrow} are not applied to them: these annotations have
+     * {@code CLASS} retention and are absent in class files that the JVM reconstitutes for retransformation, and
+     * retransformation can't add the synthetic fields that caches and samplers need anyway. Use {@code -javaagent} or
+     * offline transformation for such classes. Classes loaded after the attach are transformed completely.
+     */
+    public static void agentmain(String args, Instrumentation instrumentation) {
+        var agent = new FinallyAgentPreMain(args);
+
+        if (start()) {
+            instrumentation.addTransformer(new LazyClassFileTransformer(agent.pretransformThreads), true);
+
+            new LoadedClassesRetransformer(instrumentation, agent.batchSize).retransform();
+        }
+    }
+
+    private static synchronized boolean start() {
+        if (started) {
+            return false;
+        }
+
+        started = true;
+
+        return true;
     }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent;
+
+import com.github.ibessonov.finally4j.agent.offline.IndexWriter;
+import com.github.ibessonov.finally4j.agent.offline.OfflineTransformer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Command line entry point for the offline transformation of already built jar files and exploded archives. It's the
+ * main class of the agent jar, which references ASM jars of its Maven dependencies in its {@code Class-Path}, so they're
+ * expected in the same directory. Usage:
+ * <pre>
+ * java -jar finally4j-agent.jar [-j threads] [--class-list classes.lst] &lt;in.jar | in-dir&gt; &lt;out.jar | out-dir&gt;
+ * </pre>
+ * Classes from the input archive or directory, and the class path, must be sufficient for the computation of stack
+ * map frames of transformed classes. {@code --class-list} writes names of all classes of the output in the format of
+ * CDS class lists.
+ * <p>
+ * Build-time index of classes that use "Finally", for the agent to avoid scanning the rest of them, is written with:
+ * <pre>
+ * java -jar finally4j-agent.jar --index target/classes
+ * </pre>
+ *
+ * <h2>AppCDS</h2>
+ * Classes that are transformed by the agent at load time can't be loaded from a CDS archive, the JVM has to parse the
+ * transformed class file instead. Classes that are transformed offline are marked, and the agent doesn't touch them,
+ * so that their archived copies are used. The workflow is:
+ * <ol>
+ *     <li>Transform application jars, including {@code finally4j.jar}:
+ *     <pre>
+ *     java -jar finally4j-agent.jar --class-list app.lst app.jar app-transformed.jar
+ *     </pre></li>
+ *     <li>Do a training run, that records loaded classes, JDK classes included:
+ *     <pre>
+ *     java -XX:DumpLoadedClassList=app.classlist -cp app-transformed.jar:finally4j-transformed.jar app.Main
+ *     </pre>
+ *     The list written by {@code --class-list} can be used instead, if there's no representative training run. It
+ *     only contains application classes though.</li>
+ *     <li>Dump the archive:
+ *     <pre>
+ *     java -Xshare:dump -XX:SharedClassListFile=app.classlist -XX:SharedArchiveFile=app.jsa \
+ *         -cp app-transformed.jar:finally4j-transformed.jar
+ *     </pre>
+ *     On JDK 13 and newer, steps 2 and 3 can be replaced with a single run with
+ *     {@code -XX:ArchiveClassesAtExit=app.jsa}.</li>
+ *     <li>Run the application with the archive. The agent is only needed for classes that haven't been transformed
+ *     offline, it never loads ASM if there are none:
+ *     <pre>
+ *     java -XX:SharedArchiveFile=app.jsa -javaagent:finally4j-agent.jar \
+ *         -cp app-transformed.jar:finally4j-transformed.jar app.Main
+ *     </pre></li>
+ * </ol>
+ * Class path at runtime must be the same as during the dump, or start with it. CDS only archives classes from jar
+ * files, not from directories.
+ *
+ * @author ibessonov
+ */
+public final class FinallyTransformMain {
+    private FinallyTransformMain() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 2 && args[0].equals("--index")) {
+            int indexed = IndexWriter.write(Path.of(args[1]));
+
+            System.out.println("Indexed " + indexed + " classes");
+
+            return;
+        }
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        Path classList = null;
+
+        int i = 0;
+        while (args.length - i > 2) {
+            if (args[i].equals("-j")) {
+                parallelism = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--class-list")) {
+                classList = Path.of(args[i + 1]);
+            } else {
+                break;
+            }
+
+            i += 2;
+        }
+
+        if (args.length - i != 2) {
+            System.err.println("Usage: java -jar finally4j-agent.jar [-j threads] [--class-list classes.lst] <in.jar | in-dir> <out.jar | out-dir>");
+            System.err.println("       java -jar finally4j-agent.jar --index <classes-dir>");
+
+            System.exit(1);
+        }
+
+        Path in = Path.of(args[i]);
+        Path out = Path.of(args[i + 1]);
+
+        long start = System.nanoTime();
+
+        var transformer = new OfflineTransformer(parallelism);
+        transformer.transform(in, out);
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+
+        System.out.println("Transformed " + transformer.transformedClasses() + " classes in " + millis + " ms");
+
+        if (classList != null) {
+            List<String> classNames = transformer.classNames();
+
+            Files.write(classList, classNames, UTF_8);
+
+            System.out.println("Written " + classNames.size() + " class names to " + classList);
+        }
+    }
+}
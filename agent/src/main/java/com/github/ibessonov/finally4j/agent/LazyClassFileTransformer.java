@@ -0,0 +1,220 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent;
+
+import com.github.ibessonov.finally4j.agent.transformer.FinallyIndex;
+import com.github.ibessonov.finally4j.agent.transformer.util.ClassFileScanner;
+import com.github.ibessonov.finally4j.agent.transformer.util.Constants;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.ProtectionDomain;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Bootstrap transformer that doesn't depend on ASM. It filters out classes that don't reference "Finally" class using
+ * build-time indexes and raw constant pool scan, and only loads the actual transformer, along with ASM, when the first
+ * class that needs it is found. The actual transformer is loaded in an isolated class loader, so that none of its
+ * classes are ever loaded by the JVMs that don't use "Finally", or only use classes that have been transformed offline.
+ *
+ * @author ibessonov
+ */
+final class LazyClassFileTransformer implements ClassFileTransformer {
+    private static final String AGENT_PACKAGE_PREFIX = "com/github/ibessonov/finally4j/agent/";
+
+    private static final String TRANSFORMER_CLASS_NAME = "com.github.ibessonov.finally4j.agent.transformer.FinallyClassFileTransformer";
+    private static final String PRE_TRANSFORMER_CLASS_NAME = "com.github.ibessonov.finally4j.agent.transformer.PreTransformer";
+
+    /** Class file resources used to locate ASM libraries. */
+    private static final String[] ASM_RESOURCES = {
+            "org/objectweb/asm/ClassReader.class",
+            "org/objectweb/asm/tree/MethodNode.class"
+    };
+
+    /** Number of pre-transformation threads, {@code 0} if pre-transformation is disabled. */
+    private final int pretransformThreads;
+
+    /** Class loader of the actual transformer. */
+    private volatile ClassLoader delegateLoader;
+
+    /** Actual transformer. */
+    private volatile ClassFileTransformer delegate;
+
+    /** Thread that's currently initializing the actual transformer. Classes it loads are never transformed. */
+    private volatile Thread initializingThread;
+
+    /**
+     * @param pretransformThreads Number of pre-transformation threads, {@code 0} if pre-transformation is disabled.
+     *      Actual transformer is loaded immediately if pre-transformation is enabled.
+     */
+    LazyClassFileTransformer(int pretransformThreads) {
+        this.pretransformThreads = pretransformThreads;
+
+        // Classes used by "transform" are loaded eagerly. Loading them lazily from "transform" may deadlock with
+        // pre-transformation threads, that load classes with the same names in the isolated class loader.
+        FinallyIndex.isExcluded(null, "");
+        ClassFileScanner.referencesFinally(new byte[0]);
+
+        if (pretransformThreads > 0) {
+            delegate();
+        }
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) throws IllegalClassFormatException {
+        // Lambdas and other classes defined with "Unsafe#defineAnonymousClass".
+        if (className == null) return null;
+
+        if (className.equals(Constants.FINALLY_CLASS_INTERNAL_NAME)) {
+            // "Finally" class itself may have been transformed offline too.
+            if (ClassFileScanner.isTransformed(classfileBuffer)) {
+                return null;
+            }
+        } else {
+            // Agent's own classes reference "Finally" by name, but never use it.
+            if (className.startsWith(AGENT_PACKAGE_PREFIX) || loader != null && loader == delegateLoader) {
+                return null;
+            }
+
+            if (FinallyIndex.isExcluded(protectionDomain, className)) {
+                return null;
+            }
+
+            // Classes that have been transformed offline are skipped, so that the JVM can use their CDS archive copies.
+            if (!ClassFileScanner.needsTransformation(classfileBuffer)) {
+                return null;
+            }
+        }
+
+        ClassFileTransformer delegate = delegate();
+
+        return delegate == null ? null : delegate.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+    }
+
+    /**
+     * @return Actual transformer, or {@code null} if it's being initialized by the current thread.
+     */
+    private ClassFileTransformer delegate() {
+        ClassFileTransformer delegate = this.delegate;
+
+        if (delegate != null) {
+            return delegate;
+        }
+
+        synchronized (this) {
+            if (this.delegate == null) {
+                if (initializingThread == Thread.currentThread()) {
+                    return null;
+                }
+
+                initializingThread = Thread.currentThread();
+
+                try {
+                    this.delegate = createDelegate();
+                } finally {
+                    initializingThread = null;
+                }
+            }
+
+            return this.delegate;
+        }
+    }
+
+    private ClassFileTransformer createDelegate() {
+        ClassLoader loader = isolatedLoader();
+
+        delegateLoader = loader;
+
+        try {
+            Class<?> transformerClass;
+
+            if (pretransformThreads > 0) {
+                transformerClass = Class.forName(PRE_TRANSFORMER_CLASS_NAME, true, loader);
+
+                return (ClassFileTransformer) transformerClass.getConstructor(int.class).newInstance(pretransformThreads);
+            } else {
+                transformerClass = Class.forName(TRANSFORMER_CLASS_NAME, true, loader);
+
+                return (ClassFileTransformer) transformerClass.getConstructor().newInstance();
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Failed to initialize finally4j transformer", e);
+        }
+    }
+
+    /**
+     * Creates a class loader that only sees agent and ASM classes, or returns agent's own class loader if locations of
+     * these classes can't be determined.
+     */
+    private static ClassLoader isolatedLoader() {
+        ClassLoader agentLoader = LazyClassFileTransformer.class.getClassLoader();
+
+        ProtectionDomain protectionDomain = LazyClassFileTransformer.class.getProtectionDomain();
+
+        if (protectionDomain.getCodeSource() == null || protectionDomain.getCodeSource().getLocation() == null) {
+            return agentLoader;
+        }
+
+        Set<URL> urls = new LinkedHashSet<>();
+        urls.add(protectionDomain.getCodeSource().getLocation());
+
+        for (String resource : ASM_RESOURCES) {
+            URL location = location(agentLoader, resource);
+
+            if (location == null) {
+                return agentLoader;
+            }
+
+            urls.add(location);
+        }
+
+        return new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getPlatformClassLoader());
+    }
+
+    /**
+     * @return Location of the jar file or directory that contains given resource, or {@code null} if it's unknown.
+     */
+    private static URL location(ClassLoader loader, String resource) {
+        URL url = loader.getResource(resource);
+
+        if (url == null) {
+            return null;
+        }
+
+        try {
+            switch (url.getProtocol()) {
+                case "jar":
+                    return ((JarURLConnection) url.openConnection()).getJarFileURL();
+
+                case "file":
+                    String path = url.toExternalForm();
+
+                    return new URL(path.substring(0, path.length() - resource.length()));
+
+                default:
+                    return null;
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
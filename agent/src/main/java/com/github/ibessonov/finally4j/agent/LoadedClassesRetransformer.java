@@ -0,0 +1,143 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent;
+
+import com.github.ibessonov.finally4j.agent.transformer.FinallyIndex;
+import com.github.ibessonov.finally4j.agent.transformer.util.ClassFileScanner;
+import com.github.ibessonov.finally4j.agent.transformer.util.Constants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.DEBUG;
+
+/**
+ * Retransforms classes that had been loaded before the agent was attached to a running JVM. Only classes that reference
+ * "Finally" are retransformed, which is checked with build-time indexes and a scan of class file resources. Classes
+ * without class file resources, like generated proxies, are not retransformed.
+ * <p>
+ * Every call to {@link Instrumentation#retransformClasses} redefines all passed classes in a single safepoint, that's
+ * why classes are passed in bounded batches. Methods that are being executed during the redefinition keep executing
+ * their old code until they return.
+ *
+ * @author ibessonov
+ */
+final class LoadedClassesRetransformer {
+    static final int DEFAULT_BATCH_SIZE = 64;
+
+    private static final String AGENT_PACKAGE_PREFIX = "com/github/ibessonov/finally4j/agent/";
+
+    private final Instrumentation instrumentation;
+
+    private final int batchSize;
+
+    LoadedClassesRetransformer(Instrumentation instrumentation, int batchSize) {
+        this.instrumentation = instrumentation;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return Number of retransformed classes.
+     */
+    int retransform() {
+        List<Class<?>> classes = new ArrayList<>();
+
+        for (Class<?> clazz : instrumentation.getAllLoadedClasses()) {
+            if (!isCandidate(clazz)) {
+                continue;
+            }
+
+            // "Finally" goes first, so that "Finally#isSupported" returns true as soon as possible.
+            if (clazz.getName().replace('.', '/').equals(Constants.FINALLY_CLASS_INTERNAL_NAME)) {
+                classes.add(0, clazz);
+            } else {
+                classes.add(clazz);
+            }
+        }
+
+        int retransformed = 0;
+
+        for (int from = 0; from < classes.size(); from += batchSize) {
+            List<Class<?>> batch = classes.subList(from, Math.min(from + batchSize, classes.size()));
+
+            try {
+                instrumentation.retransformClasses(batch.toArray(new Class<?>[0]));
+
+                retransformed += batch.size();
+            } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+                // Redefinition is atomic, single bad class rejects the whole batch. Retry classes one by one.
+                for (Class<?> clazz : batch) {
+                    if (retransform(clazz)) {
+                        retransformed++;
+                    }
+                }
+            }
+        }
+
+        if (DEBUG) {
+            System.out.println("Retransformed " + retransformed + " of " + classes.size() + " loaded classes");
+        }
+
+        return retransformed;
+    }
+
+    private boolean retransform(Class<?> clazz) {
+        try {
+            instrumentation.retransformClasses(clazz);
+
+            return true;
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError e) {
+            if (DEBUG) {
+                System.err.println("Failed to retransform class " + clazz.getName() + ": " + e);
+            }
+
+            return false;
+        }
+    }
+
+    private boolean isCandidate(Class<?> clazz) {
+        if (clazz.isArray() || clazz.isPrimitive() || !instrumentation.isModifiableClass(clazz)) {
+            return false;
+        }
+
+        String className = clazz.getName().replace('.', '/');
+
+        if (className.equals(Constants.FINALLY_CLASS_INTERNAL_NAME)) {
+            return true;
+        }
+
+        ClassLoader loader = clazz.getClassLoader();
+
+        // JDK classes never reference "Finally".
+        if (loader == null || loader == ClassLoader.getPlatformClassLoader() || className.startsWith(AGENT_PACKAGE_PREFIX)) {
+            return false;
+        }
+
+        if (FinallyIndex.isExcluded(clazz.getProtectionDomain(), className)) {
+            return false;
+        }
+
+        try (InputStream in = loader.getResourceAsStream(className + ".class")) {
+            return in != null && ClassFileScanner.referencesFinally(in.readAllBytes());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.offline;
+
+import com.github.ibessonov.finally4j.agent.transformer.FinallyIndex;
+import com.github.ibessonov.finally4j.agent.transformer.util.ClassFileScanner;
+import com.github.ibessonov.finally4j.agent.transformer.util.Constants;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Writes the {@link FinallyIndex} of a compiled classes directory. Meant to be executed as a build step, after the
+ * compilation and before the packaging.
+ *
+ * @author ibessonov
+ */
+public final class IndexWriter {
+    private static final String CLASS_SUFFIX = ".class";
+
+    private IndexWriter() {
+    }
+
+    /**
+     * Scans all class files in the directory and writes the index into it.
+     *
+     * @param classesDir Root of the compiled classes.
+     * @return Number of indexed classes.
+     */
+    public static int write(Path classesDir) throws IOException {
+        List<String> classNames;
+
+        try (Stream<Path> stream = Files.walk(classesDir)) {
+            classNames = stream
+                    .filter(path -> path.toString().endsWith(CLASS_SUFFIX))
+                    .filter(Files::isRegularFile)
+                    .collect(toList())
+                    .parallelStream()
+                    .filter(path -> ClassFileScanner.referencesFinally(readAllBytes(path)))
+                    .map(path -> className(classesDir, path))
+                    .sorted()
+                    .collect(toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        Path indexPath = classesDir.resolve(Constants.FINALLY_INDEX_RESOURCE_NAME);
+
+        Files.createDirectories(indexPath.getParent());
+        Files.write(indexPath, classNames, UTF_8);
+
+        return classNames.size();
+    }
+
+    private static byte[] readAllBytes(Path path) {
+        try {
+            return Files.readAllBytes(path);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String className(Path classesDir, Path path) {
+        String name = classesDir.relativize(path).toString().replace(path.getFileSystem().getSeparator(), "/");
+
+        return name.substring(0, name.length() - CLASS_SUFFIX.length());
+    }
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.offline;
+
+import com.github.ibessonov.finally4j.agent.offline.ZipArchive.Entry;
+import com.github.ibessonov.finally4j.agent.transformer.FinallyClassFileTransformer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.DEFLATED;
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.DEFLATED_VERSION_NEEDED;
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.FLAG_ENCRYPTED;
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.STORED;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Applies {@link FinallyClassFileTransformer} to all classes of a jar file or of a directory, in parallel. Entries that
+ * don't need a transformation are copied as is, jar entries are copied without being decompressed.
+ *
+ * @author ibessonov
+ */
+public final class OfflineTransformer {
+    private static final String CLASS_SUFFIX = ".class";
+
+    /**
+     * Path prefixes of class files that don't belong to the root package.
+     */
+    private static final String[] CLASS_PATH_PREFIXES = {"BOOT-INF/classes/", "WEB-INF/classes/"};
+
+    private static final String MULTI_RELEASE_PREFIX = "META-INF/versions/";
+
+    /**
+     * Maximal number of jar entries per worker thread that are being transformed, or are waiting to be written.
+     */
+    private static final int ENTRIES_IN_FLIGHT_PER_THREAD = 4;
+
+    /**
+     * Transformer without a cache. Every class file is transformed once anyway, the cache would only take memory.
+     */
+    private final FinallyClassFileTransformer transformer = new FinallyClassFileTransformer(0);
+
+    private final ForkJoinPool pool;
+
+    /** Number of transformed classes, for reporting. */
+    private final AtomicInteger transformedClasses = new AtomicInteger();
+
+    /** Internal names of all classes that can be loaded from the output by a class path class loader. */
+    private final Set<String> classNames = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param parallelism Number of worker threads.
+     */
+    public OfflineTransformer(int parallelism) {
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    /**
+     * @return Number of classes transformed so far.
+     */
+    public int transformedClasses() {
+        return transformedClasses.get();
+    }
+
+    /**
+     * @return Sorted internal names of all classes from the output that can be loaded from the class path, in the
+     *      format of CDS class lists. Classes from {@code BOOT-INF/classes}, {@code WEB-INF/classes} and
+     *      {@code module-info} are not included.
+     */
+    public List<String> classNames() {
+        List<String> list = new ArrayList<>(classNames);
+
+        Collections.sort(list);
+
+        return list;
+    }
+
+    /**
+     * Transforms jar file or directory {@code in} into {@code out}.
+     */
+    public void transform(Path in, Path out) throws IOException {
+        try (var loader = new URLClassLoader(new URL[] {in.toUri().toURL()}, ClassLoader.getSystemClassLoader())) {
+            if (Files.isDirectory(in)) {
+                transformDirectory(in, out, loader);
+            } else {
+                transformJar(in, out, loader);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void transformJar(Path in, Path out, ClassLoader loader) throws IOException {
+        try (
+                var archive = new ZipArchive(in);
+                var writer = new ZipArchiveWriter(out, archive.comment)
+        ) {
+            List<Entry> entries = archive.entries;
+
+            List<ForkJoinTask<TransformedEntry>> tasks = new ArrayList<>(Collections.nCopies(entries.size(), null));
+
+            // Transformations are submitted ahead of the entry that's being written, but not too far ahead, otherwise
+            // memory would grow with the size of the archive.
+            int window = pool.getParallelism() * ENTRIES_IN_FLIGHT_PER_THREAD;
+            int submitted = 0;
+
+            // Entries are written in their original order, as soon as corresponding transformation is completed.
+            for (int i = 0; i < entries.size(); i++) {
+                for (; submitted < entries.size() && submitted < i + window; submitted++) {
+                    Entry next = entries.get(submitted);
+
+                    if (isTransformable(next)) {
+                        tasks.set(submitted, pool.submit(() -> transformEntry(archive, next, loader)));
+                    }
+                }
+
+                Entry entry = entries.get(i);
+                ForkJoinTask<TransformedEntry> task = tasks.get(i);
+
+                TransformedEntry transformed = task == null ? null : task.join();
+
+                if (transformed == null) {
+                    writer.write(entry, archive.rawData(entry));
+                } else {
+                    entry.method = transformed.method;
+                    // Stored entries may declare version 1.0, which is not enough for deflated data.
+                    entry.versionNeeded = Math.max(entry.versionNeeded, DEFLATED_VERSION_NEEDED);
+                    entry.crc = transformed.crc;
+                    entry.size = transformed.size;
+                    entry.compressedSize = transformed.data.remaining();
+
+                    writer.write(entry, transformed.data);
+                }
+
+                // Let the GC collect transformed bytes.
+                tasks.set(i, null);
+            }
+        }
+    }
+
+    private static boolean isTransformable(Entry entry) {
+        return entry.name.endsWith(CLASS_SUFFIX)
+                && (entry.method == STORED || entry.method == DEFLATED)
+                && (entry.flags & FLAG_ENCRYPTED) == 0;
+    }
+
+    private TransformedEntry transformEntry(ZipArchive archive, Entry entry, ClassLoader loader) throws IOException {
+        byte[] classfileBuffer = archive.read(entry);
+
+        byte[] transformedBuffer = transform(entry.name, classfileBuffer, loader);
+
+        if (transformedBuffer == null) {
+            return null;
+        }
+
+        var crc = new CRC32();
+        crc.update(transformedBuffer);
+
+        var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+        try {
+            deflater.setInput(transformedBuffer);
+            deflater.finish();
+
+            // Class files always compress well, so initial capacity will almost never be exceeded.
+            byte[] compressed = new byte[transformedBuffer.length + 64];
+            int length = 0;
+
+            while (!deflater.finished()) {
+                if (length == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+
+            return new TransformedEntry(DEFLATED, (int) crc.getValue(), transformedBuffer.length, ByteBuffer.wrap(compressed, 0, length));
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void transformDirectory(Path in, Path out, ClassLoader loader) throws IOException {
+        List<Path> files;
+
+        try (Stream<Path> stream = Files.walk(in)) {
+            files = stream.filter(Files::isRegularFile).collect(toList());
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(files.size());
+
+        for (Path file : files) {
+            tasks.add(pool.submit(() -> {
+                String name = in.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                Path target = out.resolve(in.relativize(file).toString());
+
+                try {
+                    Files.createDirectories(target.getParent());
+
+                    byte[] transformedBuffer = name.endsWith(CLASS_SUFFIX)
+                            ? transform(name, Files.readAllBytes(file), loader)
+                            : null;
+
+                    if (transformedBuffer == null) {
+                        Files.copy(file, target, REPLACE_EXISTING);
+                    } else {
+                        Files.write(target, transformedBuffer);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+
+        try {
+            tasks.forEach(ForkJoinTask::join);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private byte[] transform(String path, byte[] classfileBuffer, ClassLoader loader) {
+        String className = className(path);
+
+        if (isClassPathClass(path, className)) {
+            classNames.add(className);
+        }
+
+        try {
+            byte[] transformedBuffer = transformer.transform(loader, className, null, null, classfileBuffer);
+
+            if (transformedBuffer != null) {
+                transformedClasses.incrementAndGet();
+            }
+
+            return transformedBuffer;
+        } catch (RuntimeException | Error e) {
+            throw new IllegalStateException("Failed to transform " + path, e);
+        }
+    }
+
+    /**
+     * @return {@code true} if class is loaded from the root of the class path entry, which is the only kind of classes
+     *      that CDS archives support.
+     */
+    private static boolean isClassPathClass(String path, String className) {
+        if (className.equals("module-info")) {
+            return false;
+        }
+
+        return path.startsWith(MULTI_RELEASE_PREFIX) || path.equals(className + CLASS_SUFFIX);
+    }
+
+    /**
+     * Converts path of the class file into internal class name.
+     */
+    private static String className(String path) {
+        String name = path.substring(0, path.length() - CLASS_SUFFIX.length());
+
+        if (name.startsWith(MULTI_RELEASE_PREFIX)) {
+            name = name.substring(name.indexOf('/', MULTI_RELEASE_PREFIX.length()) + 1);
+        }
+
+        for (String prefix : CLASS_PATH_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return name.substring(prefix.length());
+            }
+        }
+
+        return name;
+    }
+
+    /**
+     * Compressed data of the transformed class file, ready to be written into the archive.
+     */
+    private static final class TransformedEntry {
+        final int method;
+        final int crc;
+        final long size;
+        final ByteBuffer data;
+
+        TransformedEntry(int method, int crc, long size, ByteBuffer data) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+        }
+    }
+}
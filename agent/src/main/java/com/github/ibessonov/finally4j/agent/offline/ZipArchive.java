@@ -0,0 +1,271 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.offline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Minimal zip reader on top of a memory-mapped file. Unlike {@link java.util.zip.ZipFile}, it gives access to the raw
+ * compressed data of the entries, so that unchanged entries can be copied into the output archive without inflating
+ * and deflating them again. ZIP64 archives are not supported.
+ *
+ * @author ibessonov
+ */
+final class ZipArchive implements Closeable {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    /** Version needed to extract deflated entries, 2.0. */
+    static final int DEFLATED_VERSION_NEEDED = 20;
+
+    /** General purpose flag bit for encrypted entries. */
+    static final int FLAG_ENCRYPTED = 1;
+
+    /** General purpose flag bit for entries that have sizes and CRC in a data descriptor after the data. */
+    static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+
+    /**
+     * Single entry of the central directory, with all the fields that are required to write it back.
+     */
+    static final class Entry {
+        String name;
+        byte[] rawName;
+        int versionMadeBy;
+        int versionNeeded;
+        int flags;
+        int method;
+        int time;
+        int date;
+        int crc;
+        long compressedSize;
+        long size;
+        byte[] localExtra;
+        byte[] centralExtra;
+        byte[] comment;
+        int internalAttributes;
+        int externalAttributes;
+
+        /** Absolute position of the compressed data in the archive. */
+        long dataOffset;
+
+        boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+
+    private final FileChannel channel;
+
+    private final MappedByteBuffer buffer;
+
+    final List<Entry> entries;
+
+    /** Archive comment from the end of central directory record. */
+    final byte[] comment;
+
+    ZipArchive(Path path) throws IOException {
+        channel = FileChannel.open(path, READ);
+
+        try {
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                throw new ZipException("Archive is too large: " + path);
+            }
+
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(LITTLE_ENDIAN);
+
+            int eocd = findEndOfCentralDirectory();
+
+            int entriesCount = Short.toUnsignedInt(buffer.getShort(eocd + 10));
+            long centralDirectoryOffset = Integer.toUnsignedLong(buffer.getInt(eocd + 16));
+
+            if (entriesCount == 0xFFFF || centralDirectoryOffset == 0xFFFFFFFFL) {
+                throw new ZipException("ZIP64 archives are not supported: " + path);
+            }
+
+            comment = bytes(eocd + END_OF_CENTRAL_DIRECTORY_SIZE, Short.toUnsignedInt(buffer.getShort(eocd + 20)));
+
+            entries = readCentralDirectory((int) centralDirectoryOffset, entriesCount);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+
+            throw e;
+        }
+    }
+
+    private int findEndOfCentralDirectory() throws ZipException {
+        // The record is followed by a comment of at most 65535 bytes, so there's no need to scan the whole file.
+        int lowerBound = Math.max(0, buffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE - 0xFFFF);
+
+        for (int pos = buffer.limit() - END_OF_CENTRAL_DIRECTORY_SIZE; pos >= lowerBound; pos--) {
+            if (buffer.getInt(pos) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                return pos;
+            }
+        }
+
+        throw new ZipException("End of central directory record is not found");
+    }
+
+    private List<Entry> readCentralDirectory(int pos, int entriesCount) throws ZipException {
+        List<Entry> entries = new ArrayList<>(entriesCount);
+
+        for (int i = 0; i < entriesCount; i++) {
+            if (buffer.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory header at " + pos);
+            }
+
+            var entry = new Entry();
+
+            entry.versionMadeBy = Short.toUnsignedInt(buffer.getShort(pos + 4));
+            entry.versionNeeded = Short.toUnsignedInt(buffer.getShort(pos + 6));
+            entry.flags = Short.toUnsignedInt(buffer.getShort(pos + 8));
+            entry.method = Short.toUnsignedInt(buffer.getShort(pos + 10));
+            entry.time = Short.toUnsignedInt(buffer.getShort(pos + 12));
+            entry.date = Short.toUnsignedInt(buffer.getShort(pos + 14));
+            entry.crc = buffer.getInt(pos + 16);
+            entry.compressedSize = Integer.toUnsignedLong(buffer.getInt(pos + 20));
+            entry.size = Integer.toUnsignedLong(buffer.getInt(pos + 24));
+
+            int nameLength = Short.toUnsignedInt(buffer.getShort(pos + 28));
+            int extraLength = Short.toUnsignedInt(buffer.getShort(pos + 30));
+            int commentLength = Short.toUnsignedInt(buffer.getShort(pos + 32));
+
+            entry.internalAttributes = Short.toUnsignedInt(buffer.getShort(pos + 36));
+            entry.externalAttributes = buffer.getInt(pos + 38);
+
+            long localHeaderOffset = Integer.toUnsignedLong(buffer.getInt(pos + 42));
+
+            if (entry.compressedSize == 0xFFFFFFFFL || entry.size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new ZipException("ZIP64 entries are not supported");
+            }
+
+            entry.rawName = bytes(pos + CENTRAL_HEADER_SIZE, nameLength);
+            entry.name = new String(entry.rawName, StandardCharsets.UTF_8);
+            entry.centralExtra = bytes(pos + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+            entry.comment = bytes(pos + CENTRAL_HEADER_SIZE + nameLength + extraLength, commentLength);
+
+            readLocalHeader(entry, (int) localHeaderOffset);
+
+            entries.add(entry);
+
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return entries;
+    }
+
+    private void readLocalHeader(Entry entry, int pos) throws ZipException {
+        if (buffer.getInt(pos) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header for entry " + entry.name);
+        }
+
+        int nameLength = Short.toUnsignedInt(buffer.getShort(pos + 26));
+        int extraLength = Short.toUnsignedInt(buffer.getShort(pos + 28));
+
+        entry.localExtra = bytes(pos + LOCAL_HEADER_SIZE + nameLength, extraLength);
+        entry.dataOffset = pos + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private byte[] bytes(int pos, int length) {
+        byte[] bytes = new byte[length];
+
+        buffer.duplicate().position(pos).get(bytes);
+
+        return bytes;
+    }
+
+    /**
+     * @return Read-only view of the compressed data of the entry, exactly as it's stored in the archive.
+     */
+    ByteBuffer rawData(Entry entry) {
+        return buffer.duplicate()
+                .position((int) entry.dataOffset)
+                .limit((int) (entry.dataOffset + entry.compressedSize))
+                .slice();
+    }
+
+    /**
+     * @return Uncompressed content of the entry.
+     * @throws ZipException If compression method is not supported or data is corrupted.
+     */
+    byte[] read(Entry entry) throws ZipException {
+        ByteBuffer rawData = rawData(entry);
+
+        if (entry.method == STORED) {
+            byte[] bytes = new byte[rawData.remaining()];
+            rawData.get(bytes);
+
+            return bytes;
+        }
+
+        if (entry.method != DEFLATED) {
+            throw new ZipException("Unsupported compression method " + entry.method + " for entry " + entry.name);
+        }
+
+        var inflater = new Inflater(true);
+
+        try {
+            inflater.setInput(rawData);
+
+            byte[] bytes = new byte[(int) entry.size];
+
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = inflater.inflate(bytes, offset, bytes.length - offset);
+
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new ZipException("Unexpected end of data for entry " + entry.name);
+                }
+
+                offset += read;
+            }
+
+            return bytes;
+        } catch (DataFormatException e) {
+            throw new ZipException("Corrupted data for entry " + entry.name + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.offline;
+
+import com.github.ibessonov.finally4j.agent.offline.ZipArchive.Entry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipException;
+
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.CENTRAL_HEADER_SIGNATURE;
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.CENTRAL_HEADER_SIZE;
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.END_OF_CENTRAL_DIRECTORY_SIGNATURE;
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.END_OF_CENTRAL_DIRECTORY_SIZE;
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.FLAG_DATA_DESCRIPTOR;
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.LOCAL_HEADER_SIGNATURE;
+import static com.github.ibessonov.finally4j.agent.offline.ZipArchive.LOCAL_HEADER_SIZE;
+import static java.nio.ByteOrder.LITTLE_ENDIAN;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Zip writer that accepts already compressed entry data. Local headers are always written with sizes and CRC in
+ * them, data descriptors are never used.
+ *
+ * @author ibessonov
+ */
+final class ZipArchiveWriter implements Closeable {
+    private final FileChannel channel;
+
+    /** Entries in the order they were written, with local header offsets. */
+    private final List<Entry> entries = new ArrayList<>();
+    private final List<Long> offsets = new ArrayList<>();
+
+    /** Archive comment for the end of central directory record. */
+    private final byte[] comment;
+
+    /** Reusable buffer for headers. */
+    private ByteBuffer header = ByteBuffer.allocate(1024).order(LITTLE_ENDIAN);
+
+    ZipArchiveWriter(Path path, byte[] comment) throws IOException {
+        this.comment = comment;
+
+        channel = FileChannel.open(path, WRITE, CREATE, TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Writes a single entry.
+     *
+     * @param entry Entry metadata. Its CRC, sizes and compression method must match the data.
+     * @param data Compressed data.
+     */
+    void write(Entry entry, ByteBuffer data) throws IOException {
+        long offset = channel.position();
+
+        if (offset > 0xFFFFFFFFL) {
+            throw new ZipException("Output archive is too large, ZIP64 is not supported");
+        }
+
+        entry.flags &= ~FLAG_DATA_DESCRIPTOR;
+
+        ByteBuffer header = header(LOCAL_HEADER_SIZE + entry.rawName.length + entry.localExtra.length);
+
+        header.putInt(LOCAL_HEADER_SIGNATURE)
+                .putShort((short) entry.versionNeeded)
+                .putShort((short) entry.flags)
+                .putShort((short) entry.method)
+                .putShort((short) entry.time)
+                .putShort((short) entry.date)
+                .putInt(entry.crc)
+                .putInt((int) entry.compressedSize)
+                .putInt((int) entry.size)
+                .putShort((short) entry.rawName.length)
+                .putShort((short) entry.localExtra.length)
+                .put(entry.rawName)
+                .put(entry.localExtra)
+                .flip();
+
+        writeFully(header);
+        writeFully(data);
+
+        entries.add(entry);
+        offsets.add(offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            writeCentralDirectory();
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long centralDirectoryOffset = channel.position();
+
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+
+            ByteBuffer header = header(CENTRAL_HEADER_SIZE
+                    + entry.rawName.length + entry.centralExtra.length + entry.comment.length);
+
+            header.putInt(CENTRAL_HEADER_SIGNATURE)
+                    .putShort((short) entry.versionMadeBy)
+                    .putShort((short) entry.versionNeeded)
+                    .putShort((short) entry.flags)
+                    .putShort((short) entry.method)
+                    .putShort((short) entry.time)
+                    .putShort((short) entry.date)
+                    .putInt(entry.crc)
+                    .putInt((int) entry.compressedSize)
+                    .putInt((int) entry.size)
+                    .putShort((short) entry.rawName.length)
+                    .putShort((short) entry.centralExtra.length)
+                    .putShort((short) entry.comment.length)
+                    .putShort((short) 0) // Disk number.
+                    .putShort((short) entry.internalAttributes)
+                    .putInt(entry.externalAttributes)
+                    .putInt(offsets.get(i).intValue())
+                    .put(entry.rawName)
+                    .put(entry.centralExtra)
+                    .put(entry.comment)
+                    .flip();
+
+            writeFully(header);
+        }
+
+        long centralDirectorySize = channel.position() - centralDirectoryOffset;
+
+        if (entries.size() >= 0xFFFF || channel.position() > 0xFFFFFFFFL) {
+            throw new ZipException("Output archive is too large, ZIP64 is not supported");
+        }
+
+        ByteBuffer header = header(END_OF_CENTRAL_DIRECTORY_SIZE + comment.length);
+
+        header.putInt(END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+                .putShort((short) 0) // Number of this disk.
+                .putShort((short) 0) // Disk where central directory starts.
+                .putShort((short) entries.size())
+                .putShort((short) entries.size())
+                .putInt((int) centralDirectorySize)
+                .putInt((int) centralDirectoryOffset)
+                .putShort((short) comment.length)
+                .put(comment)
+                .flip();
+
+        writeFully(header);
+    }
+
+    private ByteBuffer header(int size) {
+        if (header.capacity() < size) {
+            header = ByteBuffer.allocate(size).order(LITTLE_ENDIAN);
+        }
+
+        return header.clear();
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
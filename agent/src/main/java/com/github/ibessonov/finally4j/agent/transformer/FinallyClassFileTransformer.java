@@ -15,6 +15,7 @@
  */
 package com.github.ibessonov.finally4j.agent.transformer;
 
+import com.github.ibessonov.finally4j.agent.transformer.util.ClassFileScanner;
 import com.github.ibessonov.finally4j.agent.transformer.util.Constants;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -23,6 +24,7 @@ import org.objectweb.asm.MethodVisitor;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.security.ProtectionDomain;
+import java.util.concurrent.ForkJoinPool;
 
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.ASM_V;
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.DEBUG;
@@ -35,6 +37,41 @@ import static org.objectweb.asm.Opcodes.ICONST_1;
  * @author ibessonov
  */
 public class FinallyClassFileTransformer implements ClassFileTransformer {
+    /**
+     * Maximal size of the transformation cache in bytes, {@code 0} disables the cache.
+     */
+    private static final long CACHE_SIZE = Long.getLong("finally4j.cache.size", 16L << 20);
+
+    /**
+     * Number of threads for parallel analysis of methods of large classes, {@code 0} disables parallel analysis. It's
+     * also disabled in debug mode, so that logs of different methods don't interleave.
+     */
+    private static final int PARALLELISM = DEBUG ? 0 : Integer.getInteger("finally4j.parallelism", 0);
+
+    /**
+     * Pool for parallel analysis of methods, {@code null} if disabled.
+     */
+    private static final ForkJoinPool ANALYSIS_POOL = PARALLELISM > 0 ? new ForkJoinPool(PARALLELISM) : null;
+
+    /**
+     * Cache of transformation results, {@code null} if disabled.
+     */
+    private final TransformationCache cache;
+
+    public FinallyClassFileTransformer() {
+        this(CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize Maximal size of the transformation cache in bytes, {@code 0} disables the cache.
+     */
+    public FinallyClassFileTransformer(long cacheSize) {
+        cache = cacheSize > 0 ? new TransformationCache(cacheSize) : null;
+
+        if (cache != null) {
+            TransformationCache.register();
+        }
+    }
 
     @Override
     public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
@@ -42,15 +79,49 @@ public class FinallyClassFileTransformer implements ClassFileTransformer {
         // Lambdas and other classes defined with "Unsafe#defineAnonymousClass".
         if (className == null) return null;
 
+        // Class has been transformed offline.
+        if (ClassFileScanner.isTransformed(classfileBuffer)) return null;
+
         // "Finally" class requires special treatment, because Finally#isSupported should return true when transformed.
         if (className.equals(Constants.FINALLY_CLASS_INTERNAL_NAME)) {
             return transformFinallyClass(classfileBuffer);
         }
 
+        // Redefined class can't get new fields and methods, injections are skipped. Such results are not cached, so that
+        // they're not returned for the same class file loaded by another class loader.
+        if (classBeingRedefined != null) {
+            return transformClass(loader, className, classfileBuffer, false);
+        }
+
+        if (cache == null) {
+            return transformClass(loader, className, classfileBuffer, true);
+        }
+
+        TransformationCache.Key key = TransformationCache.key(classfileBuffer);
+
+        byte[] cached = cache.get(key);
+
+        if (cached != null) {
+            return cached == TransformationCache.NOT_TRANSFORMED ? null : cached;
+        }
+
+        byte[] transformedBuffer = transformClass(loader, className, classfileBuffer, true);
+
+        cache.put(key, transformedBuffer);
+
+        return transformedBuffer;
+    }
+
+    /**
+     * @param injectionsAllowed Whether caches and hooks can be injected, see {@link FinallyClassVisitor}.
+     */
+    private static byte[] transformClass(ClassLoader loader, String className, byte[] classfileBuffer,
+                                         boolean injectionsAllowed) {
         var cr = new FinallyClassReader(classfileBuffer);
-        var cw = new ClassWriter(cr, COMPUTE_MAXS | COMPUTE_FRAMES);
+        var cw = new FinallyClassWriter(cr, loader);
 
-        if (!cr.hasFinallyReferenced) {
+        // Annotation descriptors are standalone UTF8 constants, they're not read by the class writer constructor.
+        if (!cr.hasFinallyReferenced && !ClassFileScanner.referencesFinally(classfileBuffer)) {
             return null;
         }
 
@@ -58,7 +129,7 @@ public class FinallyClassFileTransformer implements ClassFileTransformer {
             System.out.println("Transforming class " + className.replace('/', '.'));
         }
 
-        var cv = new FinallyClassVisitor(cw);
+        var cv = new FinallyClassVisitor(cw, ANALYSIS_POOL, injectionsAllowed);
 
         try {
             cr.accept(cv, 0);
@@ -78,6 +149,13 @@ public class FinallyClassFileTransformer implements ClassFileTransformer {
         var cw = new ClassWriter(cr, COMPUTE_MAXS | COMPUTE_FRAMES);
 
         var cv = new ClassVisitor(ASM_V, cw) {
+            @Override
+            public void visitEnd() {
+                super.visitAttribute(new TransformedAttribute());
+
+                super.visitEnd();
+            }
+
             @Override
             public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
                 MethodVisitor mv = super.visitMethod(access, name, desc, signature, exceptions);
@@ -4,26 +4,155 @@ import com.github.ibessonov.finally4j.agent.transformer.util.Util;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * Class visitor implementation that transforms all methods that call methods of "Finally" class.
+ * <p>
+ * If analysis pool is provided, methods are buffered until the end of the class. Then methods are analyzed in parallel,
+ * if there are enough of them, and written in the original order. Class writer itself is not thread-safe, but method
+ * writers are created in {@link #visitMethod}, so the order of methods in the class file is preserved anyway.
+ * <p>
+ * Static initializer is always written last, because {@link SyntheticFields} are initialized in it. If there's no
+ * static initializer, it's generated when needed.
+ * <p>
+ * Transformed classes are marked with {@link TransformedAttribute}.
+ * <p>
+ * Caches and hooks are not injected into classes that are being redefined or retransformed. Redefinition can't add
+ * fields or methods, and synthetic fields, as well as a generated static initializer, would make the JVM reject the
+ * class altogether, along with its transformed {@code finally} blocks. Besides, class files of classes that had been
+ * loaded before the agent was attached are reconstituted by the JVM without {@code CLASS} retention annotations, so
+ * there's usually nothing to inject anyway.
  */
 class FinallyClassVisitor extends ClassVisitor {
-    boolean classTransformed;
+    /**
+     * Minimal number of methods with {@code try/catch} blocks that are worth analyzing in parallel. Default value can be
+     * checked on particular hardware with {@code ParallelAnalysisBenchmark} from the benchmark module.
+     */
+    private static final int PARALLEL_THRESHOLD = Integer.getInteger("finally4j.parallelism.threshold", 64);
+
+    volatile boolean classTransformed;
 
     private final Runnable callback;
 
-    FinallyClassVisitor(ClassWriter cw) {
+    /**
+     * Pool for parallel analysis of methods, nullable.
+     */
+    private final ForkJoinPool analysisPool;
+
+    /**
+     * Methods buffered until the end of the class, {@code null} if there's no analysis pool.
+     */
+    private final List<FinallyMethodNode> methods;
+
+    /**
+     * Static initializer, buffered until the end of the class. There's at most one, but it's a list for the sake of
+     * {@link FinallyMethodNode}.
+     */
+    private final List<FinallyMethodNode> staticInitializers = new ArrayList<>(1);
+
+    /**
+     * Whether caches and hooks can be injected, {@code false} if the class is being redefined.
+     */
+    private final boolean injectionsAllowed;
+
+    private SyntheticFields fields;
+
+    FinallyClassVisitor(ClassWriter cw, ForkJoinPool analysisPool, boolean injectionsAllowed) {
         super(Util.ASM_V, cw);
 
         // Make this a field for mostly aesthetic purposes.
         callback = () -> classTransformed = true;
+
+        this.analysisPool = analysisPool;
+        this.methods = analysisPool == null ? null : new ArrayList<>();
+        this.injectionsAllowed = injectionsAllowed;
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        fields = new SyntheticFields(name, access);
+
+        super.visit(version, access, name, signature, superName, interfaces);
     }
 
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
         MethodVisitor outerMv = super.visitMethod(access, name, desc, signature, exceptions);
 
-        return new FinallyMethodNode(outerMv, callback, access, name, desc, signature, exceptions);
+        List<FinallyMethodNode> deferredMethods = name.equals("<clinit>") ? staticInitializers : methods;
+
+        return new FinallyMethodNode(outerMv, callback, fields, injectionsAllowed, deferredMethods,
+                access, name, desc, signature, exceptions);
+    }
+
+    @Override
+    public void visitEnd() {
+        if (methods != null) {
+            analyzeMethods();
+
+            for (FinallyMethodNode method : methods) {
+                method.write();
+            }
+        }
+
+        for (FinallyMethodNode staticInitializer : staticInitializers) {
+            if (staticInitializer.needsAnalysis()) {
+                staticInitializer.analyze();
+            }
+
+            staticInitializer.write();
+        }
+
+        if (staticInitializers.isEmpty()) {
+            MethodNode staticInitializer = fields.staticInitializer();
+
+            if (staticInitializer != null) {
+                staticInitializer.accept(super.visitMethod(staticInitializer.access, staticInitializer.name,
+                        staticInitializer.desc, null, null));
+            }
+        }
+
+        fields.declare(this);
+
+        if (classTransformed) {
+            super.visitAttribute(new TransformedAttribute());
+        }
+
+        super.visitEnd();
+    }
+
+    private void analyzeMethods() {
+        List<FinallyMethodNode> candidates = new ArrayList<>();
+
+        for (FinallyMethodNode method : methods) {
+            if (method.needsAnalysis()) {
+                candidates.add(method);
+            }
+        }
+
+        if (candidates.size() < PARALLEL_THRESHOLD) {
+            for (FinallyMethodNode method : candidates) {
+                method.analyze();
+            }
+
+            return;
+        }
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(candidates.size());
+
+        for (FinallyMethodNode method : candidates) {
+            tasks.add(analysisPool.submit(method::analyze));
+        }
+
+        // Rethrows the first failure, if any.
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
     }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.objectweb.asm.ClassWriter.COMPUTE_FRAMES;
+import static org.objectweb.asm.ClassWriter.COMPUTE_MAXS;
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+
+/**
+ * Class writer that resolves common super classes, required for frames computation, using the loader of the class
+ * that's being transformed rather than the loader of the agent. It matters for classes that the agent's class loader
+ * can't see, like classes from application server modules or from the jar that's being transformed offline.
+ * <p>
+ * Class hierarchy is read from class file resources instead of loading the classes. Loading classes from within a
+ * transformer is prone to deadlocks, when two threads load classes that reference each other, and it's even more
+ * likely when classes are transformed in background threads. Classes are never loaded, even if their class files are
+ * not available.
+ *
+ * @author ibessonov
+ */
+class FinallyClassWriter extends ClassWriter {
+    private static final String OBJECT = "java/lang/Object";
+
+    /**
+     * Class loader of the transformed class, nullable.
+     */
+    private final ClassLoader loader;
+
+    /**
+     * Super class names of already visited types. Value is {@code null} for interfaces.
+     */
+    private final Map<String, String> superClasses = new HashMap<>();
+
+    FinallyClassWriter(ClassReader cr, ClassLoader loader) {
+        super(cr, COMPUTE_MAXS | COMPUTE_FRAMES);
+
+        this.loader = loader;
+
+        // The class is being defined right now, its class file may not be available as a resource yet.
+        superClasses.put(cr.getClassName(), (cr.getAccess() & ACC_INTERFACE) == 0 ? cr.getSuperName() : null);
+    }
+
+    @Override
+    protected ClassLoader getClassLoader() {
+        // Bootstrap classes are passed with "null" loader, agent's loader is as good as any other in this case.
+        return loader == null ? super.getClassLoader() : loader;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+
+        try {
+            Set<String> hierarchy1 = new HashSet<>();
+
+            for (String type = type1; type != null; type = superClass(type)) {
+                if (isInterface(type)) {
+                    return OBJECT;
+                }
+
+                hierarchy1.add(type);
+            }
+
+            for (String type = type2; type != null; type = superClass(type)) {
+                if (isInterface(type)) {
+                    return OBJECT;
+                }
+
+                if (hierarchy1.contains(type)) {
+                    return type;
+                }
+            }
+
+            return OBJECT;
+        } catch (IOException e) {
+            // Loading the class instead is not an option. If the class or its subclass is being defined by the current
+            // thread, it leads to a "duplicate class definition" error. If it's being defined by another thread, that
+            // in turn needs a class that's being defined by the current thread, it's a deadlock. Original class file
+            // is used by the JVM if the transformation fails.
+            throw new IllegalStateException("Failed to compute common super class of " + type1 + " and " + type2, e);
+        }
+    }
+
+    private boolean isInterface(String type) throws IOException {
+        superClass(type);
+
+        return superClasses.get(type) == null && !type.equals(OBJECT);
+    }
+
+    /**
+     * @return Super class name, or {@code null} for {@code Object} and interfaces.
+     */
+    private String superClass(String type) throws IOException {
+        if (superClasses.containsKey(type)) {
+            return superClasses.get(type);
+        }
+
+        String resourceName = type + ".class";
+
+        try (InputStream in = loader == null
+                ? ClassLoader.getSystemResourceAsStream(resourceName)
+                : loader.getResourceAsStream(resourceName)
+        ) {
+            if (in == null) {
+                throw new IOException("Resource not found: " + resourceName);
+            }
+
+            var cr = new ClassReader(in);
+
+            String superClass = (cr.getAccess() & ACC_INTERFACE) == 0 ? cr.getSuperName() : null;
+
+            superClasses.put(type, superClass);
+
+            return superClass;
+        }
+    }
+}
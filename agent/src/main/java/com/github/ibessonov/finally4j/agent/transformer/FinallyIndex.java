@@ -0,0 +1,165 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer;
+
+import com.github.ibessonov.finally4j.agent.transformer.util.Constants;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.DEBUG;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Build-time indexes of classes that reference "Finally" class, one per code source. Index is a
+ * {@link Constants#FINALLY_INDEX_RESOURCE_NAME} resource with one internal class name per line. If code source has an
+ * index, classes that are not listed in it don't need to be scanned at all.
+ *
+ * @author ibessonov
+ */
+public final class FinallyIndex {
+    /**
+     * Marker for code sources without an index.
+     */
+    private static final Set<String> NO_INDEX = Set.of("");
+
+    /**
+     * Indexes by code source location.
+     */
+    private static final ConcurrentHashMap<URL, Set<String>> INDEXES = new ConcurrentHashMap<>();
+
+    private FinallyIndex() {
+    }
+
+    /**
+     * @param protectionDomain Protection domain of the class, nullable.
+     * @param className Internal name of the class.
+     * @return {@code true} if code source of the class has an index and the class is not listed in it.
+     */
+    public static boolean isExcluded(ProtectionDomain protectionDomain, String className) {
+        Set<String> index = index(protectionDomain);
+
+        return index != null && !index.contains(className);
+    }
+
+    /**
+     * @param protectionDomain Protection domain, nullable.
+     * @return Class names from the index of the code source, or {@code null} if there's no index.
+     */
+    public static Set<String> index(ProtectionDomain protectionDomain) {
+        if (protectionDomain == null) {
+            return null;
+        }
+
+        CodeSource codeSource = protectionDomain.getCodeSource();
+
+        return codeSource == null ? null : index(codeSource.getLocation());
+    }
+
+    /**
+     * @param location Code source location, nullable.
+     * @return Class names from the index of the code source, or {@code null} if there's no index.
+     */
+    public static Set<String> index(URL location) {
+        // Only local files can be indexed. Also, "URL#equals" of other protocols may involve host name resolution.
+        if (location == null || !"file".equals(location.getProtocol())) {
+            return null;
+        }
+
+        // Lambdas are avoided here, they would bootstrap lambda infrastructure for every JVM with the agent.
+        Set<String> index = INDEXES.get(location);
+
+        if (index == null) {
+            index = readIndex(location);
+
+            Set<String> existingIndex = INDEXES.putIfAbsent(location, index);
+
+            if (existingIndex != null) {
+                index = existingIndex;
+            }
+        }
+
+        return index == NO_INDEX ? null : index;
+    }
+
+    private static Set<String> readIndex(URL location) {
+        try {
+            Path path = Path.of(location.toURI());
+
+            if (Files.isDirectory(path)) {
+                Path indexPath = path.resolve(Constants.FINALLY_INDEX_RESOURCE_NAME);
+
+                if (!Files.isRegularFile(indexPath)) {
+                    return NO_INDEX;
+                }
+
+                try (InputStream in = Files.newInputStream(indexPath)) {
+                    return readIndex(location, in);
+                }
+            }
+
+            try (var zipFile = new ZipFile(path.toFile())) {
+                ZipEntry entry = zipFile.getEntry(Constants.FINALLY_INDEX_RESOURCE_NAME);
+
+                if (entry == null) {
+                    return NO_INDEX;
+                }
+
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    return readIndex(location, in);
+                }
+            }
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            if (DEBUG) {
+                System.err.println("Failed to read index for " + location + ": " + e);
+            }
+
+            return NO_INDEX;
+        }
+    }
+
+    private static Set<String> readIndex(URL location, InputStream in) throws IOException {
+        Set<String> classNames = new HashSet<>();
+
+        var reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (!line.isBlank()) {
+                classNames.add(line.strip());
+            }
+        }
+
+        if (DEBUG) {
+            System.out.println("Loaded index of " + classNames.size() + " classes for " + location);
+        }
+
+        // Immutable sets use open addressing, that's more compact than a regular hash set.
+        return Set.copyOf(classNames);
+    }
+}
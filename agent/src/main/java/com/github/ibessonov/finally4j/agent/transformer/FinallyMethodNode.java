@@ -15,10 +15,13 @@
  */
 package com.github.ibessonov.finally4j.agent.transformer;
 
+import com.github.ibessonov.finally4j.agent.transformer.code.AnalysisArena;
 import com.github.ibessonov.finally4j.agent.transformer.code.Block;
 import com.github.ibessonov.finally4j.agent.transformer.code.Scope;
 import com.github.ibessonov.finally4j.agent.transformer.code.Try;
 import com.github.ibessonov.finally4j.agent.transformer.code.TryList;
+import com.github.ibessonov.finally4j.agent.transformer.util.Constants;
+import com.github.ibessonov.finally4j.agent.transformer.util.LabelIndex;
 import com.github.ibessonov.finally4j.agent.transformer.util.Replacer;
 import com.github.ibessonov.finally4j.agent.transformer.util.Util;
 import org.objectweb.asm.MethodVisitor;
@@ -28,21 +31,17 @@ import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.VarInsnNode;
 
-import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.ASM_V;
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.DEBUG;
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.findAnnotation;
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.findNextInstruction;
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.findNextLabel;
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.findPreviousInstruction;
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.isStore;
-import static java.util.function.Function.identity;
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Stream.concat;
+import static org.objectweb.asm.Opcodes.RETURN;
 
 /**
  * @author ibessonov
@@ -59,55 +58,137 @@ public class FinallyMethodNode extends MethodNode {
     private final MethodVisitor outerMv;
 
     /**
-     * Mapping of all labels into their sequence number.
+     * Synthetic fields of the class, used by injectors.
      */
-    public final Map<LabelNode, Integer> labelIdx = new IdentityHashMap<>();
+    private final SyntheticFields fields;
 
+    /**
+     * Whether caches and hooks can be injected, see {@link FinallyClassVisitor}.
+     */
+    private final boolean injectionsAllowed;
 
-    private final Replacer replacer;
+    /**
+     * List of methods that are analyzed and written later by the class visitor, {@code null} if the method must be
+     * transformed right away.
+     */
+    private final List<FinallyMethodNode> deferredMethods;
 
-    FinallyMethodNode(MethodVisitor outerMv, Runnable methodTransformedClosure,
+    FinallyMethodNode(MethodVisitor outerMv, Runnable methodTransformedClosure, SyntheticFields fields,
+                      boolean injectionsAllowed, List<FinallyMethodNode> deferredMethods,
                       int access, String name, String desc, String signature, String[] exceptions) {
         super(ASM_V, access, name, desc, signature, exceptions);
         this.outerMv = outerMv;
         this.methodTransformedClosure = methodTransformedClosure;
-
-        this.replacer = new Replacer(instructions, methodTransformedClosure, desc.charAt(desc.length() - 1));
+        this.fields = fields;
+        this.injectionsAllowed = injectionsAllowed;
+        this.deferredMethods = deferredMethods;
     }
 
     @Override
     public void visitEnd() {
+        if (deferredMethods != null) {
+            deferredMethods.add(this);
+
+            return;
+        }
+
+        analyze();
+
+        write();
+    }
+
+    /**
+     * @return {@code true} if the method has {@code try/catch} blocks and needs to be analyzed.
+     */
+    boolean needsAnalysis() {
+        return !tryCatchBlocks.isEmpty();
+    }
+
+    /**
+     * Finds {@code finally} blocks and replaces calls to "Finally" methods in them. Only changes the state of this
+     * method, so that different methods of the class can be analyzed concurrently.
+     */
+    void analyze() {
+        AnalysisArena arena = AnalysisArena.acquire();
+
+        try {
+            analyze(arena);
+        } finally {
+            arena.release();
+        }
+    }
+
+    private void analyze(AnalysisArena arena) {
         // Calculate indexes for all labels in the method.
-        Stream.iterate(super.instructions.getFirst(), Objects::nonNull, AbstractInsnNode::getNext)
-                .filter(node -> node.getType() == AbstractInsnNode.LABEL)
-                .forEach(node -> labelIdx.put((LabelNode) node, labelIdx.size()));
+        arena.labelIndex().index(instructions);
 
-        List<Try> tryList = TryList.init(this);
+        List<Try> tryList = TryList.init(this, arena);
 
         // Avoid logs and return if there are no finally blocks in the method.
         if (tryList.isEmpty()) {
-            super.accept(outerMv);
-
             return;
         }
 
         if (DEBUG) {
-            logTransformation(tryList);
+            logTransformation(arena, tryList);
         }
 
-        for (Try aTry : tryList) {
-            replaceInstructionsInTryBlock(aTry);
+        Replacer replacer = arena.replacer(instructions, methodTransformedClosure, desc.charAt(desc.length() - 1));
+
+        for (int i = 0; i < tryList.size(); i++) {
+            replaceInstructionsInTryBlock(arena, replacer, tryList.get(i));
         }
 
         if (DEBUG) {
             // Don't remove it, it's an actual empty line, not a mistake.
             System.out.println();
         }
+    }
+
+    /**
+     * Injects caches and hooks, and writes the method into the delegate method visitor. Must be called in the same order
+     * the methods were visited, except for the static initializer, that must be called last.
+     */
+    void write() {
+        boolean transformed;
+
+        if (name.equals("<clinit>")) {
+            transformed = fields.initialize(this);
+        } else if (!injectionsAllowed) {
+            transformed = false;
+
+            warnIfInjectionsIgnored();
+        } else {
+            // Caches go first, so that the return of a cached value is seen by hooks as well.
+            transformed = MemoizeInjector.inject(this, fields);
+
+            transformed |= HookInjector.inject(this, fields);
+        }
+
+        if (transformed) {
+            methodTransformedClosure.run();
+        }
 
         super.accept(outerMv);
     }
 
-    private void logTransformation(List<Try> tryList) {
+    /**
+     * Warns that annotations of the method are ignored. Printed regardless of debug mode, because silently ignored
+     * annotations look like a bug.
+     */
+    private void warnIfInjectionsIgnored() {
+        if (findAnnotation(this, Constants.MEMOIZE_DESCRIPTOR) != null
+                || findAnnotation(this, Constants.ON_RETURN_DESCRIPTOR) != null
+                || findAnnotation(this, Constants.ON_THROW_DESCRIPTOR) != null) {
+            System.err.println("finally4j: @Memoize, @OnReturn and @OnThrow are ignored on method '"
+                    + fields.owner().replace('/', '.') + "." + name + desc + "', because its class is being redefined."
+                    + " Use -javaagent or offline transformation instead of dynamic attach");
+        }
+    }
+
+    private void logTransformation(AnalysisArena arena, List<Try> tryList) {
+        LabelIndex labelIdx = arena.labelIndex();
+
         System.out.println("  Transforming method '" + super.name + super.desc + "':");
 
         for (TryCatchBlockNode node : tryCatchBlocks) {
@@ -116,7 +197,7 @@ public class FinallyMethodNode extends MethodNode {
         System.out.println("   ---");
 
         var invalidBlocks = tryCatchBlocks.stream()
-                .filter(block -> !Util.validBlock(block)).map(block -> new Block(this, block).toString())
+                .filter(block -> !Util.validBlock(block)).map(block -> arena.block(block.start, block.end).toString())
                 .collect(toList());
         if (!invalidBlocks.isEmpty()) {
             System.out.println("    Invalid blocks: " + invalidBlocks);
@@ -125,63 +206,25 @@ public class FinallyMethodNode extends MethodNode {
         tryList.forEach(aTry -> aTry.print("    "));
     }
 
-    private void replaceInstructionsInTryBlock(Try aTry) {
-        Stream<Block> returnFinallyBlocks = concat(Stream.of(aTry.tryScope), aTry.catchScopes.stream()).flatMap(scope -> {
-            return IntStream.range(0, scope.blocks.size()).mapToObj(i -> {
-                Block block = scope.blocks.get(i);
+    private void replaceInstructionsInTryBlock(AnalysisArena arena, Replacer replacer, Try aTry) {
+        // Recursion! Nested try statements go first, because finally blocks of the outer statement may contain their
+        // copies, and calls in nested finally blocks must refer to nested statements.
+        replaceInstructionsInNestedTryBlocks(arena, replacer, aTry.tryScope);
 
-                Block nextBlock;
+        for (int i = 0; i < aTry.catchScopes.size(); i++) {
+            replaceInstructionsInNestedTryBlocks(arena, replacer, aTry.catchScopes.get(i));
+        }
 
-                if (block == scope.last()) {
-                    if (!isStore(findPreviousInstruction(block.end))) { //ATHROW
-                        return null; // This one should end with exceptional finally block, so I ignore it.
-                    }
+        replaceInstructionsInNestedTryBlocks(arena, replacer, aTry.finallyScope);
 
-                    /*
-                     * You can't just read the next catch or finally block, that would be too easy, right?
-                     * That's because 2 last finally blocks can be slapped together, for example, here:
-                     * try {
-                     *     if (foo()) return bar();
-                     * } finally {
-                     *     baz();
-                     * }
-                     * It means that the "last" finally block must be split manually.
-                     */
-                    //TODO Here we may have a false-positive detection of a "return" finally block.
-                    // How to avoid it: if default finally doesn't end with "return", we can derive that the
-                    // "load" and "return" at the end mean that the block is in fact a return block.
-                    // Checking the first "store" is DEFINITELY NOT ENOUGH.
-                    LabelNode theEndOfFinally = Util.findTheEndOfFinally(labelIdx, block.end, false);
-
-                    nextBlock = new Block(this, theEndOfFinally, null);
-                } else {
-                    nextBlock = scope.blocks.get(i + 1);
-                }
-
-                return new Block(this, block.end, nextBlock.start);
-            });
-        }).filter(Objects::nonNull).filter(b -> b.startIndex() < b.endIndex());
+        replaceReturnedValueInstructions(arena, replacer, aTry.tryScope);
 
-        returnFinallyBlocks.forEach(finallyBlock -> {
-            //TODO This code is bad. It doesn't cover nested stuff at all.
-            if (DEBUG) {
-                System.out.println("  Finally block in try " + finallyBlock);
-            }
-            AbstractInsnNode previousInstruction = findPreviousInstruction(finallyBlock.start);
-            //TODO Not the best way to find "return" finally blocks.
-            // May be false-positive if there's a simple assignment at the end.
-            // One way to avoid that would be checking the end of "finally" block for corresponding "load" instruction.
-            // But, it only works when the finally block itself doesn't have a return or throw at the end, that is
-            // the worst case scenario. There's no way to tell the difference then. I guess I just document it and that's it.
-            if (isStore(previousInstruction)) {
-                VarInsnNode storeInstruction = (VarInsnNode) previousInstruction;
-
-                replacer.replaceReturnedValueInstructions(storeInstruction, finallyBlock);
-            }
-        });
+        for (int i = 0; i < aTry.catchScopes.size(); i++) {
+            replaceReturnedValueInstructions(arena, replacer, aTry.catchScopes.get(i));
+        }
 
         // No exceptions.
-        IntStream.range(0, aTry.catchScopes.size()).forEach(i -> {
+        for (int i = 0; i < aTry.catchScopes.size(); i++) {
             Scope catchScope = aTry.catchScopes.get(i);
 
             Block lastBlock = catchScope.last();
@@ -192,11 +235,11 @@ public class FinallyMethodNode extends MethodNode {
                     ? aTry.finallyScope.first().start
                     : aTry.catchScopes.get(i + 1).first().start;
 
-            if (isStore(findPreviousInstruction(lastBlock.end))) {
-                LabelNode theEndOfFinally = Util.findTheEndOfFinally(labelIdx, lastBlock.end, false);
+            if (isReturnStore(findPreviousInstruction(lastBlock.end))) {
+                LabelNode theEndOfFinally = Util.findTheEndOfFinally(arena, lastBlock.end, false);
 
                 if (theEndOfFinally == endLabel) {
-                    return;
+                    continue;
                 } else {
                     startLabel = theEndOfFinally;
                 }
@@ -207,20 +250,181 @@ public class FinallyMethodNode extends MethodNode {
             assert isStore(firstCatchInstruction);
 
             var storeInstruction = (VarInsnNode) firstCatchInstruction;
-            Block finallyBlock = new Block(this, startLabel, endLabel);
 
-            replacer.replaceExceptionInstructions(storeInstruction, finallyBlock);
-        });
+            replaceCaughtExceptionInstructions(arena, replacer, storeInstruction, startLabel, endLabel);
+        }
 
         replacer.replaceExceptionInstructions((VarInsnNode) findNextInstruction(aTry.finallyScope.first().start), aTry.finallyScope.first());
 
-        // Recursion!
-        Stream<Try> nestedInTry = aTry.tryScope.nested.stream();
-        Stream<Try> nestedInCatch = aTry.catchScopes.stream().map(scope -> scope.nested.stream()).flatMap(identity());
-        Stream<Try> nestedInFinally = aTry.finallyScope.nested.stream();
+        replaceNormalCompletionInstructions(arena, replacer, aTry);
+    }
+
+    /**
+     * Replaces calls in all finally blocks of the statement that are not covered by its try and catch scopes and
+     * haven't been replaced yet. These are the blocks that follow normal completion of the try block, returns from void
+     * methods and jumps out of the statement.
+     */
+    private void replaceNormalCompletionInstructions(AnalysisArena arena, Replacer replacer, Try aTry) {
+        LabelIndex labelIdx = arena.labelIndex();
+
+        LabelNode handler = aTry.finallyScope.first().start;
+
+        LabelNode gapStart = null;
+
+        for (AbstractInsnNode node = aTry.tryScope.first().start; node != handler; node = node.getNext()) {
+            if (node.getType() != AbstractInsnNode.LABEL) {
+                continue;
+            }
+
+            LabelNode label = (LabelNode) node;
+
+            boolean covered = covers(aTry.tryScope, labelIdx.get(label));
+
+            for (int i = 0; !covered && i < aTry.catchScopes.size(); i++) {
+                covered = covers(aTry.catchScopes.get(i), labelIdx.get(label));
+            }
+
+            if (covered && gapStart != null) {
+                replacer.replaceNormalCompletionInstructions(arena.block(gapStart, label));
+
+                gapStart = null;
+            } else if (!covered && gapStart == null) {
+                gapStart = label;
+            }
+        }
+
+        if (gapStart != null) {
+            replacer.replaceNormalCompletionInstructions(arena.block(gapStart, handler));
+        }
+    }
+
+    /**
+     * @return {@code true} if the instruction stores the returned value. Handlers of catch blocks start with a store of
+     *      the exception, so an empty catch block of a nested statement at the end of the block would look exactly like
+     *      a "return" otherwise.
+     */
+    private boolean isReturnStore(AbstractInsnNode instruction) {
+        if (!isStore(instruction)) {
+            return false;
+        }
+
+        // Labels, line numbers and frames have no opcode.
+        for (AbstractInsnNode node = instruction.getPrevious(); node != null && node.getOpcode() < 0;
+             node = node.getPrevious()) {
+            for (int i = 0; i < tryCatchBlocks.size(); i++) {
+                if (tryCatchBlocks.get(i).handler == node) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean covers(Scope scope, int labelIndex) {
+        for (int i = 0; i < scope.blocks.size(); i++) {
+            Block block = scope.blocks.get(i);
+
+            if (block.startIndex() <= labelIndex && labelIndex < block.endIndex()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void replaceInstructionsInNestedTryBlocks(AnalysisArena arena, Replacer replacer, Scope scope) {
+        for (int i = 0; i < scope.nested.size(); i++) {
+            replaceInstructionsInTryBlock(arena, replacer, scope.nested.get(i));
+        }
+    }
+
+    /**
+     * Replaces calls in finally blocks that follow normal completion of the catch block. There may be several blocks
+     * between {@code startLabel} and {@code endLabel}: there's no "store" before returns from void methods, and ranges
+     * of catch blocks don't cover branches that consist of a single "return", so such blocks are ignored here.
+     */
+    private static void replaceCaughtExceptionInstructions(AnalysisArena arena, Replacer replacer,
+                                                           VarInsnNode storeInstruction, LabelNode startLabel,
+                                                           LabelNode endLabel) {
+        while (startLabel != endLabel) {
+            AbstractInsnNode theEndOfCopy = Util.findTheEndOfCopy(arena, startLabel, endLabel);
 
-        Stream.of(nestedInTry, nestedInCatch, nestedInFinally)
-                .flatMap(identity())
-                .forEach(this::replaceInstructionsInTryBlock);
+            LabelNode nextLabel = theEndOfCopy == null ? endLabel : findNextLabel(theEndOfCopy);
+
+            if (theEndOfCopy == null || theEndOfCopy.getOpcode() != RETURN) {
+                replacer.replaceExceptionInstructions(storeInstruction, arena.block(startLabel, nextLabel));
+            }
+
+            startLabel = nextLabel;
+        }
+    }
+
+    /**
+     * Replaces calls in finally blocks that follow return statements of the scope.
+     */
+    private void replaceReturnedValueInstructions(AnalysisArena arena, Replacer replacer, Scope scope) {
+        for (int i = 0; i < scope.blocks.size(); i++) {
+            Block block = scope.blocks.get(i);
+
+            LabelNode finallyBlockEnd;
+
+            if (block == scope.last()) {
+                if (!isReturnStore(findPreviousInstruction(block.end))) { //ATHROW
+                    continue; // This one should end with exceptional finally block, so I ignore it.
+                }
+
+                /*
+                 * You can't just read the next catch or finally block, that would be too easy, right?
+                 * That's because 2 last finally blocks can be slapped together, for example, here:
+                 * try {
+                 *     if (foo()) return bar();
+                 * } finally {
+                 *     baz();
+                 * }
+                 * It means that the "last" finally block must be split manually.
+                 */
+                //TODO Here we may have a false-positive detection of a "return" finally block.
+                // How to avoid it: if default finally doesn't end with "return", we can derive that the
+                // "load" and "return" at the end mean that the block is in fact a return block.
+                // Checking the first "store" is DEFINITELY NOT ENOUGH.
+                finallyBlockEnd = Util.findTheEndOfFinally(arena, block.end, false);
+            } else {
+                finallyBlockEnd = scope.blocks.get(i + 1).start;
+
+                if (isReturnStore(findPreviousInstruction(block.end))) {
+                    // Handlers of catch blocks that complete normally aren't covered by the default range, so they
+                    // may lie between the "return" finally block and the next block of the scope.
+                    LabelNode returnBlockEnd = Util.findTheEndOfFinally(arena, block.end, false);
+
+                    LabelIndex labelIdx = arena.labelIndex();
+
+                    if (returnBlockEnd != null && labelIdx.get(returnBlockEnd) < labelIdx.get(finallyBlockEnd)) {
+                        finallyBlockEnd = returnBlockEnd;
+                    }
+                }
+            }
+
+            Block finallyBlock = arena.block(block.end, finallyBlockEnd);
+
+            if (finallyBlock.startIndex() >= finallyBlock.endIndex()) {
+                continue;
+            }
+
+            if (DEBUG) {
+                System.out.println("  Finally block in try " + finallyBlock);
+            }
+            AbstractInsnNode previousInstruction = findPreviousInstruction(finallyBlock.start);
+            //TODO Not the best way to find "return" finally blocks.
+            // May be false-positive if there's a simple assignment at the end.
+            // One way to avoid that would be checking the end of "finally" block for corresponding "load" instruction.
+            // But, it only works when the finally block itself doesn't have a return or throw at the end, that is
+            // the worst case scenario. There's no way to tell the difference then. I guess I just document it and that's it.
+            if (isReturnStore(previousInstruction)) {
+                VarInsnNode storeInstruction = (VarInsnNode) previousInstruction;
+
+                replacer.replaceReturnedValueInstructions(storeInstruction, finallyBlock);
+            }
+        }
     }
 }
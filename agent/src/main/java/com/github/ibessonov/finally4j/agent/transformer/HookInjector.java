@@ -0,0 +1,260 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer;
+
+import com.github.ibessonov.finally4j.agent.transformer.util.Constants;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.annotationValue;
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.findAnnotation;
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.isReturn;
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_NATIVE;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.ATHROW;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.DUP2;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.LLOAD;
+import static org.objectweb.asm.Opcodes.LSTORE;
+import static org.objectweb.asm.Opcodes.NEW;
+
+/**
+ * Injects calls of {@code OnReturn} and {@code OnThrow} handlers into annotated methods. It's done after the analysis
+ * of "Finally" calls, so that the synthetic exception handler doesn't interfere with it.
+ * <p>
+ * Every return instruction is preceded by a copy of the returned value and a call of {@code onReturn}. Method body,
+ * except for these calls, is covered by a catch-all exception handler, that calls {@code onThrow} and rethrows the
+ * exception. Ranges of the handler are added after all other ranges, so that it's the outermost one.
+ * <p>
+ * If the method is annotated with {@code Sampled}, every hook gets its own {@code Sampler} in a
+ * {@link SyntheticFields synthetic field}, and handler calls are only made for sampled invocations.
+ *
+ * @author ibessonov
+ */
+final class HookInjector {
+    private static final String OBJECT_DESCRIPTOR = "Ljava/lang/Object;";
+
+    private static final String ON_THROW_HANDLER_METHOD_DESCRIPTOR = "(Ljava/lang/Throwable;)V";
+
+    private HookInjector() {
+    }
+
+    /**
+     * @return {@code true} if the method has been changed.
+     */
+    static boolean inject(MethodNode method, SyntheticFields fields) {
+        if (method.name.equals("<init>") || method.name.equals("<clinit>")
+                || (method.access & (ACC_ABSTRACT | ACC_NATIVE)) != 0) {
+            return false;
+        }
+
+        String onReturnHandler = handler(method, Constants.ON_RETURN_DESCRIPTOR);
+        String onThrowHandler = handler(method, Constants.ON_THROW_DESCRIPTOR);
+
+        if (onReturnHandler == null && onThrowHandler == null) {
+            return false;
+        }
+
+        AnnotationNode sampled = findAnnotation(method, Constants.SAMPLED_DESCRIPTOR);
+
+        SyntheticFields.Field onReturnSampler = onReturnHandler == null || sampled == null
+                ? null
+                : sampler(method, fields, sampled, Constants.ON_RETURN_HANDLER_METHOD_NAME);
+
+        SyntheticFields.Field onThrowSampler = onThrowHandler == null || sampled == null
+                ? null
+                : sampler(method, fields, sampled, Constants.ON_THROW_HANDLER_METHOD_NAME);
+
+        int timeVar = -1;
+
+        if (sampled != null) {
+            timeVar = method.maxLocals;
+            method.maxLocals += 2;
+        }
+
+        Type returnType = Type.getReturnType(method.desc);
+
+        LabelNode handler = onThrowHandler == null ? null : new LabelNode();
+
+        LabelNode rangeStart = new LabelNode();
+        method.instructions.insert(rangeStart);
+
+        for (AbstractInsnNode node = rangeStart.getNext(); node != null; node = node.getNext()) {
+            if (!isReturn(node)) {
+                continue;
+            }
+
+            if (onThrowHandler != null) {
+                LabelNode rangeEnd = new LabelNode();
+                method.instructions.insertBefore(node, rangeEnd);
+
+                addRange(method, rangeStart, rangeEnd, handler);
+            }
+
+            if (onReturnHandler != null) {
+                var call = new InsnList();
+
+                if (returnType.getSize() > 0) {
+                    call.add(new InsnNode(returnType.getSize() == 1 ? DUP : DUP2));
+                }
+
+                call.add(new MethodInsnNode(INVOKESTATIC, onReturnHandler,
+                        Constants.ON_RETURN_HANDLER_METHOD_NAME, onReturnDescriptor(returnType), false));
+
+                method.instructions.insertBefore(node, sampledCall(call, onReturnSampler, timeVar));
+            }
+
+            rangeStart = new LabelNode();
+            method.instructions.insert(node, rangeStart);
+
+            node = rangeStart;
+        }
+
+        if (onThrowHandler != null) {
+            LabelNode rangeEnd = new LabelNode();
+            method.instructions.add(rangeEnd);
+
+            addRange(method, rangeStart, rangeEnd, handler);
+
+            // Handler code: store, call "onThrow", load and rethrow.
+            int var = method.maxLocals++;
+
+            var call = new InsnList();
+
+            call.add(new VarInsnNode(ALOAD, var));
+            call.add(new MethodInsnNode(INVOKESTATIC, onThrowHandler,
+                    Constants.ON_THROW_HANDLER_METHOD_NAME, ON_THROW_HANDLER_METHOD_DESCRIPTOR, false));
+
+            method.instructions.add(handler);
+            method.instructions.add(new VarInsnNode(ASTORE, var));
+            method.instructions.add(sampledCall(call, onThrowSampler, timeVar));
+            method.instructions.add(new VarInsnNode(ALOAD, var));
+            method.instructions.add(new InsnNode(ATHROW));
+        }
+
+        return true;
+    }
+
+    /**
+     * @return Field with a new sampler for the hook of the method.
+     */
+    private static SyntheticFields.Field sampler(MethodNode method, SyntheticFields fields, AnnotationNode sampled,
+                                                 String hook) {
+        Object period = annotationValue(sampled, "period");
+        Object overhead = annotationValue(sampled, "overhead");
+
+        String site = fields.owner().replace('/', '.') + "#" + method.name + method.desc + ":" + hook;
+
+        // "new Sampler(site, period, overhead)".
+        var initializer = new InsnList();
+
+        initializer.add(new TypeInsnNode(NEW, Constants.SAMPLER_INTERNAL_NAME));
+        initializer.add(new InsnNode(DUP));
+        initializer.add(new LdcInsnNode(site));
+        initializer.add(new LdcInsnNode(period == null ? Constants.SAMPLED_DEFAULT_PERIOD : (Integer) period));
+        initializer.add(new LdcInsnNode(overhead == null ? Constants.SAMPLED_DEFAULT_OVERHEAD : (Double) overhead));
+        initializer.add(new MethodInsnNode(INVOKESPECIAL, Constants.SAMPLER_INTERNAL_NAME, "<init>", "(Ljava/lang/String;ID)V", false));
+
+        return fields.add("sampler$" + method.name, "L" + Constants.SAMPLER_INTERNAL_NAME + ";", initializer);
+    }
+
+    /**
+     * @return Handler call, wrapped into "if (sampler.sample()) { ... }" block along with the time measurement if
+     *      there's a sampler.
+     */
+    private static InsnList sampledCall(InsnList call, SyntheticFields.Field sampler, int timeVar) {
+        if (sampler == null) {
+            return call;
+        }
+
+        var insns = new InsnList();
+        var skip = new LabelNode();
+
+        insns.add(sampler.load());
+        insns.add(new MethodInsnNode(INVOKEVIRTUAL, Constants.SAMPLER_INTERNAL_NAME, "sample", "()Z", false));
+        insns.add(new JumpInsnNode(IFEQ, skip));
+
+        insns.add(new MethodInsnNode(INVOKESTATIC, "java/lang/System", "nanoTime", "()J", false));
+        insns.add(new VarInsnNode(LSTORE, timeVar));
+
+        insns.add(call);
+
+        insns.add(sampler.load());
+        insns.add(new VarInsnNode(LLOAD, timeVar));
+        insns.add(new MethodInsnNode(INVOKEVIRTUAL, Constants.SAMPLER_INTERNAL_NAME, "sampled", "(J)V", false));
+
+        insns.add(skip);
+
+        return insns;
+    }
+
+    /**
+     * Adds a catch-all range, unless it's empty.
+     */
+    private static void addRange(MethodNode method, LabelNode start, LabelNode end, LabelNode handler) {
+        for (AbstractInsnNode node = start.getNext(); node != end; node = node.getNext()) {
+            // Labels, line numbers and frames are not instructions.
+            if (node.getOpcode() != -1) {
+                method.tryCatchBlocks.add(new TryCatchBlockNode(start, end, handler, null));
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return Internal name of the handler class from the annotation with given descriptor, or {@code null} if the
+     *      method is not annotated.
+     */
+    private static String handler(MethodNode method, String annotationDescriptor) {
+        AnnotationNode annotation = findAnnotation(method, annotationDescriptor);
+
+        Object handler = annotation == null ? null : annotationValue(annotation, "value");
+
+        return handler instanceof Type ? ((Type) handler).getInternalName() : null;
+    }
+
+    private static String onReturnDescriptor(Type returnType) {
+        switch (returnType.getSort()) {
+            case Type.VOID:
+                return "()V";
+
+            case Type.OBJECT:
+            case Type.ARRAY:
+                return "(" + OBJECT_DESCRIPTOR + ")V";
+
+            default:
+                return "(" + returnType.getDescriptor() + ")V";
+        }
+    }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer;
+
+import com.github.ibessonov.finally4j.agent.transformer.util.Constants;
+import com.github.ibessonov.finally4j.agent.transformer.util.Util;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.IntInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+import org.objectweb.asm.tree.VarInsnNode;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.DEBUG;
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.annotationValue;
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.findAnnotation;
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.isReturn;
+import static org.objectweb.asm.Opcodes.AASTORE;
+import static org.objectweb.asm.Opcodes.ACC_ABSTRACT;
+import static org.objectweb.asm.Opcodes.ACC_NATIVE;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ANEWARRAY;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.CHECKCAST;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.DUP2;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.IF_ACMPEQ;
+import static org.objectweb.asm.Opcodes.ILOAD;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.IRETURN;
+import static org.objectweb.asm.Opcodes.ISTORE;
+import static org.objectweb.asm.Opcodes.NEW;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+
+/**
+ * Weaves result caching into static methods annotated with {@code Memoize}. Every method gets its own cache in a
+ * {@link SyntheticFields synthetic field}.
+ * <p>
+ * Method starts with the computation of the key, which is stored in a new local variable, and the lookup. If there's a
+ * cached value, it's returned right away. Otherwise, every return instruction is preceded by a copy of the returned
+ * value and a call of {@code put}. Exceptions are never cached, because there's no return instruction on their path.
+ *
+ * @author ibessonov
+ */
+final class MemoizeInjector {
+    private static final String OBJECT_DESCRIPTOR = "Ljava/lang/Object;";
+
+    private MemoizeInjector() {
+    }
+
+    /**
+     * @return {@code true} if the method has been changed.
+     */
+    static boolean inject(MethodNode method, SyntheticFields fields) {
+        AnnotationNode annotation = findAnnotation(method, Constants.MEMOIZE_DESCRIPTOR);
+
+        if (annotation == null) {
+            return false;
+        }
+
+        Type returnType = Type.getReturnType(method.desc);
+
+        if ((method.access & (ACC_ABSTRACT | ACC_NATIVE)) != 0 || (method.access & ACC_STATIC) == 0
+                || returnType.getSort() == Type.VOID) {
+            if (DEBUG) {
+                System.out.println("  Memoize is ignored on method '" + method.name + method.desc + "', it must be static and non-void");
+            }
+
+            return false;
+        }
+
+        Cache cache = cache(method, annotation, fields);
+
+        int keyVar = method.maxLocals;
+        method.maxLocals += cache.keyType.getSize();
+
+        int valueVar = method.maxLocals++;
+
+        // Returns first, so that the return of the cached value is not affected.
+        for (AbstractInsnNode node = method.instructions.getFirst(); node != null; node = node.getNext()) {
+            if (isReturn(node)) {
+                method.instructions.insertBefore(node, put(cache, returnType, keyVar, valueVar));
+            }
+        }
+
+        method.instructions.insert(get(method, cache, returnType, keyVar));
+
+        return true;
+    }
+
+    private static Cache cache(MethodNode method, AnnotationNode annotation, SyntheticFields fields) {
+        Object maxSize = annotationValue(annotation, "maxSize");
+        Object expireAfterWrite = annotationValue(annotation, "expireAfterWrite");
+        Object unit = annotationValue(annotation, "unit");
+        Object primitiveKeys = annotationValue(annotation, "primitiveKeys");
+
+        // Enum values are stored as pairs of descriptor and name.
+        TimeUnit timeUnit = TimeUnit.valueOf(unit == null ? Constants.MEMOIZE_DEFAULT_UNIT : ((String[]) unit)[1]);
+
+        Type[] argumentTypes = Type.getArgumentTypes(method.desc);
+
+        Type keyType = argumentTypes.length == 1 && (primitiveKeys == null || (Boolean) primitiveKeys)
+                ? primitiveKeyType(argumentTypes[0])
+                : null;
+
+        if (keyType == null) {
+            keyType = Type.getType(OBJECT_DESCRIPTOR);
+        }
+
+        String cacheInternalName;
+
+        switch (keyType.getSort()) {
+            case Type.INT:
+                cacheInternalName = Constants.INT_KEY_CACHE_INTERNAL_NAME;
+                break;
+
+            case Type.LONG:
+                cacheInternalName = Constants.LONG_KEY_CACHE_INTERNAL_NAME;
+                break;
+
+            default:
+                cacheInternalName = Constants.OBJECT_KEY_CACHE_INTERNAL_NAME;
+        }
+
+        // "new XxxKeyCache(maxSize, expireAfterWriteNanos)".
+        var initializer = new InsnList();
+
+        initializer.add(new TypeInsnNode(NEW, cacheInternalName));
+        initializer.add(new InsnNode(DUP));
+        initializer.add(new LdcInsnNode(maxSize == null ? Constants.MEMOIZE_DEFAULT_MAX_SIZE : (Integer) maxSize));
+        initializer.add(new LdcInsnNode(expireAfterWrite == null ? 0L : timeUnit.toNanos((Long) expireAfterWrite)));
+        initializer.add(new MethodInsnNode(INVOKESPECIAL, cacheInternalName, "<init>", "(IJ)V", false));
+
+        SyntheticFields.Field field = fields.add("memo$" + method.name, "L" + cacheInternalName + ";", initializer);
+
+        return new Cache(field, cacheInternalName, keyType);
+    }
+
+    /**
+     * @return Type of the key for the argument of given type, or {@code null} if it's not primitive.
+     */
+    private static Type primitiveKeyType(Type argumentType) {
+        switch (argumentType.getSort()) {
+            case Type.BOOLEAN:
+            case Type.CHAR:
+            case Type.BYTE:
+            case Type.SHORT:
+            case Type.INT:
+            case Type.FLOAT:
+                return Type.INT_TYPE;
+
+            case Type.LONG:
+            case Type.DOUBLE:
+                return Type.LONG_TYPE;
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return Code that computes the key, stores it, and returns the cached value if there's one.
+     */
+    private static InsnList get(MethodNode method, Cache cache, Type returnType, int keyVar) {
+        var insns = new InsnList();
+
+        key(insns, method, cache);
+
+        insns.add(new VarInsnNode(cache.keyType.getOpcode(ISTORE), keyVar));
+
+        insns.add(cache.field.load());
+        insns.add(new VarInsnNode(cache.keyType.getOpcode(ILOAD), keyVar));
+        insns.add(new MethodInsnNode(INVOKEVIRTUAL, cache.internalName, "get",
+                "(" + cache.keyType.getDescriptor() + ")" + OBJECT_DESCRIPTOR, false));
+
+        var miss = new LabelNode();
+
+        insns.add(new InsnNode(DUP));
+        insns.add(new FieldInsnNode(GETSTATIC, Constants.MEMO_CACHE_INTERNAL_NAME, "MISS", OBJECT_DESCRIPTOR));
+        insns.add(new JumpInsnNode(IF_ACMPEQ, miss));
+
+        switch (returnType.getSort()) {
+            case Type.OBJECT:
+            case Type.ARRAY:
+                if (!returnType.getDescriptor().equals(OBJECT_DESCRIPTOR)) {
+                    insns.add(new TypeInsnNode(CHECKCAST, returnType.getInternalName()));
+                }
+
+                break;
+
+            default:
+                char descriptor = returnType.getDescriptor().charAt(0);
+
+                insns.add(new TypeInsnNode(CHECKCAST, Util.toBoxedInternalName(descriptor)));
+                insns.add(Util.primitiveValue(descriptor));
+        }
+
+        insns.add(new InsnNode(returnType.getOpcode(IRETURN)));
+
+        insns.add(miss);
+        insns.add(new InsnNode(POP));
+
+        return insns;
+    }
+
+    /**
+     * Adds the code that computes the key from method arguments.
+     */
+    private static void key(InsnList insns, MethodNode method, Cache cache) {
+        Type[] argumentTypes = Type.getArgumentTypes(method.desc);
+
+        if (cache.keyType.getSort() != Type.OBJECT) {
+            Type argumentType = argumentTypes[0];
+
+            insns.add(new VarInsnNode(argumentType.getOpcode(ILOAD), 0));
+
+            if (argumentType.getSort() == Type.FLOAT) {
+                insns.add(new MethodInsnNode(INVOKESTATIC, "java/lang/Float", "floatToRawIntBits", "(F)I", false));
+            } else if (argumentType.getSort() == Type.DOUBLE) {
+                insns.add(new MethodInsnNode(INVOKESTATIC, "java/lang/Double", "doubleToRawLongBits", "(D)J", false));
+            }
+
+            return;
+        }
+
+        if (argumentTypes.length == 1) {
+            load(insns, argumentTypes[0], 0);
+
+            return;
+        }
+
+        // Several arguments or none, "ObjectKeyCache.key(new Object[] {...})".
+        insns.add(pushInt(argumentTypes.length));
+        insns.add(new TypeInsnNode(ANEWARRAY, "java/lang/Object"));
+
+        int var = 0;
+
+        for (int i = 0; i < argumentTypes.length; i++) {
+            insns.add(new InsnNode(DUP));
+            insns.add(pushInt(i));
+
+            load(insns, argumentTypes[i], var);
+
+            insns.add(new InsnNode(AASTORE));
+
+            var += argumentTypes[i].getSize();
+        }
+
+        insns.add(new MethodInsnNode(INVOKESTATIC, Constants.OBJECT_KEY_CACHE_INTERNAL_NAME, "key",
+                "([" + OBJECT_DESCRIPTOR + ")" + OBJECT_DESCRIPTOR, false));
+    }
+
+    /**
+     * Adds the code that loads the argument, boxed if it's primitive.
+     */
+    private static void load(InsnList insns, Type argumentType, int var) {
+        insns.add(new VarInsnNode(argumentType.getOpcode(ILOAD), var));
+
+        if (argumentType.getSort() < Type.ARRAY) {
+            insns.add(Util.valueOf(argumentType.getDescriptor().charAt(0)));
+        }
+    }
+
+    /**
+     * @return Code that puts the returned value into the cache, leaving it on the stack.
+     */
+    private static InsnList put(Cache cache, Type returnType, int keyVar, int valueVar) {
+        var insns = new InsnList();
+
+        insns.add(new InsnNode(returnType.getSize() == 1 ? DUP : DUP2));
+
+        if (returnType.getSort() < Type.ARRAY) {
+            insns.add(Util.valueOf(returnType.getDescriptor().charAt(0)));
+        }
+
+        insns.add(new VarInsnNode(ASTORE, valueVar));
+
+        insns.add(cache.field.load());
+        insns.add(new VarInsnNode(cache.keyType.getOpcode(ILOAD), keyVar));
+        insns.add(new VarInsnNode(ALOAD, valueVar));
+        insns.add(new MethodInsnNode(INVOKEVIRTUAL, cache.internalName, "put",
+                "(" + cache.keyType.getDescriptor() + OBJECT_DESCRIPTOR + ")V", false));
+
+        return insns;
+    }
+
+    private static AbstractInsnNode pushInt(int value) {
+        if (value <= 5) {
+            return new InsnNode(ICONST_0 + value);
+        }
+
+        // Methods have at most 255 arguments.
+        return new IntInsnNode(value <= Byte.MAX_VALUE ? BIPUSH : SIPUSH, value);
+    }
+
+    /**
+     * Cache of a single method.
+     */
+    private static final class Cache {
+        final SyntheticFields.Field field;
+
+        final String internalName;
+
+        /**
+         * Type of the key, {@code int}, {@code long} or {@link Object}.
+         */
+        final Type keyType;
+
+        Cache(SyntheticFields.Field field, String internalName, Type keyType) {
+            this.field = field;
+            this.internalName = internalName;
+            this.keyType = keyType;
+        }
+    }
+}
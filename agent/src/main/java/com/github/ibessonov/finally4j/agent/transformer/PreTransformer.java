@@ -0,0 +1,236 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.DEBUG;
+
+/**
+ * Transformer that prepares transformed versions of indexed classes from the class path in background threads, before
+ * these classes are requested by the JVM. This way the transformation doesn't happen on the thread that loads the class,
+ * which is usually the thread that matters the most during the startup.
+ * <p>
+ * Only transformed class files are kept, along with digests of the original ones. Their total size is bounded, classes
+ * that don't fit are transformed when they're loaded, as usual.
+ *
+ * @see FinallyIndex
+ * @author ibessonov
+ */
+public class PreTransformer implements ClassFileTransformer {
+    /**
+     * Marker of classes that don't need a transformation.
+     */
+    private static final byte[] NOT_TRANSFORMED = new byte[0];
+
+    /**
+     * Marker of classes that are not prepared yet.
+     */
+    private static final Prepared PENDING = new Prepared(null, null, null);
+
+    /**
+     * Maximal total size of prepared class files in bytes.
+     */
+    private static final long MAX_SIZE = Long.getLong("finally4j.pretransform.size", 16L << 20);
+
+    /**
+     * Classes that have been transformed in advance, or are about to be, by internal class name. Entries are removed
+     * once the class is requested by the JVM, so that it's never prepared after that.
+     */
+    private final ConcurrentHashMap<String, Prepared> prepared = new ConcurrentHashMap<>();
+
+    /**
+     * Total size of prepared class files.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Transformer without a cache, otherwise every prepared class would be kept twice, and the memory bound would be
+     * meaningless.
+     */
+    private final FinallyClassFileTransformer transformer = new FinallyClassFileTransformer(0);
+
+    /**
+     * Creates the transformer and starts the transformation of all indexed classes from the class path.
+     *
+     * @param threads Number of worker threads.
+     */
+    public PreTransformer(int threads) {
+        var counter = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, task -> {
+            var thread = new Thread(task, "finally4j-pretransform-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+
+            return thread;
+        });
+
+        for (String classPathEntry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (!classPathEntry.isEmpty()) {
+                executor.execute(() -> prepare(Path.of(classPathEntry).toAbsolutePath()));
+            }
+        }
+
+        // Threads will terminate once all submitted tasks are completed.
+        executor.shutdown();
+    }
+
+    private void prepare(Path classPathEntry) {
+        try {
+            // Real path is used to match locations of code sources created by the application class loader.
+            classPathEntry = classPathEntry.toRealPath();
+
+            URL location = classPathEntry.toUri().toURL();
+
+            Set<String> index = FinallyIndex.index(location);
+
+            if (index == null) {
+                return;
+            }
+
+            for (String className : index) {
+                prepared.putIfAbsent(className, PENDING);
+            }
+
+            if (Files.isDirectory(classPathEntry)) {
+                for (String className : index) {
+                    Path path = classPathEntry.resolve(className + ".class");
+
+                    if (Files.isRegularFile(path)) {
+                        prepare(location, className, Files.readAllBytes(path));
+                    }
+                }
+            } else {
+                try (var zipFile = new ZipFile(classPathEntry.toFile())) {
+                    for (String className : index) {
+                        ZipEntry entry = zipFile.getEntry(className + ".class");
+
+                        if (entry != null) {
+                            prepare(location, className, zipFile.getInputStream(entry).readAllBytes());
+                        }
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            if (DEBUG) {
+                System.err.println("Failed to pre-transform classes from " + classPathEntry + ": " + e);
+            }
+        }
+    }
+
+    private void prepare(URL location, String className, byte[] classfileBuffer) {
+        if (prepared.get(className) != PENDING) {
+            return;
+        }
+
+        byte[] transformedBuffer;
+
+        try {
+            transformedBuffer = transformer.transform(ClassLoader.getSystemClassLoader(), className, null, null, classfileBuffer);
+        } catch (RuntimeException | Error e) {
+            // Class will be transformed again when it's loaded, and the error will be reported then.
+            return;
+        }
+
+        if (transformedBuffer == null) {
+            transformedBuffer = NOT_TRANSFORMED;
+        } else if (size.addAndGet(transformedBuffer.length) > MAX_SIZE) {
+            size.addAndGet(-transformedBuffer.length);
+
+            prepared.remove(className, PENDING);
+
+            return;
+        }
+
+        // Class could have been requested in the meantime, that's why "replace" is used.
+        if (!prepared.replace(className, PENDING,
+                new Prepared(location, TransformationCache.key(classfileBuffer), transformedBuffer))) {
+            size.addAndGet(-transformedBuffer.length);
+        }
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader, String className, Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+        if (className != null && classBeingRedefined == null) {
+            Prepared prepared = this.prepared.remove(className);
+
+            if (prepared != null) {
+                size.addAndGet(-prepared.size());
+            }
+
+            if (prepared != null && prepared != PENDING && prepared.matches(protectionDomain, classfileBuffer)) {
+                if (DEBUG) {
+                    System.out.println("Using pre-transformed class " + className.replace('/', '.'));
+                }
+
+                return prepared.transformedBuffer == NOT_TRANSFORMED ? null : prepared.transformedBuffer;
+            }
+        }
+
+        return transformer.transform(loader, className, classBeingRedefined, protectionDomain, classfileBuffer);
+    }
+
+    /**
+     * Class transformed in advance.
+     */
+    private static class Prepared {
+        final URL location;
+        /** Digest of the original class file. */
+        final TransformationCache.Key key;
+        final byte[] transformedBuffer;
+
+        Prepared(URL location, TransformationCache.Key key, byte[] transformedBuffer) {
+            this.location = location;
+            this.key = key;
+            this.transformedBuffer = transformedBuffer;
+        }
+
+        /**
+         * @return Size of the prepared class file.
+         */
+        long size() {
+            return transformedBuffer == null ? 0 : transformedBuffer.length;
+        }
+
+        /**
+         * Checks that the class being loaded is the same one that's been prepared. It may differ if several code
+         * sources contain the same class or if other agents modified the class file.
+         */
+        boolean matches(ProtectionDomain protectionDomain, byte[] classfileBuffer) {
+            CodeSource codeSource = protectionDomain == null ? null : protectionDomain.getCodeSource();
+
+            return codeSource != null
+                    && location.equals(codeSource.getLocation())
+                    && key.equals(TransformationCache.key(classfileBuffer));
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer;
+
+import com.github.ibessonov.finally4j.agent.transformer.util.Util;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_INTERFACE;
+import static org.objectweb.asm.Opcodes.ACC_PRIVATE;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_STATIC;
+import static org.objectweb.asm.Opcodes.ACC_SYNTHETIC;
+import static org.objectweb.asm.Opcodes.GETSTATIC;
+import static org.objectweb.asm.Opcodes.PUTSTATIC;
+import static org.objectweb.asm.Opcodes.RETURN;
+
+/**
+ * Synthetic static final fields that are added to the class by injectors, along with the code that initializes them.
+ * Fields are initialized at the start of the static initializer of the class. That's why the static initializer must be
+ * written after all other methods.
+ * <p>
+ * One instance is created per class. It's not thread-safe, methods are always injected by the thread that visits the
+ * class.
+ *
+ * @author ibessonov
+ */
+final class SyntheticFields {
+    private static final String FIELD_NAME_PREFIX = "$finally4j$";
+
+    private final String owner;
+
+    private final boolean isInterface;
+
+    private final List<Field> fields = new ArrayList<>();
+
+    SyntheticFields(String owner, int classAccess) {
+        this.owner = owner;
+        this.isInterface = (classAccess & ACC_INTERFACE) != 0;
+    }
+
+    /**
+     * @return Internal name of the class.
+     */
+    String owner() {
+        return owner;
+    }
+
+    /**
+     * Adds a new field.
+     *
+     * @param name Base name of the field, the actual name is unique.
+     * @param descriptor Descriptor of the field.
+     * @param initializer Code that leaves the value of the field on the stack.
+     * @return New field.
+     */
+    Field add(String name, String descriptor, InsnList initializer) {
+        var field = new Field(owner, FIELD_NAME_PREFIX + name + "$" + fields.size(), descriptor, initializer);
+
+        fields.add(field);
+
+        return field;
+    }
+
+    /**
+     * Inserts initialization of all fields at the start of the static initializer.
+     *
+     * @return {@code true} if the method has been changed.
+     */
+    boolean initialize(MethodNode staticInitializer) {
+        if (fields.isEmpty()) {
+            return false;
+        }
+
+        var insns = new InsnList();
+
+        for (Field field : fields) {
+            insns.add(field.initializer);
+            insns.add(new FieldInsnNode(PUTSTATIC, owner, field.name, field.descriptor));
+        }
+
+        staticInitializer.instructions.insert(insns);
+
+        return true;
+    }
+
+    /**
+     * @return Static initializer for the class that doesn't have one, or {@code null} if it's not needed.
+     */
+    MethodNode staticInitializer() {
+        if (fields.isEmpty()) {
+            return null;
+        }
+
+        var method = new MethodNode(Util.ASM_V, ACC_STATIC, "<clinit>", "()V", null, null);
+        method.instructions.add(new InsnNode(RETURN));
+
+        initialize(method);
+
+        return method;
+    }
+
+    /**
+     * Declares all fields.
+     */
+    void declare(ClassVisitor cv) {
+        int access = (isInterface ? ACC_PUBLIC : ACC_PRIVATE) | ACC_STATIC | ACC_FINAL | ACC_SYNTHETIC;
+
+        for (Field field : fields) {
+            cv.visitField(access, field.name, field.descriptor, null, null).visitEnd();
+        }
+    }
+
+    static final class Field {
+        private final String owner;
+        private final String name;
+        private final String descriptor;
+        private final InsnList initializer;
+
+        private Field(String owner, String name, String descriptor, InsnList initializer) {
+            this.owner = owner;
+            this.name = name;
+            this.descriptor = descriptor;
+            this.initializer = initializer;
+        }
+
+        /**
+         * @return New instruction that loads the field.
+         */
+        FieldInsnNode load() {
+            return new FieldInsnNode(GETSTATIC, owner, name, descriptor);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer;
+
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.github.ibessonov.finally4j.agent.transformer.util.Util.DEBUG;
+
+/**
+ * Cache of transformation results, keyed by the SHA-256 digest of the original class file. The same class file is
+ * often loaded by many class loaders (application server deployments, test forks, OSGi bundles), and there's no reason
+ * to transform it more than once. It assumes that identical class files see identical class hierarchies, which is true
+ * for class loaders that load the same libraries.
+ * <p>
+ * The cache is split into independently locked segments. Each segment is an LRU map with bounded total weight, where
+ * the weight of an entry is the size of the transformed class file plus a fixed overhead.
+ * <p>
+ * Hits, misses and evictions of all caches are counted together, see {@link TransformationCacheMXBean}. The MXBean is
+ * only registered with {@code -Dfinally4j.jmx=true}.
+ *
+ * @author ibessonov
+ */
+final class TransformationCache {
+    /**
+     * Cached result for class files that don't need a transformation.
+     */
+    static final byte[] NOT_TRANSFORMED = new byte[0];
+
+    /**
+     * Approximate memory footprint of a single entry without the transformed class file.
+     */
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private static final int SEGMENTS = 16;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private static final String OBJECT_NAME = "com.github.ibessonov.finally4j:type=TransformationCache";
+
+    /**
+     * Whether statistics are registered in the platform MBean server. Opt-in, because the MBean server initializes
+     * {@code java.util.logging.LogManager}, and the agent may do it before the application installs its own one.
+     */
+    private static final boolean JMX = Boolean.getBoolean("finally4j.jmx");
+
+    private static final Statistics STATISTICS = new Statistics();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * @param maxWeight Maximal total weight of all entries, in bytes.
+     */
+    TransformationCache(long maxWeight) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxWeight / SEGMENTS);
+        }
+    }
+
+    /**
+     * @return Cache key for the class file.
+     */
+    static Key key(byte[] classfileBuffer) {
+        return new Key(DIGEST.get().digest(classfileBuffer));
+    }
+
+    /**
+     * @return Transformed class file, {@link #NOT_TRANSFORMED} if transformation is not required, or {@code null} if
+     *      there's no cached result.
+     */
+    byte[] get(Key key) {
+        Segment segment = segment(key);
+
+        byte[] result;
+        synchronized (segment) {
+            result = segment.get(key);
+        }
+
+        (result == null ? STATISTICS.misses : STATISTICS.hits).increment();
+
+        return result;
+    }
+
+    /**
+     * Caches the result of the transformation.
+     *
+     * @param transformedBuffer Transformed class file, or {@code null} if transformation is not required.
+     */
+    void put(Key key, byte[] transformedBuffer) {
+        byte[] value = transformedBuffer == null ? NOT_TRANSFORMED : transformedBuffer;
+
+        Segment segment = segment(key);
+
+        synchronized (segment) {
+            byte[] oldValue = segment.put(key, value);
+
+            if (oldValue != null) {
+                segment.weight -= weight(oldValue);
+            }
+
+            segment.weight += weight(value);
+
+            // Access order iteration, the eldest entries go first.
+            Iterator<byte[]> iterator = segment.values().iterator();
+            while (segment.weight > segment.maxWeight && iterator.hasNext()) {
+                segment.weight -= weight(iterator.next());
+                iterator.remove();
+
+                STATISTICS.evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Registers combined statistics in the platform MBean server if {@code -Dfinally4j.jmx=true} is set, and prints them
+     * at shutdown in debug mode. Only the first call does anything. Registration happens in a background thread, because
+     * the MBean server loads a lot of classes, and callers are usually in the middle of loading a class themselves.
+     */
+    static void register() {
+        if (!STATISTICS.registered.compareAndSet(false, true)) {
+            return;
+        }
+
+        if (DEBUG) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(STATISTICS)));
+        }
+
+        if (JMX) {
+            var thread = new Thread(STATISTICS::register, "finally4j-jmx");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private Segment segment(Key key) {
+        return segments[(key.hashCode >>> 16) & (SEGMENTS - 1)];
+    }
+
+    private static long weight(byte[] value) {
+        return ENTRY_OVERHEAD + value.length;
+    }
+
+    /**
+     * Class file digest.
+     */
+    static final class Key {
+        private final byte[] digest;
+
+        private final int hashCode;
+
+        private Key(byte[] digest) {
+            this.digest = digest;
+
+            // Digest bytes are uniformly distributed, any 4 of them make a good hash code.
+            hashCode = (digest[0] & 0xFF) << 24 | (digest[1] & 0xFF) << 16 | (digest[2] & 0xFF) << 8 | (digest[3] & 0xFF);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Combined statistics of all caches.
+     */
+    private static final class Statistics implements TransformationCacheMXBean {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+
+        final AtomicBoolean registered = new AtomicBoolean();
+
+        @Override
+        public long getHits() {
+            return hits.sum();
+        }
+
+        @Override
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        @Override
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        /**
+         * Failures are ignored, statistics are not essential.
+         */
+        void register() {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+            } catch (JMException | SecurityException e) {
+                // No-op.
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "TransformationCache [hits=" + getHits() + ", misses=" + getMisses()
+                    + ", evictions=" + getEvictions() + "]";
+        }
+    }
+
+    /**
+     * Single segment of the cache, guarded by its own monitor.
+     */
+    private static final class Segment extends LinkedHashMap<Key, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        final long maxWeight;
+
+        long weight;
+
+        Segment(long maxWeight) {
+            super(16, 0.75f, true);
+
+            this.maxWeight = maxWeight;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer;
+
+/**
+ * Management interface of transformation caches. Statistics of all caches are combined and registered in the platform
+ * MBean server once, with the name {@code com.github.ibessonov.finally4j:type=TransformationCache}.
+ *
+ * @author ibessonov
+ */
+public interface TransformationCacheMXBean {
+    /**
+     * @return Number of class files that have been found in the cache.
+     */
+    long getHits();
+
+    /**
+     * @return Number of class files that haven't been found in the cache, and have been transformed.
+     */
+    long getMisses();
+
+    /**
+     * @return Number of results evicted from the cache to keep it under the size limit.
+     */
+    long getEvictions();
+}
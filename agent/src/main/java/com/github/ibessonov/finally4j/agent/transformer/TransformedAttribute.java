@@ -0,0 +1,39 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer;
+
+import com.github.ibessonov.finally4j.agent.transformer.util.Constants;
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ByteVector;
+import org.objectweb.asm.ClassWriter;
+
+/**
+ * Empty class file attribute that marks transformed classes. JVM ignores unknown attributes, while the agent uses it to
+ * skip classes that have been transformed offline, so that they can be loaded from a CDS archive.
+ *
+ * @see com.github.ibessonov.finally4j.agent.transformer.util.ClassFileScanner#isTransformed(byte[])
+ * @author ibessonov
+ */
+final class TransformedAttribute extends Attribute {
+    TransformedAttribute() {
+        super(Constants.TRANSFORMED_ATTRIBUTE_NAME);
+    }
+
+    @Override
+    protected ByteVector write(ClassWriter classWriter, byte[] code, int codeLength, int maxStack, int maxLocals) {
+        return new ByteVector(0);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer.code;
+
+import com.github.ibessonov.finally4j.agent.transformer.util.LabelIndex;
+import com.github.ibessonov.finally4j.agent.transformer.util.Replacer;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.LabelNode;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Per-thread state for the analysis of a single method. Label indexes, blocks, scopes, tries and scratch lists are
+ * reset and reused instead of being allocated for every method, so that transformation doesn't generate garbage
+ * proportional to the number of transformed methods.
+ * <p>
+ * Usage: {@link #acquire()} before the analysis of a method and {@link #release()} after it. Objects obtained from the
+ * arena must not be used after it's released. If the arena of the current thread is already in use, for example when
+ * a class is transformed while another one is being analyzed on the same thread, a new unpooled arena is returned.
+ *
+ * @author ibessonov
+ */
+public final class AnalysisArena {
+    /**
+     * Arenas that grew bigger than that are not kept after release, so that a single huge method doesn't pin its
+     * memory forever.
+     */
+    private static final int MAX_POOLED_OBJECTS = 1 << 12;
+
+    private static final ThreadLocal<AnalysisArena> ARENA = new ThreadLocal<>();
+
+    /** Orders tries from the innermost to the outermost. */
+    static final Comparator<Try> TRY_ORDER = Comparator
+            .comparingInt((Try t) -> t.finallyScope.first().endIndex() - t.tryScope.first().startIndex())
+            .thenComparingInt(t -> t.tryScope.first().startIndex());
+
+    /** Orders ranges by their handler and then by their start. */
+    final Comparator<TryCatchRange> rangeOrder;
+
+    private final boolean pooled;
+
+    private boolean inUse;
+
+    private final LabelIndex labelIndex = new LabelIndex();
+
+    private final Replacer replacer = new Replacer();
+
+    private final Pool<Block> blocks;
+    private final Pool<Scope> scopes = new Pool<>(Scope::new, Scope::reset);
+    private final Pool<Try> tries = new Pool<>(() -> new Try(new Scope(), new Scope()), Try::reset);
+    private final Pool<TryCatchRange> ranges = new Pool<>(TryCatchRange::new, range -> range.init(null, null, null));
+    private final Pool<CatchGroup> catchGroups = new Pool<>(CatchGroup::new, group -> group.init(0, 0));
+
+    /* Scratch lists of "TryList#init". */
+    final List<TryCatchRange> regularRanges = new ArrayList<>();
+    final List<TryCatchRange> rawDefaultRanges = new ArrayList<>();
+    final List<TryCatchRange> defaultRanges = new ArrayList<>();
+    final List<CatchGroup> catchGroupList = new ArrayList<>();
+    final List<Try> allTries = new ArrayList<>();
+    final List<Try> outerTries = new ArrayList<>();
+
+    private final List<LabelNode> jumpLabels = new ArrayList<>();
+
+    private AnalysisArena(boolean pooled) {
+        this.pooled = pooled;
+
+        blocks = new Pool<>(() -> new Block(labelIndex), block -> block.init(null, null));
+
+        rangeOrder = Comparator
+                .comparingInt((TryCatchRange r) -> labelIndex.get(r.handler))
+                .thenComparingInt(r -> labelIndex.get(r.start));
+    }
+
+    /**
+     * @return Arena of the current thread, or a new one if it's already in use.
+     */
+    public static AnalysisArena acquire() {
+        AnalysisArena arena = ARENA.get();
+
+        if (arena == null) {
+            arena = new AnalysisArena(true);
+
+            ARENA.set(arena);
+        }
+
+        if (arena.inUse) {
+            return new AnalysisArena(false);
+        }
+
+        arena.inUse = true;
+
+        return arena;
+    }
+
+    /**
+     * Resets the state of the arena and makes it available for the next method.
+     */
+    public void release() {
+        if (!pooled) {
+            return;
+        }
+
+        labelIndex.clear();
+        replacer.reset(null, null, 'V');
+
+        int pooledObjects = blocks.reset() + scopes.reset() + tries.reset() + ranges.reset() + catchGroups.reset();
+
+        regularRanges.clear();
+        rawDefaultRanges.clear();
+        defaultRanges.clear();
+        catchGroupList.clear();
+        allTries.clear();
+        outerTries.clear();
+        jumpLabels.clear();
+
+        inUse = false;
+
+        if (pooledObjects > MAX_POOLED_OBJECTS) {
+            ARENA.remove();
+        }
+    }
+
+    /**
+     * @return Indexes of labels of the analyzed method.
+     */
+    public LabelIndex labelIndex() {
+        return labelIndex;
+    }
+
+    /**
+     * @return Replacer for the analyzed method.
+     */
+    public Replacer replacer(InsnList instructions, Runnable methodTransformedClosure, char returnType) {
+        replacer.reset(instructions, methodTransformedClosure, returnType);
+
+        return replacer;
+    }
+
+    /**
+     * @return Empty scratch list of labels.
+     */
+    public List<LabelNode> jumpLabels() {
+        jumpLabels.clear();
+
+        return jumpLabels;
+    }
+
+    public Block block(LabelNode start, LabelNode end) {
+        return blocks.next().init(start, end);
+    }
+
+    Scope scope() {
+        return scopes.next();
+    }
+
+    Try newTry() {
+        return tries.next();
+    }
+
+    TryCatchRange range(LabelNode start, LabelNode end, LabelNode handler) {
+        return ranges.next().init(start, end, handler);
+    }
+
+    CatchGroup catchGroup(int from, int to) {
+        return catchGroups.next().init(from, to);
+    }
+
+    /**
+     * Objects of a single type, the first {@code used} of them are currently in use. Objects are reset when they're
+     * returned to the pool, so that the pool doesn't keep the instructions of analyzed methods reachable.
+     */
+    private static final class Pool<T> {
+        private final Supplier<T> factory;
+
+        private final Consumer<T> reset;
+
+        private final List<T> objects = new ArrayList<>();
+
+        private int used;
+
+        Pool(Supplier<T> factory, Consumer<T> reset) {
+            this.factory = factory;
+            this.reset = reset;
+        }
+
+        T next() {
+            if (used == objects.size()) {
+                objects.add(factory.get());
+            }
+
+            return objects.get(used++);
+        }
+
+        /**
+         * @return Number of pooled objects.
+         */
+        int reset() {
+            for (int i = 0; i < used; i++) {
+                reset.accept(objects.get(i));
+            }
+
+            used = 0;
+
+            return objects.size();
+        }
+    }
+}
@@ -1,55 +1,54 @@
 package com.github.ibessonov.finally4j.agent.transformer.code;
 
-import com.github.ibessonov.finally4j.agent.transformer.FinallyMethodNode;
+import com.github.ibessonov.finally4j.agent.transformer.util.LabelIndex;
 import org.objectweb.asm.tree.LabelNode;
-import org.objectweb.asm.tree.TryCatchBlockNode;
 
-import java.util.List;
 import java.util.Objects;
 
 /**
- * This class represents a code located between two labels.
+ * This class represents a code located between two labels. Instances are pooled by {@link AnalysisArena} and must not
+ * be used after the arena is released.
  *
  * @author ibessonov
  */
 public final class Block {
-    public static boolean startsWith(List<Block> blocks, List<Block> prefix) {
-        if (blocks.size() < prefix.size()) {
-            return false;
-        }
-
-        return blocks.subList(0, prefix.size()).equals(prefix);
-    }
-
-    /** Method that has the block. */
-    private final FinallyMethodNode methodNode;
+    /** Label indexes of the method that has the block. */
+    private final LabelIndex labelIdx;
 
     /**
      * Start label, inclusive, non-null.
      */
-    public final LabelNode start;
+    public LabelNode start;
 
     /**
      * End label, exclusive, nullable.
      */
-    public final LabelNode end;
+    public LabelNode end;
+
+    Block(LabelIndex labelIdx) {
+        this.labelIdx = labelIdx;
+    }
 
-    public Block(FinallyMethodNode methodNode, LabelNode start, LabelNode end) {
-        this.methodNode = methodNode;
+    Block init(LabelNode start, LabelNode end) {
         this.start = start;
         this.end = end;
-    }
 
-    public Block(FinallyMethodNode methodNode, TryCatchBlockNode node) {
-        this(methodNode, node.start, node.end);
+        return this;
     }
 
     public int startIndex() {
-        return methodNode.labelIdx.get(start);
+        return labelIdx.get(start);
     }
 
     public int endIndex() {
-        return methodNode.labelIdx.get(end);
+        return labelIdx.get(end);
+    }
+
+    /**
+     * @return {@code true} if both blocks have the same start and end labels.
+     */
+    public boolean sameBounds(LabelNode start, LabelNode end) {
+        return this.start == start && this.end == end;
     }
 
     @Override
@@ -69,8 +68,8 @@ public final class Block {
 
     @Override
     public String toString() {
-        int startIndex = methodNode.labelIdx.get(start);
-        Object endIndex = end == null ? "end" : methodNode.labelIdx.get(end);
+        int startIndex = labelIdx.get(start);
+        Object endIndex = end == null ? "end" : labelIdx.get(end);
 
         return "[" + startIndex + ", " + endIndex + ")";
     }
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer.code;
+
+import org.objectweb.asm.tree.LabelNode;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Catch blocks that share the same protected ranges, i.e. belong to the same {@code try} statement. Used by
+ * {@link TryList}. Instances are pooled by {@link AnalysisArena}.
+ *
+ * @author ibessonov
+ */
+final class CatchGroup {
+    /** Protected ranges, as a sublist of {@link AnalysisArena#regularRanges}, inclusive. */
+    int from;
+
+    /** Protected ranges, as a sublist of {@link AnalysisArena#regularRanges}, exclusive. */
+    int to;
+
+    /** Handler labels, sorted by their indexes. */
+    final List<LabelNode> handlers = new ArrayList<>();
+
+    /** Whether the group has already been matched with a finally block. */
+    boolean used;
+
+    CatchGroup init(int from, int to) {
+        this.from = from;
+        this.to = to;
+        this.used = false;
+
+        handlers.clear();
+
+        return this;
+    }
+}
@@ -21,6 +21,7 @@ import java.util.List;
 /**
  * Code scope is a list of code blocks that could represent either a try block (without finally blocks included),
  * a catch block (without finally block included) or a finally block. Used as a part of {@link Try} implementation.
+ * Instances are pooled by {@link AnalysisArena}.
  *
  * @author ibessonov
  */
@@ -35,6 +36,16 @@ public class Scope {
      */
     public final List<Try> nested = new ArrayList<>();
 
+    Scope() {
+    }
+
+    Scope reset() {
+        blocks.clear();
+        nested.clear();
+
+        return this;
+    }
+
     /**
      * Returns {@code true} if {@code aTry} should belong to {@link #nested} list, meaning that the entirity of
      * {@code aTry} is located within current scope.
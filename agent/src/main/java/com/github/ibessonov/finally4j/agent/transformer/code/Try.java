@@ -19,7 +19,7 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * A single full try-catch-finally block.
+ * A single full try-catch-finally block. Instances are pooled by {@link AnalysisArena}.
  *
  * @author ibessonov
  */
@@ -27,7 +27,7 @@ public class Try {
     /**
      * Scope of the {@code try} code blocks.
      */
-    public final Scope tryScope = new Scope();
+    public final Scope tryScope;
 
     /**
      * Scopes of {@code catch} code blocks.
@@ -37,7 +37,20 @@ public class Try {
     /**
      * Scope of the {@code finally} code blocks.
      */
-    public final Scope finallyScope = new Scope();
+    public final Scope finallyScope;
+
+    Try(Scope tryScope, Scope finallyScope) {
+        this.tryScope = tryScope;
+        this.finallyScope = finallyScope;
+    }
+
+    Try reset() {
+        tryScope.reset();
+        catchScopes.clear();
+        finallyScope.reset();
+
+        return this;
+    }
 
     /**
      * Pretty string representation of the block.
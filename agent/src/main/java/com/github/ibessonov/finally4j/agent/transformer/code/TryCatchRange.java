@@ -0,0 +1,38 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer.code;
+
+import org.objectweb.asm.tree.LabelNode;
+
+/**
+ * Normalized copy of a {@code TryCatchBlockNode}, used by {@link TryList}. Instances are pooled by
+ * {@link AnalysisArena}.
+ *
+ * @author ibessonov
+ */
+final class TryCatchRange {
+    LabelNode start;
+    LabelNode end;
+    LabelNode handler;
+
+    TryCatchRange init(LabelNode start, LabelNode end, LabelNode handler) {
+        this.start = start;
+        this.end = end;
+        this.handler = handler;
+
+        return this;
+    }
+}
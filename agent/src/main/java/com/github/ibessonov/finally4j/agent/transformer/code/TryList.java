@@ -15,176 +15,214 @@
  */
 package com.github.ibessonov.finally4j.agent.transformer.code;
 
-import com.github.ibessonov.finally4j.agent.transformer.FinallyMethodNode;
+import com.github.ibessonov.finally4j.agent.transformer.util.LabelIndex;
 import com.github.ibessonov.finally4j.agent.transformer.util.Util;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.MethodNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 
-import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.Optional;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
-
-import static com.github.ibessonov.finally4j.agent.transformer.code.Block.startsWith;
-import static java.util.Comparator.comparingInt;
-import static java.util.stream.Collectors.groupingBy;
-import static java.util.stream.Collectors.mapping;
-import static java.util.stream.Collectors.toList;
-import static java.util.stream.Stream.concat;
+
+import static org.objectweb.asm.Opcodes.GOTO;
 
 public class TryList {
-    public static List<Try> init(FinallyMethodNode methodNode) {
-        var labelIdx = methodNode.labelIdx;
+    /**
+     * Reconstructs {@code try/catch/finally} statements of the method.
+     *
+     * @return List of outermost statements, owned by the arena.
+     */
+    public static List<Try> init(MethodNode methodNode, AnalysisArena arena) {
+        LabelIndex labelIdx = arena.labelIndex();
 
-        // For some reason, there might be an intersection between start/end scope and the handler.
-        // Here I normalize such blocks by moving end to the handler position.
-        var tryCatchBlocks = methodNode.tryCatchBlocks.stream()
-                .filter(Util::validBlock)
-                .map(b -> labelIdx.get(b.end) <= labelIdx.get(b.handler) ? b
-                        : new TryCatchBlockNode(b.start, b.handler, b.handler, b.type)
-                ).collect(toList());
+        // "TryCatchRange" instances that represent catch blocks and finally blocks.
+        List<TryCatchRange> regularRanges = arena.regularRanges;
+        List<TryCatchRange> defaultRanges = arena.rawDefaultRanges;
 
-        // All "TryCatchBlockNode" instances that represent catch blocks, grouped by handler labels.
-        var blocksGroupedByHandler = tryCatchBlocks.stream()
-                .filter(Util::regularCatch)
-                .collect(groupingBy(block -> block.handler));
+        for (int i = 0; i < methodNode.tryCatchBlocks.size(); i++) {
+            TryCatchBlockNode block = methodNode.tryCatchBlocks.get(i);
+
+            if (!Util.validBlock(block)) {
+                continue;
+            }
+
+            // For some reason, there might be an intersection between start/end scope and the handler.
+            // Here I normalize such blocks by moving end to the handler position.
+            LabelNode end = labelIdx.get(block.end) <= labelIdx.get(block.handler) ? block.end : block.handler;
+
+            TryCatchRange range = arena.range(block.start, end, block.handler);
+
+            (Util.regularCatch(block) ? regularRanges : defaultRanges).add(range);
+        }
 
-        // List of all "TryCatchBlockNode" instances, for which the end label of the block matches the handler label.
-        var mergedTryCatchBlocks = tryCatchBlocks.stream()
-                .filter(Util::regularCatch)
-                .filter(b -> b.end == b.handler)
-                .collect(toList());
+        defaultRanges = splitDefaultRanges(arena);
 
-        // All "TryCatchBlockNode" instances that represent finally blocks, grouped by handler labels.
-        var blocksGroupedByDefaultHandler = tryCatchBlocks.stream()
-                .filter(Util::defaultCatch)
-                .flatMap(block -> splitTryCatchBlockNode(mergedTryCatchBlocks, block, labelIdx))
-                .collect(groupingBy(block -> block.handler));
+        // Sort ranges by handlers and then by their starts. This way ranges of the same handler go together.
+        regularRanges.sort(arena.rangeOrder);
+        defaultRanges.sort(arena.rangeOrder);
 
-        // Sort values in "blocksGroupedByHandler" and "blocksGroupedByDefaultHandler" to simplify matching them.
-        concat(blocksGroupedByHandler.values().stream(), blocksGroupedByDefaultHandler.values().stream())
-                .forEach(list -> list.sort(comparingInt(node -> labelIdx.get(node.start))));
+        // Multi-catch clauses have a range per exception type, with the same bounds and the same handler.
+        removeDuplicates(regularRanges);
 
-        // Maps "try" sections to lists of corresponding "catch" sections. Without finally blocks.
-        var catchBlocksMap = blocksGroupedByHandler.entrySet().stream().collect(
-                groupingBy(entry -> entry.getValue().stream().map(node -> new Block(methodNode, node)).collect(toList()),
-                        mapping(Map.Entry::getKey, toList()))
-        );
+        // Groups of catch blocks that belong to the same "try" sections. Without finally blocks.
+        List<CatchGroup> catchGroups = arena.catchGroupList;
 
-        List<Try> tempTryList = new ArrayList<>();
+        for (int from = 0, to; from < regularRanges.size(); from = to) {
+            to = groupEnd(regularRanges, from);
 
-        for (Map.Entry<LabelNode, List<TryCatchBlockNode>> entry : blocksGroupedByDefaultHandler.entrySet()) {
-            List<TryCatchBlockNode> list = entry.getValue();
+            LabelNode handler = regularRanges.get(from).handler;
 
-            List<Block> blocks = list.stream().map(node -> new Block(methodNode, node.start, node.end)).collect(toList());
+            CatchGroup group = null;
 
-            LabelNode nextLabel = Util.findTheEndOfFinally(labelIdx, entry.getKey(), true);
+            for (int i = 0; i < catchGroups.size(); i++) {
+                CatchGroup catchGroup = catchGroups.get(i);
 
-            boolean found = false;
+                if (sameRanges(regularRanges, from, to, catchGroup.from, catchGroup.to)) {
+                    group = catchGroup;
 
-            for (Map.Entry<List<Block>, List<LabelNode>> catchBlocksMapEntry : catchBlocksMap.entrySet()) {
-                List<Block> prefix = catchBlocksMapEntry.getKey();
+                    break;
+                }
+            }
 
-                if (startsWith(blocks, prefix)) {
-                    List<LabelNode> value = catchBlocksMapEntry.getValue();
-                    value.sort(comparingInt(label -> labelIdx.get(label)));
+            if (group == null) {
+                group = arena.catchGroup(from, to);
 
-                    Try newTry = new Try();
+                catchGroups.add(group);
+            }
 
-                    newTry.tryScope.blocks.addAll(blocks.subList(0, prefix.size()));
+            // Groups are sorted by handlers, so handlers are added in the right order.
+            group.handlers.add(handler);
+        }
 
-                    List<Block> allCatchSegments = blocks.subList(prefix.size(), blocks.size());
+        List<Try> tempTryList = arena.allTries;
 
-                    assert value.get(0) == allCatchSegments.get(0).start;
-                    Iterator<LabelNode> valueIterator = value.iterator();
-                    valueIterator.next();
+        for (int from = 0, to; from < defaultRanges.size(); from = to) {
+            to = groupEnd(defaultRanges, from);
 
-                    LabelNode nextCatch = valueIterator.hasNext() ? valueIterator.next() : null;
-                    Scope cur = new Scope();
-                    for (Block smallCatchSegment : allCatchSegments) {
-                        if (smallCatchSegment.start == nextCatch) {
-                            newTry.catchScopes.add(cur);
+            LabelNode finallyHandler = defaultRanges.get(from).handler;
 
-                            nextCatch = valueIterator.hasNext() ? valueIterator.next() : null;
-                            cur = new Scope();
-                        }
+            LabelNode nextLabel = Util.findTheEndOfFinally(arena, finallyHandler, true);
 
-                        cur.blocks.add(smallCatchSegment);
-                    }
-                    newTry.catchScopes.add(cur);
+            Try newTry = arena.newTry();
 
-                    newTry.finallyScope.blocks.add(new Block(methodNode, entry.getKey(), nextLabel));
+            CatchGroup group = null;
 
-                    catchBlocksMap.remove(prefix);
+            for (int i = 0; i < catchGroups.size(); i++) {
+                CatchGroup catchGroup = catchGroups.get(i);
 
-                    tempTryList.add(newTry);
+                if (!catchGroup.used && startsWith(defaultRanges, from, to, regularRanges, catchGroup)
+                        && !nestedCatches(arena, defaultRanges, from, to, catchGroup)) {
+                    group = catchGroup;
 
-                    found = true;
                     break;
                 }
             }
 
-            if (!found) {
-                Try newTry = new Try();
+            if (group != null) {
+                int prefixEnd = from + (group.to - group.from);
 
-                // No catch blocks.
-                newTry.tryScope.blocks.addAll(blocks);
-                newTry.finallyScope.blocks.add(new Block(methodNode, entry.getKey(), nextLabel));
+                for (int i = from; i < prefixEnd; i++) {
+                    newTry.tryScope.blocks.add(block(arena, defaultRanges.get(i)));
+                }
 
-                tempTryList.add(newTry);
+                List<LabelNode> handlers = group.handlers;
 
-//                catchBlocksMap.put(blocks, List.of(finallyCatchBlockX));
+                assert handlers.get(0) == defaultRanges.get(prefixEnd).start;
+                int handlerIdx = 1;
+
+                LabelNode nextCatch = handlerIdx < handlers.size() ? handlers.get(handlerIdx++) : null;
+                Scope cur = arena.scope();
+                for (int i = prefixEnd; i < to; i++) {
+                    TryCatchRange smallCatchSegment = defaultRanges.get(i);
+
+                    LabelNode start = smallCatchSegment.start;
+
+                    // Compiler merges adjacent ranges, so a single range may cover the end of one catch block and the
+                    // beginning of the next one.
+                    while (nextCatch != null && labelIdx.get(start) <= labelIdx.get(nextCatch)
+                            && labelIdx.get(nextCatch) < labelIdx.get(smallCatchSegment.end)) {
+                        if (start != nextCatch) {
+                            cur.blocks.add(arena.block(start, nextCatch));
+                        }
+
+                        newTry.catchScopes.add(cur);
+
+                        start = nextCatch;
+                        nextCatch = handlerIdx < handlers.size() ? handlers.get(handlerIdx++) : null;
+                        cur = arena.scope();
+                    }
+
+                    cur.blocks.add(arena.block(start, smallCatchSegment.end));
+                }
+                newTry.catchScopes.add(cur);
+
+                group.used = true;
+            } else {
+                // No catch blocks.
+                for (int i = from; i < to; i++) {
+                    newTry.tryScope.blocks.add(block(arena, defaultRanges.get(i)));
+                }
             }
+
+            newTry.finallyScope.blocks.add(arena.block(finallyHandler, nextLabel));
+
+            tempTryList.add(newTry);
         }
 
-//        // catchBlocksMap now has all try-catch blocks without finally. They are irrelevant.
-//        // Or are they? What if there's a try-finally inside of catch block? That would be bad. Or would it?
-//        for (Map.Entry<List<Block>, List<LabelNode>> e : catchBlocksMap.entrySet()) {
-//            System.out.println("  Unaccounted try-catch: " + e.getKey() + " -> " + e.getValue().stream().map(c -> getLabelIndex(c.start)).collect(toList()));
-//            for (Block tryBlock : e.getKey()) {
-//                AbstractInsnNode nextInstruction = findNextInstruction(tryBlock.end);
-//                if (nextInstruction.getOpcode() == GOTO) {
-//                    System.out.println("  End label is most likely " + getLabelIndex(((JumpInsnNode) nextInstruction).label));
-//                }
-//            }
-//        }
-
-        tempTryList.sort(
-                comparingInt((Try t) -> t.finallyScope.first().endIndex() - t.tryScope.first().startIndex())
-                        .thenComparingInt(t -> t.tryScope.first().startIndex())
-        );
-
-        return IntStream.range(0, tempTryList.size()).mapToObj(i -> {
+        // Unused catch groups now represent try-catch blocks without finally. They are irrelevant.
+        // Or are they? What if there's a try-finally inside of catch block? That would be bad. Or would it?
+
+        tempTryList.sort(AnalysisArena.TRY_ORDER);
+
+        List<Try> outerTries = arena.outerTries;
+
+        for (int i = 0; i < tempTryList.size(); i++) {
             Try first = tempTryList.get(i);
 
-            for (Try nextTry : tempTryList.subList(i + 1, tempTryList.size())) {
-                if (nextTry.tryScope.surrounds(first)) {
-                    nextTry.tryScope.nested.add(first);
+            if (!nest(first, tempTryList, i + 1)) {
+                outerTries.add(first);
+            }
+        }
 
-                    return Optional.<Try>empty();
-                }
+        return outerTries;
+    }
 
-                for (Scope catchScope : nextTry.catchScopes) {
-                    if (catchScope.surrounds(first)) {
-                        catchScope.nested.add(first);
+    /**
+     * Adds the try to the nested list of the closest scope that surrounds it.
+     *
+     * @return {@code false} if there's no such scope.
+     */
+    private static boolean nest(Try first, List<Try> tryList, int from) {
+        for (int i = from; i < tryList.size(); i++) {
+            Try nextTry = tryList.get(i);
 
-                        return Optional.<Try>empty();
-                    }
-                }
+            if (nextTry.tryScope.surrounds(first)) {
+                nextTry.tryScope.nested.add(first);
 
-                if (nextTry.finallyScope.surrounds(first)) {
-                    nextTry.finallyScope.nested.add(first);
+                return true;
+            }
 
-                    return Optional.<Try>empty();
+            for (int j = 0; j < nextTry.catchScopes.size(); j++) {
+                Scope catchScope = nextTry.catchScopes.get(j);
+
+                if (catchScope.surrounds(first)) {
+                    catchScope.nested.add(first);
+
+                    return true;
                 }
             }
 
-            return Optional.of(first);
-        }).flatMap(Optional::stream).collect(toList());
+            if (nextTry.finallyScope.surrounds(first)) {
+                nextTry.finallyScope.nested.add(first);
+
+                return true;
+            }
+        }
+
+        return false;
     }
+
     /**
      * Splits "merged" default catch blocks apart. For example, in this case: <pre>
      * try {
@@ -197,24 +235,205 @@ public class TryList {
      * </pre>
      * the block for {@code finally} handler would include both {@code try} and {@code catch} sections, but we want to
      * process them separately.
+     *
+     * @return Split default ranges.
+     */
+    private static List<TryCatchRange> splitDefaultRanges(AnalysisArena arena) {
+        LabelIndex labelIdx = arena.labelIndex();
+
+        List<TryCatchRange> result = arena.defaultRanges;
+
+        for (int i = 0; i < arena.rawDefaultRanges.size(); i++) {
+            TryCatchRange block = arena.rawDefaultRanges.get(i);
+
+            TryCatchRange merged = null;
+
+            boolean exact = false;
+
+            // Regular catch blocks, for which the end label of the block matches the handler label. Catch-only try
+            // statements nested in the try block may also start at the same label, but their ranges are shorter than
+            // the range of the try block itself, so the longest one wins.
+            for (int j = 0; j < arena.regularRanges.size(); j++) {
+                TryCatchRange b = arena.regularRanges.get(j);
+
+                if (b.start == block.start && b.end == block.end) {
+                    exact = true;
+                }
+
+                if (b.end == b.handler && b.start == block.start && labelIdx.get(b.end) < labelIdx.get(block.end)
+                        && (merged == null || labelIdx.get(merged.end) < labelIdx.get(b.end))) {
+                    merged = b;
+                }
+            }
+
+            // Range of the try block is exactly the protected range of its catch blocks, there's nothing to split.
+            // Catch blocks of a nested try statement that starts at the same label don't need a split either.
+            if (merged == null || exact || enclosed(arena, merged, block)) {
+                result.add(block);
+            } else {
+                result.add(arena.range(block.start, merged.end, block.handler));
+                //TODO Check if I need a recursion here. It depends on the exception variable index in catch
+                // blocks that belong to the same try. It's probably the same for all of them, but who knows.
+                result.add(arena.range(merged.end, block.end, block.handler));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return {@code true} if there's a range that starts at the same label as {@code block} and ends between the ends
+     *      of {@code merged} and {@code block}, which means that {@code merged} belongs to a nested try statement.
      */
-    private static Stream<TryCatchBlockNode> splitTryCatchBlockNode(
-            List<TryCatchBlockNode> mergedTryCatchBlocks,
-            TryCatchBlockNode block,
-            Map<LabelNode, Integer> labelIdx
-    ) {
-        return mergedTryCatchBlocks.stream()
-                .filter(b -> b.start == block.start && labelIdx.get(b.end) < labelIdx.get(block.end))
-                //TODO I need a good comment about why there cannot be two blocks that satisfy the condition.
-                // Seems arbitrary, you know.
-                .findAny()
-                .map(b -> concat(
-                        Stream.of(new TryCatchBlockNode(block.start, b.end, block.handler, block.type)),
-                        //TODO Check if I need a recursion here. It depends on the exception variable index in catch
-                        // blocks that belong to the same try. It's probably the same for all of them, but who knows.
-                        Stream.of(new TryCatchBlockNode(b.end, block.end, block.handler, block.type))
-                )).orElse(
-                        Stream.of(block)
-                );
+    private static boolean enclosed(AnalysisArena arena, TryCatchRange merged, TryCatchRange block) {
+        return enclosed(arena, arena.regularRanges, merged, block)
+                || enclosed(arena, arena.rawDefaultRanges, merged, block);
+    }
+
+    private static boolean enclosed(AnalysisArena arena, List<TryCatchRange> ranges, TryCatchRange merged,
+                                    TryCatchRange block) {
+        LabelIndex labelIdx = arena.labelIndex();
+
+        for (int i = 0; i < ranges.size(); i++) {
+            TryCatchRange range = ranges.get(i);
+
+            if (range.start == block.start && labelIdx.get(merged.end) < labelIdx.get(range.end)
+                    && labelIdx.get(range.end) < labelIdx.get(block.end)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Removes adjacent ranges that are equal to their predecessors.
+     */
+    private static void removeDuplicates(List<TryCatchRange> ranges) {
+        int size = 0;
+
+        for (int i = 0; i < ranges.size(); i++) {
+            TryCatchRange range = ranges.get(i);
+
+            if (size > 0 && sameBounds(ranges.get(size - 1), range) && ranges.get(size - 1).handler == range.handler) {
+                continue;
+            }
+
+            ranges.set(size++, range);
+        }
+
+        ranges.subList(size, ranges.size()).clear();
+    }
+
+    /**
+     * @return Exclusive end of the group of sorted ranges that share the handler of the range at {@code from}.
+     */
+    private static int groupEnd(List<TryCatchRange> ranges, int from) {
+        LabelNode handler = ranges.get(from).handler;
+
+        int to = from + 1;
+
+        while (to < ranges.size() && ranges.get(to).handler == handler) {
+            to++;
+        }
+
+        return to;
+    }
+
+    private static boolean sameRanges(List<TryCatchRange> ranges, int from1, int to1, int from2, int to2) {
+        if (to1 - from1 != to2 - from2) {
+            return false;
+        }
+
+        for (int i = 0; i < to1 - from1; i++) {
+            TryCatchRange range1 = ranges.get(from1 + i);
+            TryCatchRange range2 = ranges.get(from2 + i);
+
+            if (!sameBounds(range1, range2)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks that ranges of the finally handler start with protected ranges of the catch group.
+     */
+    private static boolean startsWith(List<TryCatchRange> defaultRanges, int from, int to,
+                                      List<TryCatchRange> regularRanges, CatchGroup group) {
+        int prefixSize = group.to - group.from;
+
+        if (to - from < prefixSize) {
+            return false;
+        }
+
+        for (int i = 0; i < prefixSize; i++) {
+            TryCatchRange range = defaultRanges.get(from + i);
+            TryCatchRange prefixRange = regularRanges.get(group.from + i);
+
+            if (!sameBounds(range, prefixRange)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Catch blocks of a nested try statement without finally and catch blocks of the statement itself produce the same
+     * ranges. The difference is that catch blocks of the statement itself are preceded by copies of the finally block,
+     * which are not covered by ranges of the statement. So, if the first catch block is strictly inside one of them,
+     * or some other catch block is strictly inside one of them and is preceded by a jump past the nested statement,
+     * then the group belongs to the nested statement. Single nested catch blocks that follow a "throw" are still
+     * indistinguishable from the catch blocks of the statement itself.
+     */
+    private static boolean nestedCatches(AnalysisArena arena, List<TryCatchRange> ranges, int from, int to,
+                                         CatchGroup group) {
+        LabelIndex labelIdx = arena.labelIndex();
+
+        for (int i = 0; i < group.handlers.size(); i++) {
+            LabelNode handler = group.handlers.get(i);
+
+            if (!insideOfRanges(labelIdx, ranges, from, to, handler)) {
+                continue;
+            }
+
+            if (i == 0) {
+                return true;
+            }
+
+            AbstractInsnNode previousInstruction = Util.findPreviousInstruction(handler);
+
+            if (previousInstruction != null && previousInstruction.getOpcode() == GOTO
+                    && labelIdx.get(((JumpInsnNode) previousInstruction).label) > labelIdx.get(handler)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean insideOfRanges(LabelIndex labelIdx, List<TryCatchRange> ranges, int from, int to,
+                                          LabelNode label) {
+        int labelIndex = labelIdx.get(label);
+
+        for (int i = from; i < to; i++) {
+            TryCatchRange range = ranges.get(i);
+
+            if (labelIdx.get(range.start) < labelIndex && labelIndex < labelIdx.get(range.end)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean sameBounds(TryCatchRange range1, TryCatchRange range2) {
+        return range1.start == range2.start && range1.end == range2.end;
+    }
+
+    private static Block block(AnalysisArena arena, TryCatchRange range) {
+        return arena.block(range.start, range.end);
     }
 }
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Scanner of raw class file constant pools. Doesn't depend on ASM and doesn't allocate, which makes it suitable for
+ * checking every class file that passes through the agent.
+ *
+ * @author ibessonov
+ */
+public final class ClassFileScanner {
+    private static final byte[] FINALLY_CLASS_INTERNAL_NAME = Constants.FINALLY_CLASS_INTERNAL_NAME.getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] ON_RETURN_DESCRIPTOR = Constants.ON_RETURN_DESCRIPTOR.getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] ON_THROW_DESCRIPTOR = Constants.ON_THROW_DESCRIPTOR.getBytes(StandardCharsets.UTF_8);
+    private static final byte[] MEMOIZE_DESCRIPTOR = Constants.MEMOIZE_DESCRIPTOR.getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] TRANSFORMED_ATTRIBUTE_NAME = Constants.TRANSFORMED_ATTRIBUTE_NAME.getBytes(StandardCharsets.UTF_8);
+
+    /** Scan result flag, class file references "Finally" class or annotations processed by the agent. */
+    private static final int REFERENCES_FINALLY = 1;
+
+    /** Scan result flag, class file has been transformed. */
+    private static final int TRANSFORMED = 2;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private ClassFileScanner() {
+    }
+
+    /**
+     * Checks whether class file has "Finally" class name, or descriptors of {@code OnReturn}, {@code OnThrow} and
+     * {@code Memoize} annotations, in its constant pool. Malformed or unknown class files are reported as referencing
+     * it, so that the decision is left to the actual transformer.
+     *
+     * @param classFile Class file bytes.
+     * @return {@code true} if class file may reference "Finally" class.
+     */
+    public static boolean referencesFinally(byte[] classFile) {
+        return (scan(classFile, REFERENCES_FINALLY) & REFERENCES_FINALLY) != 0;
+    }
+
+    /**
+     * Checks whether class file has the transformation marker attribute. Malformed or unknown class files are reported as
+     * not transformed. A string constant with the same value doesn't count, the attribute itself is looked up after the
+     * constant pool, which only happens if the constant pool has its name.
+     *
+     * @param classFile Class file bytes.
+     * @return {@code true} if class file has been transformed already.
+     */
+    public static boolean isTransformed(byte[] classFile) {
+        return (scan(classFile, TRANSFORMED) & TRANSFORMED) != 0;
+    }
+
+    /**
+     * Checks whether class file references "Finally" class and hasn't been transformed yet, in a single pass.
+     *
+     * @param classFile Class file bytes.
+     * @return {@code true} if class file may need a transformation.
+     * @see #referencesFinally(byte[])
+     * @see #isTransformed(byte[])
+     */
+    public static boolean needsTransformation(byte[] classFile) {
+        return scan(classFile, REFERENCES_FINALLY | TRANSFORMED) == REFERENCES_FINALLY;
+    }
+
+    /**
+     * Scans the constant pool until all requested flags are found. {@link #TRANSFORMED} is only confirmed after the
+     * constant pool, by the presence of the class attribute.
+     *
+     * @param classFile Class file bytes.
+     * @param flags Requested flags.
+     * @return Found flags, or {@link #REFERENCES_FINALLY} if class file is malformed or unknown.
+     */
+    private static int scan(byte[] classFile, int flags) {
+        try {
+            int count = readUnsignedShort(classFile, 8);
+
+            // Skip magic, version and constant pool count.
+            int pos = 10;
+
+            int found = 0;
+
+            // Constant pool index of the marker attribute name, 0 if there's none.
+            int transformedAttributeNameIndex = 0;
+
+            for (int i = 1; i < count; i++) {
+                switch (classFile[pos]) {
+                    case CONSTANT_UTF8:
+                        int length = readUnsignedShort(classFile, pos + 1);
+
+                        if (matches(classFile, pos + 3, length, FINALLY_CLASS_INTERNAL_NAME)
+                                || matches(classFile, pos + 3, length, ON_RETURN_DESCRIPTOR)
+                                || matches(classFile, pos + 3, length, ON_THROW_DESCRIPTOR)
+                                || matches(classFile, pos + 3, length, MEMOIZE_DESCRIPTOR)) {
+                            found |= REFERENCES_FINALLY;
+                        } else if ((flags & TRANSFORMED) != 0
+                                && matches(classFile, pos + 3, length, TRANSFORMED_ATTRIBUTE_NAME)) {
+                            transformedAttributeNameIndex = i;
+                        }
+
+                        if ((found & flags) == flags) {
+                            return found;
+                        }
+
+                        pos += 3 + length;
+                        break;
+
+                    case CONSTANT_CLASS:
+                    case CONSTANT_STRING:
+                    case CONSTANT_METHOD_TYPE:
+                    case CONSTANT_MODULE:
+                    case CONSTANT_PACKAGE:
+                        pos += 3;
+                        break;
+
+                    case CONSTANT_METHOD_HANDLE:
+                        pos += 4;
+                        break;
+
+                    case CONSTANT_INTEGER:
+                    case CONSTANT_FLOAT:
+                    case CONSTANT_FIELDREF:
+                    case CONSTANT_METHODREF:
+                    case CONSTANT_INTERFACE_METHODREF:
+                    case CONSTANT_NAME_AND_TYPE:
+                    case CONSTANT_DYNAMIC:
+                    case CONSTANT_INVOKE_DYNAMIC:
+                        pos += 5;
+                        break;
+
+                    case CONSTANT_LONG:
+                    case CONSTANT_DOUBLE:
+                        // These take two slots in the constant pool.
+                        pos += 9;
+                        i++;
+                        break;
+
+                    default:
+                        return REFERENCES_FINALLY;
+                }
+            }
+
+            if (transformedAttributeNameIndex != 0 && hasClassAttribute(classFile, pos, transformedAttributeNameIndex)) {
+                found |= TRANSFORMED;
+            }
+
+            return found;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return REFERENCES_FINALLY;
+        }
+    }
+
+    /**
+     * @param pos Position right after the constant pool.
+     * @param nameIndex Constant pool index of the attribute name.
+     * @return {@code true} if the class, not one of its fields or methods, has the attribute.
+     */
+    private static boolean hasClassAttribute(byte[] classFile, int pos, int nameIndex) {
+        // Skip access flags, this class and super class.
+        pos += 6;
+
+        pos += 2 + 2 * readUnsignedShort(classFile, pos);
+
+        // Fields, then methods, they have the same structure.
+        for (int i = 0; i < 2; i++) {
+            int members = readUnsignedShort(classFile, pos);
+            pos += 2;
+
+            for (int j = 0; j < members; j++) {
+                // Skip access flags, name and descriptor.
+                pos += 6;
+
+                int attributes = readUnsignedShort(classFile, pos);
+                pos += 2;
+
+                for (int k = 0; k < attributes; k++) {
+                    pos += 6 + readInt(classFile, pos + 2);
+                }
+            }
+        }
+
+        int attributes = readUnsignedShort(classFile, pos);
+        pos += 2;
+
+        for (int k = 0; k < attributes; k++) {
+            if (readUnsignedShort(classFile, pos) == nameIndex) {
+                return true;
+            }
+
+            pos += 6 + readInt(classFile, pos + 2);
+        }
+
+        return false;
+    }
+
+    private static boolean matches(byte[] classFile, int pos, int length, byte[] expected) {
+        if (length != expected.length) {
+            return false;
+        }
+
+        for (int i = length - 1; i >= 0; i--) {
+            // Compare from the end, class names in the same package tend to have common prefixes.
+            if (classFile[pos + i] != expected[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static int readUnsignedShort(byte[] classFile, int pos) {
+        return ((classFile[pos] & 0xFF) << 8) | (classFile[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] classFile, int pos) {
+        return (readUnsignedShort(classFile, pos) << 16) | readUnsignedShort(classFile, pos + 2);
+    }
+}
@@ -18,6 +18,15 @@ package com.github.ibessonov.finally4j.agent.transformer.util;
 public interface Constants {
     String FINALLY_CLASS_INTERNAL_NAME = "com/github/ibessonov/finally4j/Finally";
 
+    String FINALLY_SUPPORT_CLASS_INTERNAL_NAME = "com/github/ibessonov/finally4j/FinallySupport";
+
+    String FINALLY_INDEX_RESOURCE_NAME = "META-INF/finally4j.idx";
+
+    /**
+     * Name of the empty class file attribute that marks transformed classes.
+     */
+    String TRANSFORMED_ATTRIBUTE_NAME = "Finally4jTransformed";
+
     String FINALLY_IS_SUPPORTED_METHOD_NAME = "isSupported";
 
     String FINALLY_HAS_RETURNED_VALUE_METHOD_NAME = "hasReturnedValue";
@@ -28,4 +37,33 @@ public interface Constants {
     String FINALLY_HAS_THROWN_EXCEPTION_METHOD_NAME = "hasThrownException";
     String FINALLY_GET_THROWN_EXCEPTION_METHOD_NAME = "thrownException";
     String FINALLY_GET_THROWN_EXCEPTION_OPTIONAL_METHOD_NAME = FINALLY_GET_THROWN_EXCEPTION_METHOD_NAME + "Optional";
+
+    String ON_RETURN_DESCRIPTOR = "Lcom/github/ibessonov/finally4j/OnReturn;";
+    String ON_THROW_DESCRIPTOR = "Lcom/github/ibessonov/finally4j/OnThrow;";
+
+    String ON_RETURN_HANDLER_METHOD_NAME = "onReturn";
+    String ON_THROW_HANDLER_METHOD_NAME = "onThrow";
+
+    String MEMOIZE_DESCRIPTOR = "Lcom/github/ibessonov/finally4j/Memoize;";
+
+    String MEMO_CACHE_INTERNAL_NAME = "com/github/ibessonov/finally4j/memoize/MemoCache";
+    String OBJECT_KEY_CACHE_INTERNAL_NAME = "com/github/ibessonov/finally4j/memoize/ObjectKeyCache";
+    String INT_KEY_CACHE_INTERNAL_NAME = "com/github/ibessonov/finally4j/memoize/IntKeyCache";
+    String LONG_KEY_CACHE_INTERNAL_NAME = "com/github/ibessonov/finally4j/memoize/LongKeyCache";
+
+    /**
+     * Default values of "Memoize" annotation elements, annotation nodes don't have them.
+     */
+    int MEMOIZE_DEFAULT_MAX_SIZE = 1024;
+    String MEMOIZE_DEFAULT_UNIT = "MILLISECONDS";
+
+    String SAMPLED_DESCRIPTOR = "Lcom/github/ibessonov/finally4j/Sampled;";
+
+    String SAMPLER_INTERNAL_NAME = "com/github/ibessonov/finally4j/sampling/Sampler";
+
+    /**
+     * Default values of "Sampled" annotation elements.
+     */
+    int SAMPLED_DEFAULT_PERIOD = 1;
+    double SAMPLED_DEFAULT_OVERHEAD = 0.01;
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.agent.transformer.util;
+
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.LabelNode;
+
+import java.util.Arrays;
+
+/**
+ * Mapping of labels into their sequence numbers in the method. It's an identity hash table with open addressing that
+ * stores indexes into the dense array of labels, so that no objects are allocated per label. Instances are reused
+ * between methods, {@link #clear()} only touches occupied slots.
+ *
+ * @author ibessonov
+ */
+public final class LabelIndex {
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Labels in the order they were added, label's position in this array is its index. */
+    private LabelNode[] labels = new LabelNode[INITIAL_CAPACITY];
+
+    /** Hash table, stores label index plus one, {@code 0} for empty slots. Always at least twice as big as size. */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+
+    private int size;
+
+    /** Index of the end of the method, greater than the index of any label. */
+    private int end;
+
+    /**
+     * Assigns sequence numbers to all labels of the method, in the order of instructions.
+     */
+    public void index(InsnList instructions) {
+        for (AbstractInsnNode node = instructions.getFirst(); node != null; node = node.getNext()) {
+            if (node.getType() == AbstractInsnNode.LABEL) {
+                add((LabelNode) node);
+            }
+        }
+
+        end = instructions.size();
+    }
+
+    /**
+     * Adds the label and assigns it the next sequence number.
+     */
+    private void add(LabelNode label) {
+        if (size == labels.length) {
+            grow();
+        }
+
+        labels[size] = label;
+
+        insert(size);
+
+        size++;
+    }
+
+    /**
+     * @return Sequence number of the label, or the index of the end of the method if the label is {@code null}, which
+     *      is how the end of the method is represented in blocks.
+     * @throws IllegalArgumentException If the label doesn't belong to the method.
+     */
+    public int get(LabelNode label) {
+        if (label == null) {
+            return end;
+        }
+
+        int mask = table.length - 1;
+
+        for (int slot = hash(label) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            if (labels[table[slot] - 1] == label) {
+                return table[slot] - 1;
+            }
+        }
+
+        throw new IllegalArgumentException("Unknown label: " + label);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes all labels, keeping the allocated memory.
+     */
+    public void clear() {
+        int mask = table.length - 1;
+
+        // Labels are removed in reverse order. Probe sequence of a label only consists of slots occupied by the labels
+        // that had been added before it, so every label is still reachable when it's removed.
+        for (int i = size - 1; i >= 0; i--) {
+            LabelNode label = labels[i];
+
+            int slot = hash(label) & mask;
+
+            while (table[slot] != i + 1) {
+                slot = (slot + 1) & mask;
+            }
+
+            table[slot] = 0;
+            labels[i] = null;
+        }
+
+        size = 0;
+        end = 0;
+    }
+
+    private void insert(int index) {
+        int mask = table.length - 1;
+
+        int slot = hash(labels[index]) & mask;
+
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        table[slot] = index + 1;
+    }
+
+    private void grow() {
+        labels = Arrays.copyOf(labels, labels.length * 2);
+        table = new int[labels.length * 2];
+
+        for (int i = 0; i < size; i++) {
+            insert(i);
+        }
+    }
+
+    private static int hash(LabelNode label) {
+        int h = System.identityHashCode(label);
+
+        // Spread higher bits, identity hash codes are not uniformly distributed in lower bits on every JVM.
+        return h ^ (h >>> 16);
+    }
+}
@@ -27,6 +27,7 @@ import org.objectweb.asm.tree.VarInsnNode;
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.loadOpcode;
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.toBoxedInternalName;
 import static com.github.ibessonov.finally4j.agent.transformer.util.Util.toPrimitiveName;
+import static org.objectweb.asm.Opcodes.ACONST_NULL;
 import static org.objectweb.asm.Opcodes.ATHROW;
 import static org.objectweb.asm.Opcodes.CHECKCAST;
 import static org.objectweb.asm.Opcodes.DUP;
@@ -37,13 +38,26 @@ import static org.objectweb.asm.Opcodes.INVOKESTATIC;
 import static org.objectweb.asm.Opcodes.NEW;
 import static org.objectweb.asm.tree.AbstractInsnNode.METHOD_INSN;
 
+/**
+ * Replaces calls to "Finally" methods in finally blocks of a single method. Instances are reused for different methods,
+ * see {@link #reset}.
+ *
+ * @author ibessonov
+ */
 public class Replacer {
-    private final InsnList instructions;
-    private final Runnable methodTransformedClosure;
+    private InsnList instructions;
+    private Runnable methodTransformedClosure;
 
-    private final char returnType;
+    private char returnType;
 
-    public Replacer(InsnList instructions, Runnable methodTransformedClosure, char returnType) {
+    /**
+     * Binds the replacer to the method.
+     *
+     * @param instructions Instructions of the method.
+     * @param methodTransformedClosure Closure that must be invoked when the method is changed.
+     * @param returnType Last character of the method descriptor.
+     */
+    public void reset(InsnList instructions, Runnable methodTransformedClosure, char returnType) {
         this.instructions = instructions;
         this.methodTransformedClosure = methodTransformedClosure;
         this.returnType = returnType;
@@ -110,6 +124,61 @@ public class Replacer {
         }
     }
 
+    /**
+     * Replaces calls in a finally block that is executed after normal completion of the try statement, or after return
+     * from a void method. Calls behave the same way they do in untransformed code, but they must not be left as they
+     * are, otherwise finally blocks of outer statements would replace them with their own values.
+     */
+    public void replaceNormalCompletionInstructions(Block finallyBlock) {
+        for (AbstractInsnNode node = finallyBlock.start; node != finallyBlock.end; node = node.getNext()) {
+            if (node.getType() == METHOD_INSN && node.getOpcode() == INVOKESTATIC) {
+                assert node instanceof MethodInsnNode;
+
+                MethodInsnNode methodInstruction = (MethodInsnNode) node;
+                if (methodInstruction.owner.equals(Constants.FINALLY_CLASS_INTERNAL_NAME)) {
+                    switch (methodInstruction.name) {
+                        case Constants.FINALLY_HAS_RETURNED_VALUE_METHOD_NAME:
+                        case Constants.FINALLY_HAS_THROWN_EXCEPTION_METHOD_NAME:
+                            node = replaceInstruction(methodInstruction, new InsnNode(ICONST_0));
+                            break;
+
+                        case Constants.FINALLY_GET_RETURNED_VALUE_OPTIONAL_METHOD_NAME:
+                        case Constants.FINALLY_GET_THROWN_EXCEPTION_OPTIONAL_METHOD_NAME:
+                            node = replaceInstruction(methodInstruction, Util.optionalEmpty());
+                            break;
+
+                        case Constants.FINALLY_GET_THROWN_EXCEPTION_METHOD_NAME:
+                            // "FinallySupport.thrownException(null)" throws the same exception as "Finally" does.
+                            instructions.insertBefore(node, new InsnNode(ACONST_NULL));
+
+                            node = replaceInstruction(methodInstruction, finallySupportCall(methodInstruction, "(Ljava/lang/Throwable;)"));
+                            break;
+
+                        default:
+                            if (methodInstruction.name.startsWith(Constants.FINALLY_GET_RETURNED_VALUE_METHOD_PREFIX)) {
+                                // "FinallySupport.returnedValue*(false, null)", same as above.
+                                instructions.insertBefore(node, new InsnNode(ICONST_0));
+                                instructions.insertBefore(node, new InsnNode(ACONST_NULL));
+
+                                node = replaceInstruction(methodInstruction, finallySupportCall(methodInstruction, "(ZLjava/lang/Object;)"));
+                            }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Call of the {@code FinallySupport} method with the same name and return type as the {@code Finally}
+     *      method, and with given parameters.
+     */
+    private static MethodInsnNode finallySupportCall(MethodInsnNode methodInstruction, String parameters) {
+        String returnType = methodInstruction.desc.substring(methodInstruction.desc.indexOf(')') + 1);
+
+        return new MethodInsnNode(INVOKESTATIC, Constants.FINALLY_SUPPORT_CLASS_INTERNAL_NAME,
+                methodInstruction.name, parameters + returnType, false);
+    }
+
     /**
      * Replaces the {@code Finally.returnedValue*()} call with the actual returned value.
      *
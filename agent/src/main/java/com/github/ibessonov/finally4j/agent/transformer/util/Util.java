@@ -15,16 +15,19 @@
  */
 package com.github.ibessonov.finally4j.agent.transformer.util;
 
+import com.github.ibessonov.finally4j.agent.transformer.code.AnalysisArena;
 import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
 import org.objectweb.asm.tree.JumpInsnNode;
 import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
 import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 import org.objectweb.asm.tree.TryCatchBlockNode;
 import org.objectweb.asm.tree.VarInsnNode;
 
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.List;
 
 import static org.objectweb.asm.Opcodes.ALOAD;
 import static org.objectweb.asm.Opcodes.ASM7;
@@ -48,7 +51,7 @@ import static org.objectweb.asm.tree.AbstractInsnNode.LABEL;
 public class Util {
     public static final boolean DEBUG = "true".equals(System.getProperty("finally4j.debug"));
 
-    public static int ASM_V = ASM7;
+    public static final int ASM_V = ASM7;
 
     public static AbstractInsnNode findPreviousInstruction(AbstractInsnNode node) {
         do {
@@ -166,6 +169,11 @@ public class Util {
                 "ofNullable", "(Ljava/lang/Object;)Ljava/util/Optional;", false);
     }
 
+    public static MethodInsnNode optionalEmpty() {
+        return new MethodInsnNode(INVOKESTATIC, "java/util/Optional",
+                "empty", "()Ljava/util/Optional;", false);
+    }
+
     public static MethodInsnNode optionalOf() {
         return new MethodInsnNode(INVOKESTATIC, "java/util/Optional",
                 "of", "(Ljava/lang/Object;)Ljava/util/Optional;",false);
@@ -185,7 +193,7 @@ public class Util {
                 "()" + returnTypeDescriptor, false);
     }
 
-    public static LabelNode findTheEndOfFinally(Map<LabelNode, Integer> labelIdx, LabelNode startLabel, boolean defaultBlock) {
+    public static LabelNode findTheEndOfFinally(AnalysisArena arena, LabelNode startLabel, boolean defaultBlock) {
         AbstractInsnNode instruction = defaultBlock
                 ? findNextInstruction(startLabel)
                 : findPreviousInstruction(startLabel);
@@ -194,7 +202,15 @@ public class Util {
 
         var storeInstruction = (VarInsnNode) instruction;
 
-        Set<LabelNode> jumpLabels = new HashSet<>();
+        LabelIndex labelIdx = arena.labelIndex();
+
+        // Index of the last passed label, jumps to labels with bigger indexes are forward jumps.
+        int position = labelIdx.get(startLabel);
+
+        // Targets of forward jumps that haven't been reached yet. Returns and throws only end the block if there are
+        // none, otherwise they belong to a branch or to a nested try statement. There are only a few jumps in a typical
+        // finally block, a list is cheaper than a set.
+        List<LabelNode> jumpLabels = arena.jumpLabels();
 
         while (true) {
             instruction = instruction.getNext();
@@ -205,26 +221,26 @@ public class Util {
             }
 
             if (instruction instanceof LabelNode) {
-                jumpLabels.remove((LabelNode) instruction);
+                position = labelIdx.get((LabelNode) instruction);
+
+                removeAll(jumpLabels, (LabelNode) instruction);
 
                 continue;
             }
 
-            if (instruction instanceof JumpInsnNode && instruction.getOpcode() != GOTO) {
-                LabelNode label = ((JumpInsnNode) instruction).label;
-
-                jumpLabels.add(label);
-
-                if (DEBUG) {
-                    System.out.println("  Jump to " + labelIdx.get(label) + ". Opcode = " + findNextInstruction(label).getOpcode());
-                }
-
+            if (addForwardJumps(labelIdx, jumpLabels, position, instruction)) {
                 continue;
             }
 
             if (isLoad(instruction) && ((VarInsnNode) instruction).var == storeInstruction.var) {
-                // Throw found.
-                return findNextLabel(instruction);
+                AbstractInsnNode nextInstruction = findNextInstruction(instruction);
+
+                // Loads of the same variable may also be inserted by the replacer, in place of "Finally" calls.
+                if (jumpLabels.isEmpty() && nextInstruction != null
+                        && (isReturn(nextInstruction) || isThrow(nextInstruction))) {
+                    // Throw found.
+                    return findNextLabel(instruction);
+                }
             }
 
             if (isReturn(instruction) || isThrow(instruction)) {
@@ -234,4 +250,144 @@ public class Util {
             }
         }
     }
+
+    /**
+     * Finds the end of the copy of a finally block that has no "store" before it, i.e. the one that follows normal
+     * completion of a try or catch block, or a return from a void method. Copies of the first kind end with a jump past
+     * {@code endLabel}, copies of the second kind end with a "return".
+     *
+     * @return Last instruction of the copy, or {@code null} if the copy is not terminated before {@code endLabel}.
+     */
+    public static AbstractInsnNode findTheEndOfCopy(AnalysisArena arena, LabelNode startLabel, LabelNode endLabel) {
+        LabelIndex labelIdx = arena.labelIndex();
+
+        int position = labelIdx.get(startLabel);
+        int endPosition = labelIdx.get(endLabel);
+
+        List<LabelNode> jumpLabels = arena.jumpLabels();
+
+        for (AbstractInsnNode instruction = startLabel.getNext(); instruction != endLabel;
+             instruction = instruction.getNext()) {
+            if (instruction instanceof LabelNode) {
+                position = labelIdx.get((LabelNode) instruction);
+
+                removeAll(jumpLabels, (LabelNode) instruction);
+
+                continue;
+            }
+
+            if (jumpLabels.isEmpty()) {
+                if (instruction.getOpcode() == RETURN) {
+                    return instruction;
+                }
+
+                if (instruction.getOpcode() == GOTO
+                        && labelIdx.get(((JumpInsnNode) instruction).label) >= endPosition) {
+                    return instruction;
+                }
+            }
+
+            addForwardJumps(labelIdx, jumpLabels, position, instruction);
+        }
+
+        return null;
+    }
+
+    /**
+     * @return Annotation of the method with given descriptor, or {@code null} if there's none. Annotations with "CLASS"
+     *      retention are expected, but visible ones are checked too, just in case.
+     */
+    public static AnnotationNode findAnnotation(MethodNode method, String descriptor) {
+        AnnotationNode annotation = findAnnotation(method.invisibleAnnotations, descriptor);
+
+        return annotation != null ? annotation : findAnnotation(method.visibleAnnotations, descriptor);
+    }
+
+    /**
+     * @return Value of the annotation element, or {@code null} if it's not present, i.e. has default value.
+     */
+    public static Object annotationValue(AnnotationNode annotation, String name) {
+        if (annotation.values != null) {
+            // Values are stored as a flat list of names and values.
+            for (int i = 0; i < annotation.values.size(); i += 2) {
+                if (name.equals(annotation.values.get(i))) {
+                    return annotation.values.get(i + 1);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static AnnotationNode findAnnotation(List<AnnotationNode> annotations, String descriptor) {
+        if (annotations != null) {
+            for (AnnotationNode annotation : annotations) {
+                if (annotation.desc.equals(descriptor)) {
+                    return annotation;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Adds targets of forward jumps of the instruction to {@code jumpLabels}.
+     *
+     * @return {@code true} if the instruction is a jump or a switch.
+     */
+    private static boolean addForwardJumps(LabelIndex labelIdx, List<LabelNode> jumpLabels, int position,
+                                           AbstractInsnNode instruction) {
+        if (instruction instanceof JumpInsnNode) {
+            addForwardJump(labelIdx, jumpLabels, position, ((JumpInsnNode) instruction).label);
+
+            return true;
+        }
+
+        if (instruction instanceof TableSwitchInsnNode) {
+            var switchInstruction = (TableSwitchInsnNode) instruction;
+
+            addForwardJump(labelIdx, jumpLabels, position, switchInstruction.dflt);
+            addForwardJumps(labelIdx, jumpLabels, position, switchInstruction.labels);
+
+            return true;
+        }
+
+        if (instruction instanceof LookupSwitchInsnNode) {
+            var switchInstruction = (LookupSwitchInsnNode) instruction;
+
+            addForwardJump(labelIdx, jumpLabels, position, switchInstruction.dflt);
+            addForwardJumps(labelIdx, jumpLabels, position, switchInstruction.labels);
+
+            return true;
+        }
+
+        return false;
+    }
+
+    private static void addForwardJumps(LabelIndex labelIdx, List<LabelNode> jumpLabels, int position,
+                                        List<LabelNode> labels) {
+        for (int i = 0; i < labels.size(); i++) {
+            addForwardJump(labelIdx, jumpLabels, position, labels.get(i));
+        }
+    }
+
+    private static void addForwardJump(LabelIndex labelIdx, List<LabelNode> jumpLabels, int position, LabelNode label) {
+        // Backward jumps are loops, their targets have already been passed.
+        if (labelIdx.get(label) > position) {
+            jumpLabels.add(label);
+
+            if (DEBUG) {
+                System.out.println("  Jump to " + labelIdx.get(label) + ". Opcode = " + findNextInstruction(label).getOpcode());
+            }
+        }
+    }
+
+    private static void removeAll(List<LabelNode> labels, LabelNode label) {
+        for (int i = labels.size() - 1; i >= 0; i--) {
+            if (labels.get(i) == label) {
+                labels.remove(i);
+            }
+        }
+    }
 }
@@ -1,7 +1,10 @@
 module com.github.ibessonov.finally4j.agent {
     requires java.instrument;
+    requires java.management;
     requires org.objectweb.asm;
     requires org.objectweb.asm.tree;
 
     exports com.github.ibessonov.finally4j.agent;
+    // For the transformation cache MXBean.
+    exports com.github.ibessonov.finally4j.agent.transformer to java.management;
 }
\ No newline at end of file
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark;
+
+import com.github.ibessonov.finally4j.AsyncFinally;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Micro benchmark of {@link AsyncFinally#whenFinally} against {@link CompletableFuture#whenComplete} with manual
+ * unwrapping of {@link CompletionException}, which is what the code looks like without it. Usage:
+ * <pre>
+ * java -cp finally4j-benchmark.jar:finally4j.jar \
+ *     com.github.ibessonov.finally4j.benchmark.AsyncFinallyBenchmark \
+ *     [-n operations] [-w warmup-rounds] [-r rounds] [-o result.json]
+ * </pre>
+ * Every round runs all combinations of implementations and scenarios, in a single thread:
+ * <ul>
+ *     <li>{@code completed} - action is attached to a future that has completed normally.</li>
+ *     <li>{@code failed} - action is attached to a dependent future that has completed with a wrapped exception.</li>
+ *     <li>{@code pending} - action is attached to a new future, that is completed afterwards.</li>
+ * </ul>
+ * Results are reported as average time and allocation per operation. Allocation includes the future returned by
+ * {@code whenComplete} and, in {@code pending} scenario, the future itself.
+ *
+ * @author ibessonov
+ */
+public final class AsyncFinallyBenchmark {
+    private static final String[] IMPLEMENTATIONS = {"whenComplete", "whenFinally"};
+
+    private static final String[] SCENARIOS = {"completed", "failed", "pending"};
+
+    private static final Integer VALUE = 42;
+
+    private static final CompletableFuture<Integer> COMPLETED = CompletableFuture.completedFuture(VALUE);
+
+    private static final CompletableFuture<Integer> FAILED = COMPLETED.thenApply(value -> {
+        throw new IllegalStateException();
+    });
+
+    /**
+     * Sink for the results of actions, so that they're not eliminated by the JIT compiler.
+     */
+    private static long blackhole;
+
+    public static void main(String[] args) throws Exception {
+        int operations = 1_000_000;
+        int warmupRounds = 5;
+        int rounds = 5;
+        Path output = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-n":
+                    operations = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-w":
+                    warmupRounds = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-r":
+                    rounds = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-o":
+                    output = Path.of(args[++i]);
+                    break;
+
+                default:
+                    System.err.println("Usage: AsyncFinallyBenchmark [-n operations] [-w warmup-rounds] [-r rounds] [-o result.json]");
+
+                    System.exit(1);
+            }
+        }
+
+        for (int i = 0; i < warmupRounds; i++) {
+            for (String implementation : IMPLEMENTATIONS) {
+                for (String scenario : SCENARIOS) {
+                    log("Warmup round " + (i + 1), measure(implementation, scenario, operations));
+                }
+            }
+        }
+
+        List<Measurement> results = new ArrayList<>();
+
+        for (int i = 0; i < rounds; i++) {
+            for (String implementation : IMPLEMENTATIONS) {
+                for (String scenario : SCENARIOS) {
+                    Measurement measurement = measure(implementation, scenario, operations);
+
+                    log("Round " + (i + 1), measurement);
+
+                    results.add(measurement);
+                }
+            }
+        }
+
+        String json = toJson(operations, results);
+
+        if (output == null) {
+            System.out.println(json);
+        } else {
+            Files.writeString(output, json, UTF_8);
+        }
+
+        // Makes the sink observable.
+        System.err.println("Blackhole: " + blackhole);
+    }
+
+    private static Measurement measure(String implementation, String scenario, int operations) {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+        com.sun.management.ThreadMXBean allocationMXBean = threadMXBean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported()
+                ? (com.sun.management.ThreadMXBean) threadMXBean
+                : null;
+
+        boolean whenFinally = implementation.equals("whenFinally");
+
+        // "getCurrentThreadAllocatedBytes" only exists since Java 14.
+        long threadId = Thread.currentThread().getId();
+
+        long allocatedBefore = allocationMXBean == null ? 0 : allocationMXBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+
+        switch (scenario) {
+            case "completed":
+                for (int i = 0; i < operations; i++) {
+                    attach(COMPLETED, whenFinally);
+                }
+                break;
+
+            case "failed":
+                for (int i = 0; i < operations; i++) {
+                    attach(FAILED, whenFinally);
+                }
+                break;
+
+            default:
+                for (int i = 0; i < operations; i++) {
+                    var future = new CompletableFuture<Integer>();
+
+                    attach(future, whenFinally);
+
+                    future.complete(VALUE);
+                }
+        }
+
+        long nanos = System.nanoTime() - start;
+
+        long allocatedBytes = allocationMXBean == null
+                ? -1
+                : allocationMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        return new Measurement(implementation, scenario, operations, nanos, allocatedBytes);
+    }
+
+    private static void attach(CompletableFuture<Integer> future, boolean whenFinally) {
+        if (whenFinally) {
+            AsyncFinally.whenFinally(future, outcome -> {
+                blackhole += outcome.hasReturnedValue() ? outcome.returnedValueInt() : outcome.thrownException().hashCode();
+            });
+        } else {
+            future.whenComplete((value, exception) -> {
+                if (exception == null) {
+                    blackhole += value;
+                } else {
+                    Throwable cause = exception;
+
+                    while (cause instanceof CompletionException && cause.getCause() != null) {
+                        cause = cause.getCause();
+                    }
+
+                    blackhole += cause.hashCode();
+                }
+            });
+        }
+    }
+
+    private static void log(String round, Measurement measurement) {
+        System.err.printf(Locale.ROOT, "%s: %s/%s, %.1f ns/op, %d bytes/op%n",
+                round, measurement.implementation, measurement.scenario,
+                measurement.nanosPerOperation(), measurement.bytesPerOperation());
+    }
+
+    private static String toJson(int operations, List<Measurement> results) {
+        var sb = new StringBuilder();
+
+        sb.append("{\n");
+        sb.append("  \"javaVersion\": ").append(ScanBenchmark.quote(System.getProperty("java.version"))).append(",\n");
+        sb.append("  \"javaVmName\": ").append(ScanBenchmark.quote(System.getProperty("java.vm.name"))).append(",\n");
+        sb.append("  \"operations\": ").append(operations).append(",\n");
+
+        sb.append("  \"rounds\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("    ").append(results.get(i).toJson()).append(i == results.size() - 1 ? "\n" : ",\n");
+        }
+        sb.append("  ]\n");
+
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+
+    /**
+     * Result of a single implementation in a single scenario.
+     */
+    private static final class Measurement {
+        final String implementation;
+        final String scenario;
+        final int operations;
+        final long nanos;
+
+        /** Bytes allocated by all operations, {@code -1} if the JVM can't measure it. */
+        final long allocatedBytes;
+
+        Measurement(String implementation, String scenario, int operations, long nanos, long allocatedBytes) {
+            this.implementation = implementation;
+            this.scenario = scenario;
+            this.operations = operations;
+            this.nanos = nanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        double nanosPerOperation() {
+            return (double) nanos / operations;
+        }
+
+        long bytesPerOperation() {
+            return allocatedBytes < 0 ? -1 : allocatedBytes / operations;
+        }
+
+        String toJson() {
+            return String.format(Locale.ROOT,
+                    "{\"implementation\": %s, \"scenario\": %s, \"nanosPerOperation\": %.2f, \"bytesPerOperation\": %d}",
+                    ScanBenchmark.quote(implementation), ScanBenchmark.quote(scenario),
+                    nanosPerOperation(), bytesPerOperation());
+        }
+    }
+}
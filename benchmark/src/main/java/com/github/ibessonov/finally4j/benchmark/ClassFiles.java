@@ -0,0 +1,163 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Sources of class files for benchmarks. Only names are collected upfront, class files are read by the benchmark
+ * threads, so that the whole runtime image never has to be in memory at once.
+ *
+ * @author ibessonov
+ */
+final class ClassFiles implements Closeable {
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String MODULE_INFO = "module-info.class";
+
+    private final List<ClassFile> classFiles = new ArrayList<>();
+
+    private final List<Closeable> resources = new ArrayList<>();
+
+    List<ClassFile> list() {
+        return classFiles;
+    }
+
+    /**
+     * Adds all classes of the current JDK runtime image. They're transformed with the bootstrap ({@code null}) loader.
+     */
+    void addRuntimeImage() throws IOException {
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+
+        try (Stream<Path> modules = Files.list(jrt.getPath("/modules"))) {
+            for (Path module : (Iterable<Path>) modules::iterator) {
+                try (Stream<Path> stream = Files.walk(module)) {
+                    stream.filter(ClassFiles::isClassFile).forEach(path -> {
+                        String name = module.relativize(path).toString();
+
+                        classFiles.add(new RuntimeImageClassFile(className(name), path));
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds all classes of the jar. They're transformed with a class loader of that jar, so that frames of transformed
+     * classes could be computed.
+     */
+    void addJar(Path jar) throws IOException {
+        var zipFile = new ZipFile(jar.toFile());
+        resources.add(zipFile);
+
+        var loader = new URLClassLoader(new URL[] {jar.toUri().toURL()}, ClassLoader.getSystemClassLoader());
+        resources.add(loader);
+
+        for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements(); ) {
+            ZipEntry entry = entries.nextElement();
+
+            String name = entry.getName();
+
+            // Multi-release versions and "module-info" are skipped.
+            if (!entry.isDirectory() && name.endsWith(CLASS_SUFFIX) && !name.startsWith("META-INF/") && !name.endsWith(MODULE_INFO)) {
+                classFiles.add(new JarClassFile(className(name), loader, zipFile, entry));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Closeable resource : resources) {
+            resource.close();
+        }
+    }
+
+    private static boolean isClassFile(Path path) {
+        String fileName = path.getFileName().toString();
+
+        return fileName.endsWith(CLASS_SUFFIX) && !fileName.equals(MODULE_INFO);
+    }
+
+    private static String className(String name) {
+        return name.substring(0, name.length() - CLASS_SUFFIX.length());
+    }
+
+    /**
+     * Single class file.
+     */
+    abstract static class ClassFile {
+        /** Internal class name. */
+        final String name;
+
+        /** Class loader, {@code null} for the bootstrap loader. */
+        final ClassLoader loader;
+
+        ClassFile(String name, ClassLoader loader) {
+            this.name = name;
+            this.loader = loader;
+        }
+
+        abstract byte[] read() throws IOException;
+    }
+
+    private static final class RuntimeImageClassFile extends ClassFile {
+        private final Path path;
+
+        RuntimeImageClassFile(String name, Path path) {
+            super(name, null);
+
+            this.path = path;
+        }
+
+        @Override
+        byte[] read() throws IOException {
+            return Files.readAllBytes(path);
+        }
+    }
+
+    private static final class JarClassFile extends ClassFile {
+        private final ZipFile zipFile;
+        private final ZipEntry entry;
+
+        JarClassFile(String name, ClassLoader loader, ZipFile zipFile, ZipEntry entry) {
+            super(name, loader);
+
+            this.zipFile = zipFile;
+            this.entry = entry;
+        }
+
+        @Override
+        byte[] read() throws IOException {
+            try (InputStream in = zipFile.getInputStream(entry)) {
+                return in.readAllBytes();
+            }
+        }
+    }
+}
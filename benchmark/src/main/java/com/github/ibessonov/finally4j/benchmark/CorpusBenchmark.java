@@ -0,0 +1,170 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark;
+
+import com.github.ibessonov.finally4j.agent.transformer.FinallyClassFileTransformer;
+import com.github.ibessonov.finally4j.benchmark.corpus.CorpusClass;
+import com.github.ibessonov.finally4j.benchmark.corpus.CorpusClassLoader;
+import com.github.ibessonov.finally4j.benchmark.corpus.CorpusCompiler;
+import com.github.ibessonov.finally4j.benchmark.corpus.CorpusGenerator;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Micro benchmark that measures how the analysis of a single method scales with the number of try statements in it.
+ * Methods are produced by {@link CorpusGenerator#generateLarge(String, int)}, the number of try statements doubles
+ * until the method no longer fits into 64 KB of bytecode. Usage:
+ * <pre>
+ * java -cp finally4j-benchmark.jar:finally4j-agent.jar:finally4j.jar:asm.jar:asm-tree.jar \
+ *     com.github.ibessonov.finally4j.benchmark.CorpusBenchmark \
+ *     [-s seed] [-m max-tries] [-w warmup-iterations] [-i iterations] [-o result.json]
+ * </pre>
+ * Every iteration uses a new transformer, so that its cache doesn't hide the cost of the analysis.
+ *
+ * @author ibessonov
+ */
+public final class CorpusBenchmark {
+    public static void main(String[] args) throws Exception {
+        long seed = 0;
+        int maxTries = 4096;
+        int warmupIterations = 20;
+        int iterations = 50;
+        Path output = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-s":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+
+                case "-m":
+                    maxTries = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-w":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-i":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-o":
+                    output = Path.of(args[++i]);
+                    break;
+
+                default:
+                    System.err.println("Usage: CorpusBenchmark [-s seed] [-m max-tries] [-w warmup-iterations] [-i iterations] [-o result.json]");
+
+                    System.exit(1);
+            }
+        }
+
+        List<String> results = new ArrayList<>();
+
+        for (int tries = 1; tries <= maxTries; tries *= 2) {
+            CorpusClass corpusClass = new CorpusGenerator(seed, 3, 3).generateLarge("corpus.Large" + tries, tries);
+
+            Map<String, byte[]> classFiles;
+
+            try {
+                classFiles = CorpusCompiler.compile(corpusClass);
+            } catch (IllegalStateException e) {
+                // Most likely "code too large", larger methods won't compile either.
+                System.err.println("Stopped at " + tries + " try statements: the method doesn't compile");
+
+                break;
+            }
+
+            byte[] classfileBuffer = classFiles.get(corpusClass.internalName());
+
+            var loader = new CorpusClassLoader(classFiles);
+
+            for (int i = 0; i < warmupIterations; i++) {
+                transform(loader, corpusClass, classfileBuffer);
+            }
+
+            long[] latencies = new long[iterations];
+
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+
+                transform(loader, corpusClass, classfileBuffer);
+
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            Arrays.sort(latencies);
+
+            long median = latencies[latencies.length / 2];
+
+            System.err.printf(Locale.ROOT, "%d try statements, %d bytes: p50 %d ns, min %d ns, max %d ns%n",
+                    corpusClass.methods.get(0).tries(), classfileBuffer.length,
+                    median, latencies[0], latencies[latencies.length - 1]);
+
+            results.add(String.format(Locale.ROOT,
+                    "{\"tries\": %d, \"bytes\": %d, \"latencyNanos\": {\"p50\": %d, \"min\": %d, \"max\": %d}}",
+                    corpusClass.methods.get(0).tries(), classfileBuffer.length,
+                    median, latencies[0], latencies[latencies.length - 1]
+            ));
+        }
+
+        String json = toJson(seed, iterations, results);
+
+        if (output == null) {
+            System.out.println(json);
+        } else {
+            Files.writeString(output, json, UTF_8);
+        }
+    }
+
+    private static void transform(ClassLoader loader, CorpusClass corpusClass, byte[] classfileBuffer) {
+        byte[] transformed = new FinallyClassFileTransformer()
+                .transform(loader, corpusClass.internalName(), null, null, classfileBuffer);
+
+        if (transformed == null) {
+            throw new IllegalStateException("Class " + corpusClass.name + " wasn't transformed");
+        }
+    }
+
+    private static String toJson(long seed, int iterations, List<String> results) {
+        var sb = new StringBuilder();
+
+        sb.append("{\n");
+        sb.append("  \"javaVersion\": ").append(ScanBenchmark.quote(System.getProperty("java.version"))).append(",\n");
+        sb.append("  \"javaVmName\": ").append(ScanBenchmark.quote(System.getProperty("java.vm.name"))).append(",\n");
+        sb.append("  \"seed\": ").append(seed).append(",\n");
+        sb.append("  \"iterations\": ").append(iterations).append(",\n");
+
+        sb.append("  \"sizes\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("    ").append(results.get(i)).append(i == results.size() - 1 ? "\n" : ",\n");
+        }
+        sb.append("  ]\n");
+
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+}
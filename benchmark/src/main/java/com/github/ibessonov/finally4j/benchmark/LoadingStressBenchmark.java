@@ -0,0 +1,558 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark;
+
+import com.github.ibessonov.finally4j.Finally;
+import com.github.ibessonov.finally4j.benchmark.corpus.CorpusCompiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Stress harness that loads thousands of generated classes through many parallel-capable class loaders at once, with
+ * the agent active, and measures how the throughput of class loading scales with the number of threads. Usage:
+ * <pre>
+ * java -javaagent:finally4j-agent.jar -cp finally4j-benchmark.jar:finally4j.jar \
+ *     com.github.ibessonov.finally4j.benchmark.LoadingStressBenchmark \
+ *     [-t max-threads] [-c classes] [-l loaders] [-f finally-fraction] [-h hidden-fraction] [-T timeout-seconds]
+ *     [-s seed] [-o result.json]
+ * </pre>
+ * Generated classes form a single hierarchy, and every method merges two random classes of it in a stack map frame,
+ * so that the transformer has to resolve common super classes of classes that other threads are loading at the same
+ * time. Class files of a {@code hidden-fraction} of classes are not available as resources. The transformer must not
+ * load classes to find their common super class, that's prone to deadlocks and "duplicate class definition" errors,
+ * so classes that merge hidden classes are loaded untransformed. They are reported separately from failures.
+ * <p>
+ * Every thread count, from 1 up to {@code max-threads}, doubling, uses a new set of class loaders and classes with
+ * new names, so that neither the JVM nor the transformation cache has seen them before. Each class is loaded,
+ * initialized and executed by every loader. Classes that use "Finally" check in their finally blocks that they were
+ * transformed.
+ * <p>
+ * A watchdog thread checks for deadlocks twice per second. Deadlocked threads are printed and the harness exits with
+ * status {@code 2}. If a thread count doesn't finish within the timeout, all threads are printed and the harness exits
+ * with status {@code 3}.
+ *
+ * @author ibessonov
+ */
+public final class LoadingStressBenchmark {
+    private static final String PACKAGE = "stress";
+
+    private static final long WATCHDOG_INTERVAL_MILLIS = 500;
+
+    /** Message of the exception that's thrown by untransformed classes. */
+    private static final String NOT_TRANSFORMED_MESSAGE = "Class is not transformed";
+
+    private final int classes;
+
+    private final int loaders;
+
+    private final double finallyFraction;
+
+    private final double hiddenFraction;
+
+    private final long timeoutMillis;
+
+    private final Random random;
+
+    private LoadingStressBenchmark(int classes, int loaders, double finallyFraction, double hiddenFraction,
+                                   long timeoutMillis, long seed) {
+        this.classes = classes;
+        this.loaders = loaders;
+        this.finallyFraction = finallyFraction;
+        this.hiddenFraction = hiddenFraction;
+        this.timeoutMillis = timeoutMillis;
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int maxThreads = 64;
+        int classes = 2000;
+        int loaders = 4;
+        double finallyFraction = 0.5;
+        double hiddenFraction = 0.01;
+        long timeoutSeconds = 300;
+        long seed = 0;
+        Path output = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-t":
+                    maxThreads = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-c":
+                    classes = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-l":
+                    loaders = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-f":
+                    finallyFraction = Double.parseDouble(args[++i]);
+                    break;
+
+                case "-h":
+                    hiddenFraction = Double.parseDouble(args[++i]);
+                    break;
+
+                case "-T":
+                    timeoutSeconds = Long.parseLong(args[++i]);
+                    break;
+
+                case "-s":
+                    seed = Long.parseLong(args[++i]);
+                    break;
+
+                case "-o":
+                    output = Path.of(args[++i]);
+                    break;
+
+                default:
+                    System.err.println("Usage: LoadingStressBenchmark [-t max-threads] [-c classes] [-l loaders] [-f finally-fraction] "
+                            + "[-h hidden-fraction] [-T timeout-seconds] [-s seed] [-o result.json]");
+
+                    System.exit(1);
+            }
+        }
+
+        if (!Finally.isSupported()) {
+            System.err.println("Agent is not active, run with -javaagent:finally4j-agent.jar");
+
+            System.exit(1);
+        }
+
+        var benchmark = new LoadingStressBenchmark(classes, loaders, finallyFraction, hiddenFraction,
+                timeoutSeconds * 1000, seed);
+
+        startWatchdog();
+
+        List<String> results = new ArrayList<>();
+
+        double singleThreadThroughput = 0;
+
+        for (int threads = 1, round = 0; threads <= maxThreads; threads *= 2, round++) {
+            RoundStats stats = benchmark.round(round, threads);
+
+            double throughput = stats.loaded * 1e9 / stats.wallNanos;
+
+            if (threads == 1) {
+                singleThreadThroughput = throughput;
+            }
+
+            double speedup = throughput / singleThreadThroughput;
+
+            System.err.printf(Locale.ROOT, "%d threads: %d classes in %.1f ms, %.1f classes/s, speedup %.2f, %d untransformed, %d failures%n",
+                    threads, stats.loaded, stats.wallNanos / 1e6, throughput, speedup, stats.untransformed, stats.failures);
+
+            results.add(String.format(Locale.ROOT,
+                    "{\"threads\": %d, \"classes\": %d, \"untransformed\": %d, \"failures\": %d, \"wallMillis\": %.3f, "
+                            + "\"classesPerSecond\": %.1f, \"speedup\": %.3f}",
+                    threads, stats.loaded, stats.untransformed, stats.failures, stats.wallNanos / 1e6, throughput, speedup
+            ));
+
+            if (stats.firstFailure != null) {
+                stats.firstFailure.printStackTrace(System.err);
+            }
+        }
+
+        String json = toJson(classes, loaders, finallyFraction, hiddenFraction, seed, results);
+
+        if (output == null) {
+            System.out.println(json);
+        } else {
+            Files.writeString(output, json, UTF_8);
+        }
+    }
+
+    private RoundStats round(int round, int threads) throws InterruptedException {
+        String packageName = PACKAGE + ".r" + round;
+
+        int[][] merged = new int[classes][];
+
+        Map<String, byte[]> classFiles = CorpusCompiler.compile(sources(packageName, merged));
+
+        Set<String> hidden = new HashSet<>();
+
+        for (String internalName : classFiles.keySet()) {
+            if (random.nextDouble() < hiddenFraction) {
+                hidden.add(internalName);
+            }
+        }
+
+        // Classes that can't be transformed, because hierarchies of the classes they merge are not fully available.
+        Set<String> untransformable = new HashSet<>();
+
+        for (int i = 0; i < classes; i++) {
+            for (int type : merged[i]) {
+                for (int ancestor = type; ; ancestor = (ancestor - 1) / 2) {
+                    if (ancestor != i && hidden.contains(packageName.replace('.', '/') + "/S" + ancestor)) {
+                        untransformable.add(packageName + ".S" + i);
+                    }
+
+                    if (ancestor == 0) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        List<String> classNames = new ArrayList<>();
+
+        for (int i = 0; i < classes; i++) {
+            classNames.add(packageName + ".S" + i);
+        }
+
+        // Every loader loads every class, tasks of different loaders are interleaved.
+        List<Task> tasks = new ArrayList<>();
+
+        for (int l = 0; l < loaders; l++) {
+            var loader = new StressClassLoader(classFiles, hidden);
+
+            for (String className : classNames) {
+                tasks.add(new Task(loader, className));
+            }
+        }
+
+        Collections.shuffle(tasks, random);
+
+        var next = new AtomicInteger();
+
+        Worker[] workers = new Worker[threads];
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(tasks, next, untransformable, "stress-" + threads + "-" + i);
+            workers[i].start();
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        for (Worker worker : workers) {
+            worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+
+            if (worker.isAlive()) {
+                System.err.println("Timed out after " + timeoutMillis + " ms with " + threads + " threads");
+
+                printThreads(ManagementFactory.getThreadMXBean().dumpAllThreads(true, true));
+
+                System.exit(3);
+            }
+        }
+
+        long wallNanos = System.nanoTime() - start;
+
+        var stats = new RoundStats(wallNanos);
+
+        for (Worker worker : workers) {
+            stats.loaded += worker.loaded;
+            stats.untransformed += worker.untransformed;
+            stats.failures += worker.failures;
+
+            if (stats.firstFailure == null) {
+                stats.firstFailure = worker.firstFailure;
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * Generates sources. Class {@code S(i)} extends {@code S((i - 1) / 2)}, so that the hierarchy is a binary tree.
+     *
+     * @param merged Output array, indexes of classes that are merged by each class.
+     */
+    private Map<String, String> sources(String packageName, int[][] merged) {
+        Map<String, String> sources = new HashMap<>();
+
+        for (int i = 0; i < classes; i++) {
+            String superClass = i == 0 ? "Object" : "S" + (i - 1) / 2;
+
+            // Two different classes, their common super class is only known by walking the hierarchy.
+            int left = random.nextInt(classes);
+            int right = random.nextInt(classes);
+
+            merged[i] = new int[] {left, right};
+
+            boolean usesFinally = random.nextDouble() < finallyFraction;
+
+            var sb = new StringBuilder();
+
+            sb.append("package ").append(packageName).append(";\n\n");
+            sb.append("import ").append(Finally.class.getName()).append(";\n\n");
+            sb.append("public class S").append(i).append(" extends ").append(superClass).append(" {\n");
+            sb.append("    public static int run(int p) {\n");
+            sb.append("        Object o = (p & 1) == 0 ? new S").append(left).append("() : new S").append(right).append("();\n");
+
+            if (usesFinally) {
+                sb.append("        try {\n");
+                sb.append("            return o.getClass().getName().length() + p;\n");
+                sb.append("        } finally {\n");
+                sb.append("            if (!Finally.hasReturnedValue()) {\n");
+                sb.append("                throw new IllegalStateException(\"").append(NOT_TRANSFORMED_MESSAGE).append("\");\n");
+                sb.append("            }\n");
+                sb.append("        }\n");
+            } else {
+                sb.append("        return o.getClass().getName().length() + p;\n");
+            }
+
+            sb.append("    }\n");
+            sb.append("}\n");
+
+            sources.put(packageName + ".S" + i, sb.toString());
+        }
+
+        return sources;
+    }
+
+    private static void startWatchdog() {
+        var watchdog = new Thread(() -> {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+            while (true) {
+                long[] deadlocked = threadMXBean.findDeadlockedThreads();
+
+                if (deadlocked != null) {
+                    System.err.println("Deadlock detected between " + deadlocked.length + " threads");
+
+                    printThreads(threadMXBean.getThreadInfo(deadlocked, true, true));
+
+                    System.exit(2);
+                }
+
+                try {
+                    Thread.sleep(WATCHDOG_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "stress-watchdog");
+
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private static void printThreads(ThreadInfo[] threadInfos) {
+        for (ThreadInfo threadInfo : threadInfos) {
+            if (threadInfo == null) {
+                continue;
+            }
+
+            // ThreadInfo#toString only prints a few frames.
+            System.err.print(threadInfo.getThreadName() + " " + threadInfo.getThreadState());
+
+            if (threadInfo.getLockName() != null) {
+                System.err.print(" on " + threadInfo.getLockName() + " owned by " + threadInfo.getLockOwnerName());
+            }
+
+            System.err.println();
+
+            for (StackTraceElement element : threadInfo.getStackTrace()) {
+                System.err.println("\tat " + element);
+            }
+
+            System.err.println();
+        }
+    }
+
+    private static String toJson(int classes, int loaders, double finallyFraction, double hiddenFraction, long seed,
+                                 List<String> results) {
+        var sb = new StringBuilder();
+
+        sb.append("{\n");
+        sb.append("  \"javaVersion\": ").append(ScanBenchmark.quote(System.getProperty("java.version"))).append(",\n");
+        sb.append("  \"javaVmName\": ").append(ScanBenchmark.quote(System.getProperty("java.vm.name"))).append(",\n");
+        sb.append("  \"availableProcessors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"classes\": ").append(classes).append(",\n");
+        sb.append("  \"loaders\": ").append(loaders).append(",\n");
+        sb.append("  \"finallyFraction\": ").append(finallyFraction).append(",\n");
+        sb.append("  \"hiddenFraction\": ").append(hiddenFraction).append(",\n");
+        sb.append("  \"seed\": ").append(seed).append(",\n");
+
+        sb.append("  \"rounds\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("    ").append(results.get(i)).append(i == results.size() - 1 ? "\n" : ",\n");
+        }
+        sb.append("  ]\n");
+
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+
+    /**
+     * Loading of a single class by a single loader.
+     */
+    private static final class Task {
+        final StressClassLoader loader;
+
+        final String className;
+
+        Task(StressClassLoader loader, String className) {
+            this.loader = loader;
+            this.className = className;
+        }
+    }
+
+    private static final class RoundStats {
+        final long wallNanos;
+
+        int loaded;
+
+        int untransformed;
+
+        int failures;
+
+        Throwable firstFailure;
+
+        RoundStats(long wallNanos) {
+            this.wallNanos = wallNanos;
+        }
+    }
+
+    /**
+     * Stress thread, takes tasks from the shared counter until there are none left.
+     */
+    private static final class Worker extends Thread {
+        private final List<Task> tasks;
+
+        private final AtomicInteger next;
+
+        /** Names of classes that are expected to be loaded untransformed. */
+        private final Set<String> untransformable;
+
+        private int loaded;
+
+        private int untransformed;
+
+        private int failures;
+
+        private Throwable firstFailure;
+
+        Worker(List<Task> tasks, AtomicInteger next, Set<String> untransformable, String name) {
+            super(name);
+
+            this.tasks = tasks;
+            this.next = next;
+            this.untransformable = untransformable;
+
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            for (int i = next.getAndIncrement(); i < tasks.size(); i = next.getAndIncrement()) {
+                Task task = tasks.get(i);
+
+                try {
+                    Class<?> clazz = Class.forName(task.className, true, task.loader);
+
+                    clazz.getMethod("run", int.class).invoke(null, i);
+
+                    loaded++;
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+
+                    if (cause instanceof IllegalStateException && NOT_TRANSFORMED_MESSAGE.equals(cause.getMessage())
+                            && untransformable.contains(task.className)) {
+                        loaded++;
+                        untransformed++;
+                    } else {
+                        fail(cause);
+                    }
+                } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private void fail(Throwable e) {
+            failures++;
+
+            if (firstFailure == null) {
+                firstFailure = e;
+            }
+        }
+    }
+
+    /**
+     * Parallel-capable class loader of generated classes. Class files of hidden classes are not available as
+     * resources.
+     */
+    private static final class StressClassLoader extends ClassLoader {
+        static {
+            registerAsParallelCapable();
+        }
+
+        /** Class files by internal name. */
+        private final Map<String, byte[]> classFiles;
+
+        /** Internal names of classes that are not available as resources. */
+        private final Set<String> hidden;
+
+        StressClassLoader(Map<String, byte[]> classFiles, Set<String> hidden) {
+            super(Finally.class.getClassLoader());
+
+            this.classFiles = classFiles;
+            this.hidden = hidden;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] classFile = classFiles.get(name.replace('.', '/'));
+
+            if (classFile == null) {
+                throw new ClassNotFoundException(name);
+            }
+
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            if (name.endsWith(".class")) {
+                String internalName = name.substring(0, name.length() - ".class".length());
+
+                byte[] classFile = classFiles.get(internalName);
+
+                if (classFile != null) {
+                    return hidden.contains(internalName) ? null : new ByteArrayInputStream(classFile);
+                }
+            }
+
+            return super.getResourceAsStream(name);
+        }
+    }
+}
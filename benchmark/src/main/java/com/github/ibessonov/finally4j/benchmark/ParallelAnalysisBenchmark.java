@@ -0,0 +1,358 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark;
+
+import com.github.ibessonov.finally4j.Finally;
+import com.github.ibessonov.finally4j.agent.transformer.FinallyClassFileTransformer;
+import com.github.ibessonov.finally4j.benchmark.corpus.CorpusClassLoader;
+import com.github.ibessonov.finally4j.benchmark.corpus.CorpusCompiler;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Benchmark of the parallel analysis of methods, see {@code -Dfinally4j.parallelism}. Measures transformation latency
+ * of generated classes with a growing number of methods, up to 5000 by default, with serial and parallel analysis. The
+ * crossover point is what {@code -Dfinally4j.parallelism.threshold} should be set to, 64 by default. Every method has
+ * the same nested {@code try/catch/finally} statements. Random methods of {@code CorpusGenerator} are not used, they
+ * have too many unique constants to fit thousands of them into a single class. Usage:
+ * <pre>
+ * java -cp finally4j-benchmark.jar:finally4j-agent.jar:finally4j.jar:asm.jar:asm-tree.jar \
+ *     com.github.ibessonov.finally4j.benchmark.ParallelAnalysisBenchmark \
+ *     [-m max-methods] [-p parallelism,...] [-w warmup-iterations] [-i iterations] [-d work-dir] [-o result.json]
+ * </pre>
+ * Parallelism is a static setting of the agent, that's why every mode is measured in a separate JVM. Parallel modes
+ * set the threshold to {@code 1}, so that even the smallest classes are analyzed in parallel. Default parallelism is
+ * the number of available processors.
+ *
+ * @author ibessonov
+ */
+public final class ParallelAnalysisBenchmark {
+    private static final String CHILD_OPTION = "--child";
+
+    private static final String PACKAGE = "corpus";
+
+    private static final int MIN_METHODS = 8;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals(CHILD_OPTION)) {
+            child(Path.of(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+
+            return;
+        }
+
+        int maxMethods = 5000;
+        int[] parallelism = {Runtime.getRuntime().availableProcessors()};
+        int warmupIterations = 10;
+        int iterations = 20;
+        Path workDir = null;
+        Path output = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-m":
+                    maxMethods = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-p":
+                    parallelism = Stream.of(args[++i].split(",")).mapToInt(Integer::parseInt).toArray();
+                    break;
+
+                case "-w":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-i":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-d":
+                    workDir = Path.of(args[++i]);
+                    break;
+
+                case "-o":
+                    output = Path.of(args[++i]);
+                    break;
+
+                default:
+                    System.err.println("Usage: ParallelAnalysisBenchmark [-m max-methods] [-p parallelism,...] [-w warmup-iterations] [-i iterations] [-d work-dir] [-o result.json]");
+
+                    System.exit(1);
+            }
+        }
+
+        if (workDir == null) {
+            workDir = Files.createTempDirectory("finally4j-parallel");
+        } else {
+            Files.createDirectories(workDir);
+        }
+
+        System.err.println("Generating classes in " + workDir);
+
+        for (int methods : sizes(maxMethods)) {
+            Map<String, String> sources = Map.of(PACKAGE + ".Methods" + methods, source(methods));
+
+            for (Map.Entry<String, byte[]> entry : CorpusCompiler.compile(sources).entrySet()) {
+                Path path = workDir.resolve(String.valueOf(methods)).resolve(entry.getKey() + ".class");
+
+                Files.createDirectories(path.getParent());
+                Files.write(path, entry.getValue());
+            }
+        }
+
+        List<String> modes = new ArrayList<>();
+
+        modes.add(mode(0, run(workDir, 0, warmupIterations, iterations)));
+
+        for (int p : parallelism) {
+            modes.add(mode(p, run(workDir, p, warmupIterations, iterations)));
+        }
+
+        String json = toJson(iterations, modes);
+
+        if (output == null) {
+            System.out.println(json);
+        } else {
+            Files.writeString(output, json, UTF_8);
+        }
+    }
+
+    /**
+     * @return Numbers of methods of generated classes, doubling from {@value #MIN_METHODS} up to {@code maxMethods}.
+     */
+    private static List<Integer> sizes(int maxMethods) {
+        List<Integer> sizes = new ArrayList<>();
+
+        for (int methods = MIN_METHODS; methods < maxMethods; methods *= 2) {
+            sizes.add(methods);
+        }
+
+        sizes.add(maxMethods);
+
+        return sizes;
+    }
+
+    /**
+     * @return Source of the class with given number of methods.
+     */
+    private static String source(int methods) {
+        var sb = new StringBuilder();
+
+        sb.append("package ").append(PACKAGE).append(";\n\n");
+        sb.append("import ").append(Finally.class.getName()).append(";\n\n");
+        sb.append("public class Methods").append(methods).append(" {\n");
+
+        for (int m = 0; m < methods; m++) {
+            sb.append("    public static int m").append(m).append("(int p) {\n");
+            sb.append("        int r = 0;\n");
+            sb.append("        try {\n");
+            sb.append("            try {\n");
+            sb.append("                if (p < 0) {\n");
+            sb.append("                    throw new IllegalArgumentException(\"p\");\n");
+            sb.append("                }\n");
+            sb.append("                r = p + ").append(m).append(";\n");
+            sb.append("                if ((p & 1) != 0) {\n");
+            sb.append("                    return r;\n");
+            sb.append("                }\n");
+            sb.append("            } catch (IllegalArgumentException e) {\n");
+            sb.append("                return -1;\n");
+            sb.append("            } finally {\n");
+            sb.append("                if (Finally.hasReturnedValue()) {\n");
+            sb.append("                    r += Finally.returnedValueInt();\n");
+            sb.append("                }\n");
+            sb.append("            }\n");
+            sb.append("            return r * 2;\n");
+            sb.append("        } finally {\n");
+            sb.append("            if (Finally.hasThrownException()) {\n");
+            sb.append("                r = 0;\n");
+            sb.append("            }\n");
+            sb.append("        }\n");
+            sb.append("    }\n\n");
+        }
+
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+
+    /**
+     * Measures all classes from the work directory in a new JVM.
+     *
+     * @param parallelism Number of analysis threads, {@code 0} for the serial analysis.
+     * @return JSON results of all classes, one per line.
+     */
+    private static List<String> run(Path workDir, int parallelism, int warmupIterations, int iterations)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Dfinally4j.parallelism=" + parallelism);
+        command.add("-Dfinally4j.parallelism.threshold=1");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ParallelAnalysisBenchmark.class.getName());
+        command.add(CHILD_OPTION);
+        command.add(workDir.toString());
+        command.add(String.valueOf(warmupIterations));
+        command.add(String.valueOf(iterations));
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+
+        List<String> lines;
+
+        try (var reader = new BufferedReader(new InputStreamReader(process.getInputStream(), UTF_8))) {
+            lines = reader.lines().collect(toList());
+        }
+
+        int exitCode = process.waitFor();
+
+        if (exitCode != 0) {
+            throw new IllegalStateException("Command failed with exit code " + exitCode + ": " + command);
+        }
+
+        return lines;
+    }
+
+    /**
+     * Measurement part that runs in a separate JVM, prints JSON results to the standard output, one line per class.
+     */
+    private static void child(Path workDir, int warmupIterations, int iterations) throws IOException {
+        String mode = Integer.getInteger("finally4j.parallelism", 0) == 0
+                ? "serial"
+                : "parallelism " + Integer.getInteger("finally4j.parallelism");
+
+        // Cache would return the same result for every iteration.
+        var transformer = new FinallyClassFileTransformer(0);
+
+        List<Path> dirs;
+
+        try (Stream<Path> stream = Files.list(workDir)) {
+            dirs = stream.sorted((a, b) -> Integer.compare(methods(a), methods(b))).collect(toList());
+        }
+
+        for (Path dir : dirs) {
+            int methods = methods(dir);
+            String className = PACKAGE + "/Methods" + methods;
+
+            Map<String, byte[]> classFiles = readClassFiles(dir);
+            byte[] classfileBuffer = classFiles.get(className);
+
+            var loader = new CorpusClassLoader(classFiles);
+
+            for (int i = 0; i < warmupIterations; i++) {
+                transform(transformer, loader, className, classfileBuffer);
+            }
+
+            long[] latencies = new long[iterations];
+
+            for (int i = 0; i < iterations; i++) {
+                long start = System.nanoTime();
+
+                transform(transformer, loader, className, classfileBuffer);
+
+                latencies[i] = System.nanoTime() - start;
+            }
+
+            Arrays.sort(latencies);
+
+            long median = latencies[latencies.length / 2];
+
+            System.err.printf(Locale.ROOT, "%s, %d methods, %d bytes: p50 %d us, min %d us, max %d us%n",
+                    mode, methods, classfileBuffer.length,
+                    median / 1000, latencies[0] / 1000, latencies[latencies.length - 1] / 1000);
+
+            System.out.printf(Locale.ROOT,
+                    "{\"methods\": %d, \"bytes\": %d, \"latencyNanos\": {\"p50\": %d, \"min\": %d, \"max\": %d}}%n",
+                    methods, classfileBuffer.length, median, latencies[0], latencies[latencies.length - 1]);
+        }
+    }
+
+    private static int methods(Path dir) {
+        return Integer.parseInt(dir.getFileName().toString());
+    }
+
+    /**
+     * @return Class files from the directory by internal name.
+     */
+    private static Map<String, byte[]> readClassFiles(Path dir) throws IOException {
+        Map<String, byte[]> classFiles = new HashMap<>();
+
+        List<Path> files;
+
+        try (Stream<Path> stream = Files.walk(dir)) {
+            files = stream.filter(Files::isRegularFile).collect(toList());
+        }
+
+        for (Path file : files) {
+            String name = dir.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+
+            classFiles.put(name.substring(0, name.length() - ".class".length()), Files.readAllBytes(file));
+        }
+
+        return classFiles;
+    }
+
+    private static void transform(FinallyClassFileTransformer transformer, ClassLoader loader, String className,
+                                  byte[] classfileBuffer) {
+        if (transformer.transform(loader, className, null, null, classfileBuffer) == null) {
+            throw new IllegalStateException("Class " + className + " wasn't transformed");
+        }
+    }
+
+    private static String mode(int parallelism, List<String> results) {
+        var sb = new StringBuilder();
+
+        sb.append("{\"parallelism\": ").append(parallelism).append(", \"classes\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("      ").append(results.get(i)).append(i == results.size() - 1 ? "\n" : ",\n");
+        }
+        sb.append("    ]}");
+
+        return sb.toString();
+    }
+
+    private static String toJson(int iterations, List<String> modes) {
+        var sb = new StringBuilder();
+
+        sb.append("{\n");
+        sb.append("  \"javaVersion\": ").append(ScanBenchmark.quote(System.getProperty("java.version"))).append(",\n");
+        sb.append("  \"javaVmName\": ").append(ScanBenchmark.quote(System.getProperty("java.vm.name"))).append(",\n");
+        sb.append("  \"availableProcessors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"iterations\": ").append(iterations).append(",\n");
+
+        sb.append("  \"modes\": [\n");
+        for (int i = 0; i < modes.size(); i++) {
+            sb.append("    ").append(modes.get(i)).append(i == modes.size() - 1 ? "\n" : ",\n");
+        }
+        sb.append("  ]\n");
+
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+}
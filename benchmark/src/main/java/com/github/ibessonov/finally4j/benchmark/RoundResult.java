@@ -0,0 +1,82 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Statistics of a single pass over all class files.
+ *
+ * @author ibessonov
+ */
+final class RoundResult {
+    private static final double NANOS_PER_SECOND = 1e9;
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    final int classes;
+    final int transformed;
+    final int failures;
+    final long bytes;
+    final long wallNanos;
+
+    /** Sorted latencies of individual transformations. */
+    final long[] latencies;
+
+    /** Bytes allocated by transformations, {@code -1} if the JVM can't measure it. */
+    final long allocatedBytes;
+
+    RoundResult(int transformed, int failures, long bytes, long wallNanos, long[] latencies, long allocatedBytes) {
+        this.classes = latencies.length;
+        this.transformed = transformed;
+        this.failures = failures;
+        this.bytes = bytes;
+        this.wallNanos = wallNanos;
+        this.latencies = latencies;
+        this.allocatedBytes = allocatedBytes;
+
+        Arrays.sort(latencies);
+    }
+
+    double classesPerSecond() {
+        return classes * NANOS_PER_SECOND / wallNanos;
+    }
+
+    double mbPerSecond() {
+        return bytes / BYTES_PER_MB * NANOS_PER_SECOND / wallNanos;
+    }
+
+    long percentile(double percentile) {
+        return latencies.length == 0 ? 0 : latencies[(int) Math.ceil(percentile * latencies.length) - 1];
+    }
+
+    long max() {
+        return latencies.length == 0 ? 0 : latencies[latencies.length - 1];
+    }
+
+    String toJson() {
+        return String.format(Locale.ROOT,
+                "{\"classes\": %d, \"transformed\": %d, \"failures\": %d, \"bytes\": %d, \"wallMillis\": %.3f, "
+                        + "\"classesPerSecond\": %.1f, \"mbPerSecond\": %.3f, "
+                        + "\"latencyNanos\": {\"p50\": %d, \"p99\": %d, \"max\": %d}, "
+                        + "\"allocatedBytes\": %d, \"allocatedBytesPerClass\": %d}",
+                classes, transformed, failures, bytes, wallNanos / 1e6,
+                classesPerSecond(), mbPerSecond(),
+                percentile(0.5), percentile(0.99), max(),
+                allocatedBytes, allocatedBytes < 0 || classes == 0 ? -1 : allocatedBytes / classes
+        );
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark;
+
+import com.github.ibessonov.finally4j.agent.transformer.FinallyClassFileTransformer;
+import com.github.ibessonov.finally4j.agent.transformer.util.ClassFileScanner;
+import com.github.ibessonov.finally4j.benchmark.ClassFiles.ClassFile;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Macro benchmark that passes every class of the JDK runtime image and of given jars through
+ * {@link FinallyClassFileTransformer}, the way the agent sees them during the startup, and reports throughput,
+ * latency and allocation as JSON. Usage:
+ * <pre>
+ * java -cp finally4j-benchmark.jar:finally4j-agent.jar:asm.jar:asm-tree.jar \
+ *     com.github.ibessonov.finally4j.benchmark.ScanBenchmark \
+ *     [-t threads] [-w warmup-rounds] [-r rounds] [-o result.json] [--no-jdk] [--prefilter] [jars...]
+ * </pre>
+ * <ul>
+ *     <li>{@code --prefilter} - skip classes rejected by {@link ClassFileScanner}, like the agent does, instead of
+ *     passing everything to the transformer.</li>
+ *     <li>{@code --no-jdk} - only use given jars.</li>
+ * </ul>
+ * Every round uses a new transformer, so that its cache only helps with duplicate classes within the round. Latency
+ * and allocation only include the transformation itself, throughput also includes reading of class files.
+ *
+ * @author ibessonov
+ */
+public final class ScanBenchmark {
+    private final List<ClassFile> classFiles;
+
+    private final int threads;
+
+    private final boolean prefilter;
+
+    private ScanBenchmark(List<ClassFile> classFiles, int threads, boolean prefilter) {
+        this.classFiles = classFiles;
+        this.threads = threads;
+        this.prefilter = prefilter;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int warmupRounds = 1;
+        int rounds = 3;
+        Path output = null;
+        boolean jdk = true;
+        boolean prefilter = false;
+        List<Path> jars = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-t":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-w":
+                    warmupRounds = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-r":
+                    rounds = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-o":
+                    output = Path.of(args[++i]);
+                    break;
+
+                case "--no-jdk":
+                    jdk = false;
+                    break;
+
+                case "--prefilter":
+                    prefilter = true;
+                    break;
+
+                default:
+                    if (args[i].startsWith("-")) {
+                        System.err.println("Usage: ScanBenchmark [-t threads] [-w warmup-rounds] [-r rounds] [-o result.json] [--no-jdk] [--prefilter] [jars...]");
+
+                        System.exit(1);
+                    }
+
+                    jars.add(Path.of(args[i]));
+            }
+        }
+
+        try (var classFiles = new ClassFiles()) {
+            if (jdk) {
+                classFiles.addRuntimeImage();
+            }
+
+            for (Path jar : jars) {
+                classFiles.addJar(jar);
+            }
+
+            var benchmark = new ScanBenchmark(classFiles.list(), threads, prefilter);
+
+            for (int i = 0; i < warmupRounds; i++) {
+                log("Warmup round " + (i + 1), benchmark.round());
+            }
+
+            List<RoundResult> results = new ArrayList<>();
+
+            for (int i = 0; i < rounds; i++) {
+                RoundResult result = benchmark.round();
+
+                log("Round " + (i + 1), result);
+
+                results.add(result);
+            }
+
+            String json = toJson(threads, prefilter, jdk, jars, results);
+
+            if (output == null) {
+                System.out.println(json);
+            } else {
+                Files.writeString(output, json, UTF_8);
+            }
+        }
+    }
+
+    private RoundResult round() throws InterruptedException {
+        var transformer = new FinallyClassFileTransformer();
+
+        var next = new AtomicInteger();
+
+        Worker[] workers = new Worker[threads];
+
+        long start = System.nanoTime();
+
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(transformer, next);
+            workers[i].start();
+        }
+
+        for (Worker worker : workers) {
+            worker.join();
+        }
+
+        long wallNanos = System.nanoTime() - start;
+
+        int transformed = 0;
+        int failures = 0;
+        long bytes = 0;
+        long allocatedBytes = 0;
+        long[] latencies = new long[0];
+
+        for (Worker worker : workers) {
+            if (worker.error != null) {
+                throw new IllegalStateException("Benchmark failed", worker.error);
+            }
+
+            transformed += worker.transformed;
+            failures += worker.failures;
+            bytes += worker.bytes;
+            allocatedBytes = allocatedBytes < 0 || worker.allocatedBytes < 0 ? -1 : allocatedBytes + worker.allocatedBytes;
+
+            int offset = latencies.length;
+
+            latencies = Arrays.copyOf(latencies, offset + worker.count);
+
+            System.arraycopy(worker.latencies, 0, latencies, offset, worker.count);
+        }
+
+        return new RoundResult(transformed, failures, bytes, wallNanos, latencies, allocatedBytes);
+    }
+
+    private static void log(String round, RoundResult result) {
+        System.err.printf(Locale.ROOT, "%s: %d classes, %.1f classes/s, %.3f MB/s, p50 %d ns, p99 %d ns, max %d ns%n",
+                round, result.classes, result.classesPerSecond(), result.mbPerSecond(),
+                result.percentile(0.5), result.percentile(0.99), result.max());
+    }
+
+    private static String toJson(int threads, boolean prefilter, boolean jdk, List<Path> jars, List<RoundResult> results) {
+        var sb = new StringBuilder();
+
+        sb.append("{\n");
+        sb.append("  \"agentVersion\": ").append(quote(agentVersion())).append(",\n");
+        sb.append("  \"javaVersion\": ").append(quote(System.getProperty("java.version"))).append(",\n");
+        sb.append("  \"javaVmName\": ").append(quote(System.getProperty("java.vm.name"))).append(",\n");
+        sb.append("  \"osArch\": ").append(quote(System.getProperty("os.arch"))).append(",\n");
+        sb.append("  \"availableProcessors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"threads\": ").append(threads).append(",\n");
+        sb.append("  \"prefilter\": ").append(prefilter).append(",\n");
+        sb.append("  \"runtimeImage\": ").append(jdk).append(",\n");
+
+        sb.append("  \"jars\": [");
+        for (int i = 0; i < jars.size(); i++) {
+            sb.append(i == 0 ? "" : ", ").append(quote(jars.get(i).toAbsolutePath().toString()));
+        }
+        sb.append("],\n");
+
+        sb.append("  \"rounds\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("    ").append(results.get(i).toJson()).append(i == results.size() - 1 ? "\n" : ",\n");
+        }
+        sb.append("  ]\n");
+
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+
+    private static String agentVersion() {
+        String version = FinallyClassFileTransformer.class.getPackage().getImplementationVersion();
+
+        return version == null ? "unknown" : version;
+    }
+
+    static String quote(String s) {
+        var sb = new StringBuilder("\"");
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < ' ') {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Benchmark thread, takes class files from the shared counter until there are none left.
+     */
+    private final class Worker extends Thread {
+        private final FinallyClassFileTransformer transformer;
+
+        private final AtomicInteger next;
+
+        private long[] latencies = new long[1024];
+
+        private int count;
+
+        private int transformed;
+
+        private int failures;
+
+        private long bytes;
+
+        private long allocatedBytes;
+
+        private Throwable error;
+
+        Worker(FinallyClassFileTransformer transformer, AtomicInteger next) {
+            this.transformer = transformer;
+            this.next = next;
+
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+            com.sun.management.ThreadMXBean allocationMXBean = threadMXBean instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) threadMXBean).isThreadAllocatedMemorySupported()
+                    ? (com.sun.management.ThreadMXBean) threadMXBean
+                    : null;
+
+            if (allocationMXBean == null) {
+                allocatedBytes = -1;
+            }
+
+            // "getCurrentThreadAllocatedBytes" only exists since Java 14.
+            long threadId = Thread.currentThread().getId();
+
+            try {
+                for (int i = next.getAndIncrement(); i < classFiles.size(); i = next.getAndIncrement()) {
+                    ClassFile classFile = classFiles.get(i);
+
+                    byte[] classfileBuffer = classFile.read();
+
+                    bytes += classfileBuffer.length;
+
+                    long allocatedBefore = allocationMXBean == null ? 0 : allocationMXBean.getThreadAllocatedBytes(threadId);
+                    long start = System.nanoTime();
+
+                    try {
+                        if (!prefilter || ClassFileScanner.referencesFinally(classfileBuffer)) {
+                            if (transformer.transform(classFile.loader, classFile.name, null, null, classfileBuffer) != null) {
+                                transformed++;
+                            }
+                        }
+                    } catch (RuntimeException | LinkageError e) {
+                        failures++;
+                    }
+
+                    long latency = System.nanoTime() - start;
+
+                    if (allocationMXBean != null) {
+                        allocatedBytes += allocationMXBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+                    }
+
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+
+                    latencies[count++] = latency;
+                }
+            } catch (IOException | RuntimeException | Error e) {
+                error = e;
+            }
+        }
+    }
+}
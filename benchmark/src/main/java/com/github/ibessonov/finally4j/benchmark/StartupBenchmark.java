@@ -0,0 +1,378 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark;
+
+import com.github.ibessonov.finally4j.Finally;
+import com.github.ibessonov.finally4j.agent.FinallyAgentPreMain;
+import com.github.ibessonov.finally4j.agent.offline.OfflineTransformer;
+import com.github.ibessonov.finally4j.benchmark.corpus.CorpusCompiler;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Startup benchmark of a generated application, where every class uses "Finally". Usage:
+ * <pre>
+ * java -cp finally4j-benchmark.jar:finally4j-agent.jar:finally4j.jar:asm.jar:asm-tree.jar \
+ *     com.github.ibessonov.finally4j.benchmark.StartupBenchmark \
+ *     [-c classes] [-m methods] [-w warmup-runs] [-r runs] [-d work-dir] [-o result.json]
+ * </pre>
+ * Wall time of the whole JVM process is compared in three modes, all of them with the agent attached:
+ * <ul>
+ *     <li>{@code agent} - application is transformed by the agent at load time.</li>
+ *     <li>{@code pretransformed} - application and {@code finally4j.jar} are transformed offline, the agent skips
+ *     them and never loads ASM.</li>
+ *     <li>{@code pretransformed-cds} - same, plus an AppCDS archive that is dumped from the class list of a training
+ *     run, see {@code FinallyTransformMain}.</li>
+ * </ul>
+ * Runs of different modes are interleaved, so that the noise affects them equally.
+ *
+ * @author ibessonov
+ */
+public final class StartupBenchmark {
+    private static final String PACKAGE = "app";
+
+    private static final String MAIN_CLASS = PACKAGE + ".Main";
+
+    private static final String[] MODES = {"agent", "pretransformed", "pretransformed-cds"};
+
+    public static void main(String[] args) throws Exception {
+        int classes = 2000;
+        int methods = 5;
+        int warmupRuns = 1;
+        int runs = 10;
+        Path workDir = null;
+        Path output = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-c":
+                    classes = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-m":
+                    methods = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-w":
+                    warmupRuns = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-r":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+
+                case "-d":
+                    workDir = Path.of(args[++i]);
+                    break;
+
+                case "-o":
+                    output = Path.of(args[++i]);
+                    break;
+
+                default:
+                    System.err.println("Usage: StartupBenchmark [-c classes] [-m methods] [-w warmup-runs] [-r runs] [-d work-dir] [-o result.json]");
+
+                    System.exit(1);
+            }
+        }
+
+        if (workDir == null) {
+            workDir = Files.createTempDirectory("finally4j-startup");
+        } else {
+            Files.createDirectories(workDir);
+        }
+
+        System.err.println("Preparing the application in " + workDir);
+
+        Path appJar = workDir.resolve("app.jar");
+        Path libJar = workDir.resolve("finally4j.jar");
+        Path agentJar = workDir.resolve("finally4j-agent.jar");
+
+        writeJar(appJar, CorpusCompiler.compile(sources(classes, methods)));
+
+        jarOf(location(Finally.class), libJar, null);
+        jarOf(location(FinallyAgentPreMain.class), agentJar, agentManifest());
+
+        Path transformedAppJar = workDir.resolve("app-transformed.jar");
+        Path transformedLibJar = workDir.resolve("finally4j-transformed.jar");
+
+        new OfflineTransformer(Runtime.getRuntime().availableProcessors()).transform(appJar, transformedAppJar);
+        new OfflineTransformer(Runtime.getRuntime().availableProcessors()).transform(libJar, transformedLibJar);
+
+        String asmClassPath = classPath(location(ClassReader.class), location(MethodNode.class));
+
+        String transformedClassPath = classPath(transformedAppJar, transformedLibJar);
+
+        Path classList = workDir.resolve("app.classlist");
+        Path archive = workDir.resolve("app.jsa");
+
+        run(List.of("-Xshare:off", "-XX:DumpLoadedClassList=" + classList, "-cp", transformedClassPath, MAIN_CLASS));
+        run(List.of("-Xshare:dump", "-XX:SharedClassListFile=" + classList, "-XX:SharedArchiveFile=" + archive,
+                "-cp", transformedClassPath));
+
+        String javaAgent = "-javaagent:" + agentJar;
+
+        List<List<String>> commands = List.of(
+                List.of(javaAgent, "-cp", classPath(appJar, libJar) + File.pathSeparator + asmClassPath, MAIN_CLASS),
+                List.of(javaAgent, "-cp", transformedClassPath + File.pathSeparator + asmClassPath, MAIN_CLASS),
+                // "Xshare:on" makes the JVM fail instead of silently ignoring an unusable archive.
+                List.of("-Xshare:on", "-XX:SharedArchiveFile=" + archive, javaAgent,
+                        "-cp", transformedClassPath + File.pathSeparator + asmClassPath, MAIN_CLASS)
+        );
+
+        for (int i = 0; i < warmupRuns; i++) {
+            for (List<String> command : commands) {
+                run(command);
+            }
+        }
+
+        long[][] wallNanos = new long[MODES.length][runs];
+
+        for (int i = 0; i < runs; i++) {
+            for (int mode = 0; mode < MODES.length; mode++) {
+                wallNanos[mode][i] = run(commands.get(mode));
+            }
+        }
+
+        List<String> results = new ArrayList<>();
+
+        for (int mode = 0; mode < MODES.length; mode++) {
+            long[] nanos = wallNanos[mode];
+
+            Arrays.sort(nanos);
+
+            double median = nanos[nanos.length / 2] / 1e6;
+
+            System.err.printf(Locale.ROOT, "%s: p50 %.1f ms, min %.1f ms, max %.1f ms%n",
+                    MODES[mode], median, nanos[0] / 1e6, nanos[nanos.length - 1] / 1e6);
+
+            results.add(String.format(Locale.ROOT,
+                    "{\"mode\": %s, \"wallMillis\": {\"p50\": %.3f, \"min\": %.3f, \"max\": %.3f}}",
+                    ScanBenchmark.quote(MODES[mode]), median, nanos[0] / 1e6, nanos[nanos.length - 1] / 1e6
+            ));
+        }
+
+        String json = toJson(classes, methods, runs, results);
+
+        if (output == null) {
+            System.out.println(json);
+        } else {
+            Files.writeString(output, json, UTF_8);
+        }
+    }
+
+    /**
+     * Generates the application. Every method of every class checks that it's been transformed in its finally block.
+     */
+    private static Map<String, String> sources(int classes, int methods) {
+        Map<String, String> sources = new HashMap<>();
+
+        var main = new StringBuilder();
+
+        main.append("package ").append(PACKAGE).append(";\n\n");
+        main.append("public class Main {\n");
+        main.append("    public static void main(String[] args) {\n");
+        main.append("        long sum = 0;\n");
+
+        for (int i = 0; i < classes; i++) {
+            var sb = new StringBuilder();
+
+            sb.append("package ").append(PACKAGE).append(";\n\n");
+            sb.append("import ").append(Finally.class.getName()).append(";\n\n");
+            sb.append("public class C").append(i).append(" {\n");
+
+            for (int m = 0; m < methods; m++) {
+                sb.append("    public static int m").append(m).append("(int p) {\n");
+                sb.append("        try {\n");
+                sb.append("            if (p < 0) {\n");
+                sb.append("                throw new IllegalArgumentException(\"p\");\n");
+                sb.append("            }\n");
+                sb.append("            return p + ").append(m).append(";\n");
+                sb.append("        } finally {\n");
+                sb.append("            if (!Finally.hasReturnedValue() && !Finally.hasThrownException()) {\n");
+                sb.append("                throw new IllegalStateException(\"Class is not transformed\");\n");
+                sb.append("            }\n");
+                sb.append("        }\n");
+                sb.append("    }\n\n");
+
+                main.append("        sum += C").append(i).append(".m").append(m).append("(").append(i).append(");\n");
+            }
+
+            sb.append("}\n");
+
+            sources.put(PACKAGE + ".C" + i, sb.toString());
+        }
+
+        main.append("        if (sum < 0) {\n");
+        main.append("            throw new AssertionError(sum);\n");
+        main.append("        }\n");
+        main.append("    }\n");
+        main.append("}\n");
+
+        sources.put(MAIN_CLASS, main.toString());
+
+        return sources;
+    }
+
+    /**
+     * Runs a new JVM and waits for it to exit successfully.
+     *
+     * @return Wall time of the process in nanoseconds.
+     */
+    private static long run(List<String> args) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(args);
+
+        Path log = Files.createTempFile("finally4j-startup", ".log");
+
+        try {
+            long start = System.nanoTime();
+
+            Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log.toFile()).start();
+
+            int exitCode = process.waitFor();
+
+            long wallNanos = System.nanoTime() - start;
+
+            if (exitCode != 0) {
+                throw new IllegalStateException("Command failed with exit code " + exitCode + ": " + command + "\n"
+                        + Files.readString(log));
+            }
+
+            return wallNanos;
+        } finally {
+            Files.delete(log);
+        }
+    }
+
+    private static String classPath(Path... entries) {
+        return Stream.of(entries).map(Path::toString).collect(joining(File.pathSeparator));
+    }
+
+    /**
+     * @return Class path entry that contains given class.
+     */
+    private static Path location(Class<?> clazz) {
+        try {
+            return Path.of(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Manifest agentManifest() {
+        var manifest = new Manifest();
+
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue("Premain-Class", FinallyAgentPreMain.class.getName());
+        attributes.putValue("Agent-Class", FinallyAgentPreMain.class.getName());
+        attributes.putValue("Can-Retransform-Classes", "true");
+
+        return manifest;
+    }
+
+    /**
+     * Copies the jar file, or packs the directory into a jar file with given manifest.
+     */
+    private static void jarOf(Path location, Path jar, Manifest manifest) throws IOException {
+        if (!Files.isDirectory(location)) {
+            Files.copy(location, jar);
+
+            return;
+        }
+
+        Map<String, byte[]> files = new HashMap<>();
+
+        try (Stream<Path> stream = Files.walk(location)) {
+            for (Path file : stream.filter(Files::isRegularFile).collect(toList())) {
+                String name = location.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+
+                // Module descriptors are useless on the class path, and CDS doesn't support them there.
+                if (!name.equals("module-info.class")) {
+                    files.put(name, Files.readAllBytes(file));
+                }
+            }
+        }
+
+        try (var out = manifest == null
+                ? new JarOutputStream(Files.newOutputStream(jar))
+                : new JarOutputStream(Files.newOutputStream(jar), manifest)
+        ) {
+            for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                out.putNextEntry(new JarEntry(file.getKey()));
+                out.write(file.getValue());
+                out.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * Writes class files, by internal name, into a jar file.
+     */
+    private static void writeJar(Path jar, Map<String, byte[]> classFiles) throws IOException {
+        try (var out = new JarOutputStream(Files.newOutputStream(jar))) {
+            for (Map.Entry<String, byte[]> classFile : classFiles.entrySet()) {
+                out.putNextEntry(new JarEntry(classFile.getKey() + ".class"));
+                out.write(classFile.getValue());
+                out.closeEntry();
+            }
+        }
+    }
+
+    private static String toJson(int classes, int methods, int runs, List<String> results) {
+        var sb = new StringBuilder();
+
+        sb.append("{\n");
+        sb.append("  \"javaVersion\": ").append(ScanBenchmark.quote(System.getProperty("java.version"))).append(",\n");
+        sb.append("  \"javaVmName\": ").append(ScanBenchmark.quote(System.getProperty("java.vm.name"))).append(",\n");
+        sb.append("  \"classes\": ").append(classes).append(",\n");
+        sb.append("  \"methods\": ").append(methods).append(",\n");
+        sb.append("  \"runs\": ").append(runs).append(",\n");
+
+        sb.append("  \"modes\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append("    ").append(results.get(i)).append(i == results.size() - 1 ? "\n" : ",\n");
+        }
+        sb.append("  ]\n");
+
+        sb.append("}\n");
+
+        return sb.toString();
+    }
+}
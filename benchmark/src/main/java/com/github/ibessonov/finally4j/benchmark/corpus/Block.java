@@ -0,0 +1,71 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequence of statements in braces. Generator never puts statements after the one that can't complete normally, javac
+ * would reject them as unreachable.
+ *
+ * @author ibessonov
+ */
+final class Block {
+    final List<Statement> statements = new ArrayList<>();
+
+    /**
+     * Writes statements without braces, these are written by the enclosing statement.
+     */
+    void emit(SourceWriter out) {
+        out.indent();
+
+        for (Statement statement : statements) {
+            statement.emit(out);
+        }
+
+        out.outdent();
+    }
+
+    Completion execute(Execution execution) {
+        for (Statement statement : statements) {
+            Completion completion = statement.execute(execution);
+
+            if (completion != null) {
+                return completion;
+            }
+        }
+
+        return null;
+    }
+
+    boolean completesNormally() {
+        return statements.isEmpty() || statements.get(statements.size() - 1).completesNormally();
+    }
+
+    /**
+     * @return Number of try statements in the block, including nested ones.
+     */
+    int tries() {
+        int tries = 0;
+
+        for (Statement statement : statements) {
+            tries += statement.tries();
+        }
+
+        return tries;
+    }
+}
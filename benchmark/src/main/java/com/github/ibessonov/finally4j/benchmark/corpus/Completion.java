@@ -0,0 +1,50 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+/**
+ * Abrupt completion of a statement. Normal completion is represented by {@code null}.
+ *
+ * @author ibessonov
+ */
+final class Completion {
+    /** {@code true} for return statements, {@code false} for thrown exceptions. */
+    final boolean isReturn;
+
+    /** Returned value, {@code null} for void methods and thrown exceptions. */
+    final Object value;
+
+    /** Type of the thrown exception. */
+    final ExceptionType exception;
+
+    /** Message of the thrown exception. */
+    final String message;
+
+    private Completion(boolean isReturn, Object value, ExceptionType exception, String message) {
+        this.isReturn = isReturn;
+        this.value = value;
+        this.exception = exception;
+        this.message = message;
+    }
+
+    static Completion returned(Object value) {
+        return new Completion(true, value, null, null);
+    }
+
+    static Completion thrown(ExceptionType exception, String message) {
+        return new Completion(false, null, exception, message);
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+import java.util.List;
+
+/**
+ * Generated class, along with the statement trees of its methods.
+ *
+ * @author ibessonov
+ */
+public final class CorpusClass {
+    /** Binary name of the class. */
+    public final String name;
+
+    /** Java source of the class. */
+    public final String source;
+
+    public final List<CorpusMethod> methods;
+
+    CorpusClass(String name, String source, List<CorpusMethod> methods) {
+        this.name = name;
+        this.source = source;
+        this.methods = methods;
+    }
+
+    /**
+     * @return Internal name of the class.
+     */
+    public String internalName() {
+        return name.replace('.', '/');
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+import com.github.ibessonov.finally4j.Finally;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Loads generated classes from memory. Class files are also available as resources, the transformer reads them to
+ * compute stack map frames.
+ *
+ * @author ibessonov
+ */
+public final class CorpusClassLoader extends ClassLoader {
+    /** Class files by internal name. */
+    private final Map<String, byte[]> classFiles;
+
+    /**
+     * @param classFiles Class files by internal name.
+     */
+    public CorpusClassLoader(Map<String, byte[]> classFiles) {
+        super(Finally.class.getClassLoader());
+
+        this.classFiles = classFiles;
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        byte[] classFile = classFiles.get(name.replace('.', '/'));
+
+        if (classFile == null) {
+            throw new ClassNotFoundException(name);
+        }
+
+        return defineClass(name, classFile, 0, classFile.length);
+    }
+
+    @Override
+    public InputStream getResourceAsStream(String name) {
+        if (name.endsWith(".class")) {
+            byte[] classFile = classFiles.get(name.substring(0, name.length() - ".class".length()));
+
+            if (classFile != null) {
+                return new ByteArrayInputStream(classFile);
+            }
+        }
+
+        return super.getResourceAsStream(name);
+    }
+}
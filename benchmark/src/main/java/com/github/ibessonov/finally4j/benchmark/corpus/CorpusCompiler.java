@@ -0,0 +1,137 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+import com.github.ibessonov.finally4j.Finally;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiles generated classes in memory with {@code javax.tools}.
+ *
+ * @author ibessonov
+ */
+public final class CorpusCompiler {
+    private CorpusCompiler() {
+    }
+
+    /**
+     * @return Class files of the class and its nested classes, by internal name.
+     * @throws IllegalStateException If compilation failed.
+     */
+    public static Map<String, byte[]> compile(CorpusClass corpusClass) {
+        return compile(Map.of(corpusClass.name, corpusClass.source));
+    }
+
+    /**
+     * @param sources Java sources by binary name of the top level class.
+     * @return Class files of all classes, including nested ones, by internal name.
+     * @throws IllegalStateException If compilation failed.
+     */
+    public static Map<String, byte[]> compile(Map<String, String> sources) {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+        if (compiler == null) {
+            throw new IllegalStateException("Java compiler is not available, JDK is required");
+        }
+
+        var diagnostics = new DiagnosticCollector<JavaFileObject>();
+
+        Map<String, byte[]> classFiles = new TreeMap<>();
+
+        StandardJavaFileManager standardFileManager = compiler.getStandardFileManager(diagnostics, null, null);
+
+        var fileManager = new ForwardingJavaFileManager<JavaFileManager>(standardFileManager) {
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind, FileObject sibling) {
+                return new SimpleJavaFileObject(URI.create("mem:///" + className.replace('.', '/') + kind.extension), kind) {
+                    @Override
+                    public OutputStream openOutputStream() {
+                        return new ByteArrayOutputStream() {
+                            @Override
+                            public void close() {
+                                classFiles.put(className.replace('.', '/'), toByteArray());
+                            }
+                        };
+                    }
+                };
+            }
+        };
+
+        List<JavaFileObject> compilationUnits = new ArrayList<>();
+
+        for (Map.Entry<String, String> entry : sources.entrySet()) {
+            String source = entry.getValue();
+
+            compilationUnits.add(new SimpleJavaFileObject(URI.create("mem:///" + entry.getKey().replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+                @Override
+                public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                    return source;
+                }
+            });
+        }
+
+        List<String> options = List.of("-classpath", finallyLocation(), "-proc:none", "-nowarn");
+
+        boolean success = compiler.getTask(null, fileManager, diagnostics, options, null, compilationUnits).call();
+
+        if (!success) {
+            var sb = new StringBuilder("Failed to compile " + sources.keySet() + ":\n");
+
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                sb.append(diagnostic).append('\n');
+            }
+
+            // Sources are only useful when there are few of them.
+            if (sources.size() == 1) {
+                sb.append(sources.values().iterator().next());
+            }
+
+            throw new IllegalStateException(sb.toString());
+        }
+
+        return classFiles;
+    }
+
+    /**
+     * @return Class path entry that contains {@link Finally}.
+     */
+    private static String finallyLocation() {
+        try {
+            return Path.of(Finally.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+import com.github.ibessonov.finally4j.benchmark.corpus.Statement.Catch;
+import com.github.ibessonov.finally4j.benchmark.corpus.Statement.If;
+import com.github.ibessonov.finally4j.benchmark.corpus.Statement.Log;
+import com.github.ibessonov.finally4j.benchmark.corpus.Statement.LogCaught;
+import com.github.ibessonov.finally4j.benchmark.corpus.Statement.Observe;
+import com.github.ibessonov.finally4j.benchmark.corpus.Statement.Return;
+import com.github.ibessonov.finally4j.benchmark.corpus.Statement.Throw;
+import com.github.ibessonov.finally4j.benchmark.corpus.Statement.Try;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generator of classes with randomized, deeply nested try/catch/finally statements. Methods return every primitive
+ * type, {@code String} and {@code void}. Finally blocks call {@code Finally} methods directly, in conditions, and
+ * from nested try statements, branches and catch blocks. Finally blocks never complete abruptly.
+ * <p>
+ * The same seed always produces the same classes. Expected behavior of every method is computed by
+ * {@link CorpusMethod#expectedTrace(int, boolean)}, which interprets the statement tree rather than compiled code.
+ *
+ * @author ibessonov
+ */
+public final class CorpusGenerator {
+    /** Number of bits of {@code p} that are used in branches. */
+    static final int BRANCH_BITS = 3;
+
+    /** Candidate catch types, ordered so that no clause is ever unreachable. */
+    private static final ExceptionType[] CATCH_ORDER = {
+            ExceptionType.E2, ExceptionType.E3, ExceptionType.E1, ExceptionType.RUNTIME_EXCEPTION
+    };
+
+    private static final ExceptionType[] THROWN_TYPES = {ExceptionType.E1, ExceptionType.E2, ExceptionType.E3};
+
+    private final long seed;
+
+    private final Random random;
+
+    /** Maximal nesting depth of try and if statements. */
+    private final int maxDepth;
+
+    /** Maximal number of statements in a block. */
+    private final int maxStatements;
+
+    /** Unique id for labels, returned values and exception messages within the class. */
+    private int nextId;
+
+    /** Number of try statements that can still be generated in the current method. */
+    private int triesLeft;
+
+    /**
+     * @param seed Random seed.
+     * @param maxDepth Maximal nesting depth of try and if statements.
+     * @param maxStatements Maximal number of statements in a block.
+     */
+    public CorpusGenerator(long seed, int maxDepth, int maxStatements) {
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.maxDepth = maxDepth;
+        this.maxStatements = maxStatements;
+    }
+
+    /**
+     * Generates a class with random methods. Return types of methods go through all supported types in a round-robin
+     * fashion.
+     *
+     * @param className Binary name of the class.
+     * @param methods Number of methods.
+     */
+    public CorpusClass generate(String className, int methods) {
+        nextId = 0;
+
+        List<CorpusMethod> list = new ArrayList<>();
+
+        ValueType[] types = ValueType.values();
+
+        for (int i = 0; i < methods; i++) {
+            ValueType type = types[i % types.length];
+
+            triesLeft = Integer.MAX_VALUE;
+
+            Block body = block(0, false, type);
+
+            list.add(method("m" + i, type, body));
+        }
+
+        return corpusClass(className, list);
+    }
+
+    /**
+     * Generates a class with a single large {@code int} method, that consists of a sequence of random try statements.
+     * Meant for measuring how the analysis scales with the size of the method.
+     *
+     * @param className Binary name of the class.
+     * @param tries Minimal number of try statements in the method, including nested ones.
+     */
+    public CorpusClass generateLarge(String className, int tries) {
+        nextId = 0;
+
+        var body = new Block();
+
+        while (body.tries() < tries) {
+            triesLeft = tries - body.tries();
+
+            Statement statement = tryStatement(1, false, ValueType.INT);
+
+            // Following statements would be unreachable otherwise.
+            if (statement.completesNormally()) {
+                body.statements.add(statement);
+            }
+        }
+
+        return corpusClass(className, List.of(method("m0", ValueType.INT, body)));
+    }
+
+    private CorpusMethod method(String name, ValueType type, Block body) {
+        if (type != ValueType.VOID && body.completesNormally()) {
+            body.statements.add(new Return(type, id()));
+        }
+
+        return new CorpusMethod(name, type, body);
+    }
+
+    private CorpusClass corpusClass(String className, List<CorpusMethod> methods) {
+        int dot = className.lastIndexOf('.');
+
+        var out = new SourceWriter();
+
+        if (dot != -1) {
+            out.line("package " + className.substring(0, dot) + ";");
+            out.line("");
+        }
+
+        out.line("import com.github.ibessonov.finally4j.Finally;");
+        out.line("");
+        out.line("import java.util.List;");
+        out.line("");
+        out.line("/** Generated with seed " + seed + ". */");
+        out.line("public class " + className.substring(dot + 1) + " {").indent();
+
+        exceptionClass(out, ExceptionType.E1, "super(message, null, false, false);");
+        exceptionClass(out, ExceptionType.E2, "super(message);");
+        exceptionClass(out, ExceptionType.E3, "super(message, null, false, false);");
+
+        for (CorpusMethod method : methods) {
+            out.line("");
+            method.emit(out);
+        }
+
+        out.outdent().line("}");
+
+        return new CorpusClass(className, out.toString(), methods);
+    }
+
+    private static void exceptionClass(SourceWriter out, ExceptionType type, String superCall) {
+        out.line("static class " + type.javaName + " extends " + type.superType.javaName + " {").indent();
+        out.line(type.javaName + "(String message) {").indent();
+        out.line(superCall);
+        out.outdent().line("}");
+        out.outdent().line("}");
+    }
+
+    /**
+     * @param inFinally Whether the block is inside of a finally block, where {@code Finally} calls are allowed and
+     *      abrupt completion is not.
+     */
+    private Block block(int depth, boolean inFinally, ValueType type) {
+        var block = new Block();
+
+        fill(block, depth, inFinally, type);
+
+        return block;
+    }
+
+    private void fill(Block block, int depth, boolean inFinally, ValueType type) {
+        int statements = 1 + random.nextInt(maxStatements);
+
+        for (int i = 0; i < statements; i++) {
+            Statement statement = statement(depth, inFinally, type);
+
+            block.statements.add(statement);
+
+            if (!statement.completesNormally()) {
+                break;
+            }
+        }
+    }
+
+    private Statement statement(int depth, boolean inFinally, ValueType type) {
+        boolean canNest = depth < maxDepth;
+
+        int r = random.nextInt(100);
+
+        if (inFinally) {
+            if (r < 25 && canNest && triesLeft > 0) return tryStatement(depth, true, type);
+            if (r < 40 && canNest) return ifStatement(depth, true, type);
+            if (r < 80) return observe(type);
+
+            return new Log("l" + id());
+        }
+
+        if (r < 35 && canNest && triesLeft > 0) return tryStatement(depth, false, type);
+        if (r < 50 && canNest) return ifStatement(depth, false, type);
+        if (r < 65) return new Return(type, id());
+        if (r < 80) return new Throw(THROWN_TYPES[random.nextInt(THROWN_TYPES.length)], "t" + id());
+
+        return new Log("l" + id());
+    }
+
+    private Statement ifStatement(int depth, boolean inFinally, ValueType type) {
+        int bit = random.nextInt(BRANCH_BITS);
+
+        return new If(bit, block(depth + 1, inFinally, type), block(depth + 1, inFinally, type));
+    }
+
+    private Statement tryStatement(int depth, boolean inFinally, ValueType type) {
+        triesLeft--;
+
+        Block tryBlock = block(depth + 1, inFinally, type);
+
+        List<Catch> catches = new ArrayList<>();
+
+        for (List<ExceptionType> types : catchTypes()) {
+            String variable = "e" + id();
+
+            var catchBlock = new Block();
+
+            catchBlock.statements.add(new LogCaught(variable));
+
+            fill(catchBlock, depth + 1, inFinally, type);
+
+            catches.add(new Catch(types, variable, catchBlock));
+        }
+
+        Block finallyBlock = null;
+
+        if (catches.isEmpty() || random.nextInt(100) < 70) {
+            finallyBlock = new Block();
+
+            // Every finally block observes something.
+            finallyBlock.statements.add(observe(type));
+
+            fill(finallyBlock, depth + 1, true, type);
+        }
+
+        return new Try(tryBlock, catches, finallyBlock);
+    }
+
+    /**
+     * @return Random catch clauses. Adjacent unrelated types are sometimes merged into a multi-catch clause.
+     */
+    private List<List<ExceptionType>> catchTypes() {
+        List<List<ExceptionType>> catchTypes = new ArrayList<>();
+
+        for (ExceptionType type : CATCH_ORDER) {
+            if (random.nextInt(100) >= 30) {
+                continue;
+            }
+
+            List<ExceptionType> last = catchTypes.isEmpty() ? null : catchTypes.get(catchTypes.size() - 1);
+
+            if (last != null && last.size() == 1 && !type.isSubtypeOf(last.get(0)) && !last.get(0).isSubtypeOf(type)
+                    && random.nextBoolean()) {
+                last.add(type);
+            } else {
+                catchTypes.add(new ArrayList<>(List.of(type)));
+            }
+        }
+
+        return catchTypes;
+    }
+
+    private Statement observe(ValueType type) {
+        Observe.Kind[] kinds = Observe.Kind.values();
+
+        Observe.Kind kind = kinds[random.nextInt(kinds.length)];
+
+        if (kind == Observe.Kind.VALUE && type == ValueType.VOID) {
+            kind = Observe.Kind.FLAGS;
+        }
+
+        return new Observe(kind, "o" + id(), type);
+    }
+
+    private int id() {
+        return nextId++;
+    }
+}
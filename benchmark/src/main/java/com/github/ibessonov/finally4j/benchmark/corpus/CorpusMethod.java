@@ -0,0 +1,106 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generated static method with the {@code (int p, List<String> log)} signature. Bits of {@code p} select branches,
+ * {@code log} collects labels of executed statements and values observed with {@code Finally} calls. Trace ends with
+ * the outcome of the method.
+ *
+ * @author ibessonov
+ */
+public final class CorpusMethod {
+    /**
+     * Number of distinct inputs, every value of {@code p} from {@code 0} to {@code INPUTS - 1} takes its own path.
+     */
+    public static final int INPUTS = 1 << CorpusGenerator.BRANCH_BITS;
+
+    public final String name;
+
+    final ValueType returnType;
+
+    final Block body;
+
+    CorpusMethod(String name, ValueType returnType, Block body) {
+        this.name = name;
+        this.returnType = returnType;
+        this.body = body;
+    }
+
+    /**
+     * @return Number of try statements in the method.
+     */
+    public int tries() {
+        return body.tries();
+    }
+
+    /**
+     * Computes the trace by interpreting the method.
+     *
+     * @param input Value of {@code p}.
+     * @param transformed Whether {@code Finally} calls should behave like in transformed code.
+     * @return Expected trace.
+     */
+    public List<String> expectedTrace(int input, boolean transformed) {
+        var execution = new Execution(input, transformed, returnType);
+
+        Completion completion = body.execute(execution);
+
+        if (completion == null || completion.isReturn) {
+            execution.trace.add("returned:" + (returnType == ValueType.VOID ? "void" : completion.value));
+        } else {
+            execution.trace.add("threw:" + completion.exception.javaName + ":" + completion.message);
+        }
+
+        return execution.trace;
+    }
+
+    /**
+     * Invokes the compiled method.
+     *
+     * @param corpusClass Compiled class, transformed or not.
+     * @param input Value of {@code p}.
+     * @return Actual trace.
+     */
+    public List<String> trace(Class<?> corpusClass, int input) throws ReflectiveOperationException {
+        Method method = corpusClass.getMethod(name, int.class, List.class);
+
+        List<String> trace = new ArrayList<>();
+
+        try {
+            Object value = method.invoke(null, input, trace);
+
+            trace.add("returned:" + (returnType == ValueType.VOID ? "void" : value));
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+
+            trace.add("threw:" + cause.getClass().getSimpleName() + ":" + cause.getMessage());
+        }
+
+        return trace;
+    }
+
+    void emit(SourceWriter out) {
+        out.line("public static " + returnType.javaName + " " + name + "(int p, List<String> log) {");
+        body.emit(out);
+        out.line("}");
+    }
+}
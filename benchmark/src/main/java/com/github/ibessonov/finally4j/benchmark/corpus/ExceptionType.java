@@ -0,0 +1,55 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+/**
+ * Exception types of generated classes. {@code E1}, {@code E2} and {@code E3} are declared in every generated class,
+ * {@code RuntimeException} is only used in catch clauses.
+ *
+ * @author ibessonov
+ */
+enum ExceptionType {
+    RUNTIME_EXCEPTION("RuntimeException", null),
+
+    E1("E1", RUNTIME_EXCEPTION),
+
+    E2("E2", E1),
+
+    E3("E3", RUNTIME_EXCEPTION);
+
+    /** Simple name of the class. */
+    final String javaName;
+
+    final ExceptionType superType;
+
+    ExceptionType(String javaName, ExceptionType superType) {
+        this.javaName = javaName;
+        this.superType = superType;
+    }
+
+    /**
+     * @return {@code true} if the exception of this type would be caught by the catch clause of {@code type}.
+     */
+    boolean isSubtypeOf(ExceptionType type) {
+        for (ExceptionType t = this; t != null; t = t.superType) {
+            if (t == type) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * State of the reference execution of a generated method. Reference execution interprets the statement tree directly,
+ * so it's independent of both javac and the transformation.
+ *
+ * @author ibessonov
+ */
+final class Execution {
+    /** Value of the {@code p} parameter of the method. */
+    final int input;
+
+    /** Whether {@code Finally} calls should behave like in transformed code. */
+    final boolean transformed;
+
+    final ValueType returnType;
+
+    /** Expected content of the {@code log} parameter of the method. */
+    final List<String> trace = new ArrayList<>();
+
+    /** Messages of caught exceptions by the name of the catch parameter. */
+    private final Map<String, String> caught = new HashMap<>();
+
+    /** Completions of try blocks whose finally blocks are being executed, innermost last. */
+    private final List<Completion> finalizing = new ArrayList<>();
+
+    Execution(int input, boolean transformed, ValueType returnType) {
+        this.input = input;
+        this.transformed = transformed;
+        this.returnType = returnType;
+    }
+
+    void catchException(String variable, String message) {
+        caught.put(variable, message);
+    }
+
+    String caughtMessage(String variable) {
+        return caught.get(variable);
+    }
+
+    void enterFinally(Completion completion) {
+        finalizing.add(completion);
+    }
+
+    void exitFinally() {
+        finalizing.remove(finalizing.size() - 1);
+    }
+
+    /**
+     * @return {@code Finally.hasReturnedValue()} in the innermost finally block.
+     */
+    boolean hasReturnedValue() {
+        Completion completion = current();
+
+        return transformed && completion != null && completion.isReturn && returnType != ValueType.VOID;
+    }
+
+    /**
+     * @return {@code Finally.hasThrownException()} in the innermost finally block.
+     */
+    boolean hasThrownException() {
+        Completion completion = current();
+
+        return transformed && completion != null && !completion.isReturn;
+    }
+
+    /**
+     * @return Completion of the try block whose finally block is being executed, {@code null} for normal completion.
+     */
+    Completion current() {
+        return finalizing.get(finalizing.size() - 1);
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+/**
+ * Indenting writer of generated sources.
+ *
+ * @author ibessonov
+ */
+final class SourceWriter {
+    private static final String INDENT = "    ";
+
+    private final StringBuilder sb = new StringBuilder();
+
+    private int indent;
+
+    SourceWriter line(String line) {
+        sb.append(INDENT.repeat(indent)).append(line).append('\n');
+
+        return this;
+    }
+
+    SourceWriter indent() {
+        indent++;
+
+        return this;
+    }
+
+    SourceWriter outdent() {
+        indent--;
+
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return sb.toString();
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+import java.util.List;
+
+import static java.util.stream.Collectors.joining;
+
+/**
+ * Statement of a generated method. Every statement knows how to write itself as Java source and how to execute itself
+ * in the reference interpreter. Generated methods have the {@code (int p, List<String> log)} signature, {@code p}
+ * selects branches and {@code log} collects the trace.
+ *
+ * @author ibessonov
+ */
+abstract class Statement {
+    abstract void emit(SourceWriter out);
+
+    /**
+     * @return Abrupt completion, or {@code null} if the statement completed normally.
+     */
+    abstract Completion execute(Execution execution);
+
+    /**
+     * @return {@code true} if the statement can complete normally, according to JLS rules for unchecked exceptions.
+     */
+    boolean completesNormally() {
+        return true;
+    }
+
+    int tries() {
+        return 0;
+    }
+
+    private static String quote(String s) {
+        return "\"" + s + "\"";
+    }
+
+    /**
+     * {@code log.add("text");}
+     */
+    static final class Log extends Statement {
+        private final String text;
+
+        Log(String text) {
+            this.text = text;
+        }
+
+        @Override
+        void emit(SourceWriter out) {
+            out.line("log.add(" + quote(text) + ");");
+        }
+
+        @Override
+        Completion execute(Execution execution) {
+            execution.trace.add(text);
+
+            return null;
+        }
+    }
+
+    /**
+     * First statement of every catch block, logs the message of the caught exception.
+     */
+    static final class LogCaught extends Statement {
+        private final String variable;
+
+        LogCaught(String variable) {
+            this.variable = variable;
+        }
+
+        @Override
+        void emit(SourceWriter out) {
+            out.line("log.add(" + quote(variable + ":") + " + " + variable + ".getMessage());");
+        }
+
+        @Override
+        Completion execute(Execution execution) {
+            execution.trace.add(variable + ":" + execution.caughtMessage(variable));
+
+            return null;
+        }
+    }
+
+    /**
+     * Return of a constant, or plain {@code return} in void methods.
+     */
+    static final class Return extends Statement {
+        private final ValueType type;
+
+        private final int id;
+
+        Return(ValueType type, int id) {
+            this.type = type;
+            this.id = id;
+        }
+
+        @Override
+        void emit(SourceWriter out) {
+            out.line(type == ValueType.VOID ? "return;" : "return " + type.literal(id) + ";");
+        }
+
+        @Override
+        Completion execute(Execution execution) {
+            return Completion.returned(type.value(id));
+        }
+
+        @Override
+        boolean completesNormally() {
+            return false;
+        }
+    }
+
+    /**
+     * Throw of a new exception with a unique message.
+     */
+    static final class Throw extends Statement {
+        private final ExceptionType type;
+
+        private final String message;
+
+        Throw(ExceptionType type, String message) {
+            this.type = type;
+            this.message = message;
+        }
+
+        @Override
+        void emit(SourceWriter out) {
+            out.line("throw new " + type.javaName + "(" + quote(message) + ");");
+        }
+
+        @Override
+        Completion execute(Execution execution) {
+            return Completion.thrown(type, message);
+        }
+
+        @Override
+        boolean completesNormally() {
+            return false;
+        }
+    }
+
+    /**
+     * Branch on a single bit of {@code p}.
+     */
+    static final class If extends Statement {
+        private final int bit;
+
+        private final Block thenBlock;
+
+        private final Block elseBlock;
+
+        If(int bit, Block thenBlock, Block elseBlock) {
+            this.bit = bit;
+            this.thenBlock = thenBlock;
+            this.elseBlock = elseBlock;
+        }
+
+        @Override
+        void emit(SourceWriter out) {
+            out.line("if ((p & " + (1 << bit) + ") != 0) {");
+            thenBlock.emit(out);
+            out.line("} else {");
+            elseBlock.emit(out);
+            out.line("}");
+        }
+
+        @Override
+        Completion execute(Execution execution) {
+            return ((execution.input & (1 << bit)) != 0 ? thenBlock : elseBlock).execute(execution);
+        }
+
+        @Override
+        boolean completesNormally() {
+            return thenBlock.completesNormally() || elseBlock.completesNormally();
+        }
+
+        @Override
+        int tries() {
+            return thenBlock.tries() + elseBlock.tries();
+        }
+    }
+
+    /**
+     * Try statement with optional catch clauses, possibly multi-catch, and an optional finally block.
+     */
+    static final class Try extends Statement {
+        private final Block tryBlock;
+
+        private final List<Catch> catches;
+
+        /** Finally block, nullable. */
+        private final Block finallyBlock;
+
+        Try(Block tryBlock, List<Catch> catches, Block finallyBlock) {
+            this.tryBlock = tryBlock;
+            this.catches = catches;
+            this.finallyBlock = finallyBlock;
+        }
+
+        @Override
+        void emit(SourceWriter out) {
+            out.line("try {");
+            tryBlock.emit(out);
+
+            for (Catch aCatch : catches) {
+                String types = aCatch.types.stream().map(type -> type.javaName).collect(joining(" | "));
+
+                out.line("} catch (" + types + " " + aCatch.variable + ") {");
+                aCatch.block.emit(out);
+            }
+
+            if (finallyBlock != null) {
+                out.line("} finally {");
+                finallyBlock.emit(out);
+            }
+
+            out.line("}");
+        }
+
+        @Override
+        Completion execute(Execution execution) {
+            Completion completion = tryBlock.execute(execution);
+
+            // Completion seen by the finally block. Exception that's been caught by a catch block that completed
+            // normally is still visible to "Finally.thrownException()".
+            Completion observed = completion;
+
+            if (completion != null && !completion.isReturn) {
+                for (Catch aCatch : catches) {
+                    if (aCatch.catches(completion.exception)) {
+                        execution.catchException(aCatch.variable, completion.message);
+
+                        completion = aCatch.block.execute(execution);
+
+                        if (completion != null) {
+                            observed = completion;
+                        }
+
+                        break;
+                    }
+                }
+            }
+
+            if (finallyBlock != null) {
+                execution.enterFinally(observed);
+
+                Completion finallyCompletion = finallyBlock.execute(execution);
+
+                execution.exitFinally();
+
+                if (finallyCompletion != null) {
+                    completion = finallyCompletion;
+                }
+            }
+
+            return completion;
+        }
+
+        @Override
+        boolean completesNormally() {
+            boolean completesNormally = tryBlock.completesNormally();
+
+            for (Catch aCatch : catches) {
+                completesNormally |= aCatch.block.completesNormally();
+            }
+
+            return completesNormally && (finallyBlock == null || finallyBlock.completesNormally());
+        }
+
+        @Override
+        int tries() {
+            int tries = 1 + tryBlock.tries();
+
+            for (Catch aCatch : catches) {
+                tries += aCatch.block.tries();
+            }
+
+            return finallyBlock == null ? tries : tries + finallyBlock.tries();
+        }
+    }
+
+    /**
+     * Catch clause of the {@link Try}.
+     */
+    static final class Catch {
+        final List<ExceptionType> types;
+
+        final String variable;
+
+        final Block block;
+
+        Catch(List<ExceptionType> types, String variable, Block block) {
+            this.types = types;
+            this.variable = variable;
+            this.block = block;
+        }
+
+        boolean catches(ExceptionType exception) {
+            for (ExceptionType type : types) {
+                if (exception.isSubtypeOf(type)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+    }
+
+    /**
+     * {@code Finally} calls in one of the supported forms. Only generated inside of finally blocks, including nested
+     * try statements and branches.
+     */
+    static final class Observe extends Statement {
+        enum Kind {
+            /** Both flags in a single expression. */
+            FLAGS,
+
+            /** Typed returned value accessor, guarded by the flag. */
+            VALUE,
+
+            /** Thrown exception accessor, guarded by the flag. */
+            EXCEPTION,
+
+            /** Optional accessors. */
+            OPTIONAL,
+
+            /** Flags as conditions of if statements. */
+            BRANCH
+        }
+
+        private final Kind kind;
+
+        private final String label;
+
+        private final ValueType returnType;
+
+        Observe(Kind kind, String label, ValueType returnType) {
+            this.kind = kind;
+            this.label = label;
+            this.returnType = returnType;
+        }
+
+        @Override
+        void emit(SourceWriter out) {
+            switch (kind) {
+                case FLAGS:
+                    out.line("log.add(" + quote(label + ":") + " + Finally.hasReturnedValue() + \":\" + Finally.hasThrownException());");
+                    break;
+
+                case VALUE:
+                    out.line("if (Finally.hasReturnedValue()) {").indent();
+                    out.line("log.add(" + quote(label + ":") + " + Finally." + returnType.accessor + "());");
+                    out.outdent().line("}");
+                    break;
+
+                case EXCEPTION:
+                    out.line("if (Finally.hasThrownException()) {").indent();
+                    out.line("log.add(" + quote(label + ":") + " + Finally.thrownException().getClass().getSimpleName() + \":\" + Finally.thrownException().getMessage());");
+                    out.outdent().line("}");
+                    break;
+
+                case OPTIONAL:
+                    out.line("log.add(" + quote(label + ":") + " + Finally.returnedValueOptional().isPresent() + \":\" + Finally.thrownExceptionOptional().isPresent());");
+                    break;
+
+                case BRANCH:
+                    out.line("if (Finally.hasThrownException()) {").indent();
+                    out.line("log.add(" + quote(label + ":thrown") + ");");
+                    out.outdent().line("} else if (Finally.hasReturnedValue()) {").indent();
+                    out.line("log.add(" + quote(label + ":returned") + ");");
+                    out.outdent().line("} else {").indent();
+                    out.line("log.add(" + quote(label + ":none") + ");");
+                    out.outdent().line("}");
+                    break;
+
+                default:
+                    throw new AssertionError(kind);
+            }
+        }
+
+        @Override
+        Completion execute(Execution execution) {
+            boolean hasReturnedValue = execution.hasReturnedValue();
+            boolean hasThrownException = execution.hasThrownException();
+
+            switch (kind) {
+                case FLAGS:
+                case OPTIONAL:
+                    execution.trace.add(label + ":" + hasReturnedValue + ":" + hasThrownException);
+                    break;
+
+                case VALUE:
+                    if (hasReturnedValue) {
+                        execution.trace.add(label + ":" + execution.current().value);
+                    }
+                    break;
+
+                case EXCEPTION:
+                    if (hasThrownException) {
+                        Completion completion = execution.current();
+
+                        execution.trace.add(label + ":" + completion.exception.javaName + ":" + completion.message);
+                    }
+                    break;
+
+                case BRANCH:
+                    execution.trace.add(label + (hasThrownException ? ":thrown" : hasReturnedValue ? ":returned" : ":none"));
+                    break;
+
+                default:
+                    throw new AssertionError(kind);
+            }
+
+            return null;
+        }
+    }
+}
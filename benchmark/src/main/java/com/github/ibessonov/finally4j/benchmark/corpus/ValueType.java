@@ -0,0 +1,152 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+/**
+ * Return types of generated methods. Every return statement returns a constant derived from its unique id, so that the
+ * trace shows which return has been executed.
+ *
+ * @author ibessonov
+ */
+enum ValueType {
+    VOID("void", null) {
+        @Override
+        Object value(int id) {
+            return null;
+        }
+    },
+
+    BOOLEAN("boolean", "returnedValueBoolean") {
+        @Override
+        Object value(int id) {
+            return id % 2 == 0;
+        }
+    },
+
+    BYTE("byte", "returnedValueByte") {
+        @Override
+        Object value(int id) {
+            return (byte) id;
+        }
+
+        @Override
+        String literal(int id) {
+            return "(byte) " + value(id);
+        }
+    },
+
+    CHAR("char", "returnedValueChar") {
+        @Override
+        Object value(int id) {
+            return (char) ('a' + id % 26);
+        }
+
+        @Override
+        String literal(int id) {
+            return "'" + value(id) + "'";
+        }
+    },
+
+    SHORT("short", "returnedValueShort") {
+        @Override
+        Object value(int id) {
+            return (short) id;
+        }
+
+        @Override
+        String literal(int id) {
+            return "(short) " + value(id);
+        }
+    },
+
+    INT("int", "returnedValueInt") {
+        @Override
+        Object value(int id) {
+            return id;
+        }
+    },
+
+    LONG("long", "returnedValueLong") {
+        @Override
+        Object value(int id) {
+            return id * 1_000_000_007L;
+        }
+
+        @Override
+        String literal(int id) {
+            return value(id) + "L";
+        }
+    },
+
+    FLOAT("float", "returnedValueFloat") {
+        @Override
+        Object value(int id) {
+            return id + 0.5f;
+        }
+
+        @Override
+        String literal(int id) {
+            return value(id) + "f";
+        }
+    },
+
+    DOUBLE("double", "returnedValueDouble") {
+        @Override
+        Object value(int id) {
+            return id + 0.25d;
+        }
+
+        @Override
+        String literal(int id) {
+            return value(id) + "d";
+        }
+    },
+
+    OBJECT("String", "returnedValue") {
+        @Override
+        Object value(int id) {
+            return "r" + id;
+        }
+
+        @Override
+        String literal(int id) {
+            return "\"" + value(id) + "\"";
+        }
+    };
+
+    /** Name of the type in the source code. */
+    final String javaName;
+
+    /** Name of the {@code Finally} method that returns the value of this type. */
+    final String accessor;
+
+    ValueType(String javaName, String accessor) {
+        this.javaName = javaName;
+        this.accessor = accessor;
+    }
+
+    /**
+     * @return Value returned by the return statement with given id, boxed.
+     */
+    abstract Object value(int id);
+
+    /**
+     * @return Java literal of the {@link #value(int)}.
+     */
+    String literal(int id) {
+        return String.valueOf(value(id));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.benchmark.corpus;
+
+import com.github.ibessonov.finally4j.agent.transformer.FinallyClassFileTransformer;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Runs generated classes with and without the transformation and compares traces with the reference interpreter.
+ * <p>
+ * Transformed classes are checked separately for every nesting depth, flat statements fail in a much more readable
+ * way. Deeply nested classes have fewer statements per block, otherwise copies of finally blocks make some of the
+ * methods too large for javac. Known limitation, not covered here: a nested try statement without finally that has
+ * a single catch block and protects the code that ends with "throw" is indistinguishable from a catch block of the
+ * enclosing statement.
+ *
+ * @author ibessonov
+ */
+class CorpusDifferentialTest {
+    private static final int CLASSES = 100;
+
+    private static final int METHODS = 20;
+
+    @Test
+    void untransformed() throws Exception {
+        for (int seed = 0; seed < CLASSES; seed++) {
+            CorpusClass corpusClass = generate(seed, 3, 3);
+
+            Map<String, byte[]> classFiles = CorpusCompiler.compile(corpusClass);
+
+            check(corpusClass, classFiles, false);
+        }
+    }
+
+    @Test
+    void transformedFlat() throws Exception {
+        transformed(1, 4);
+    }
+
+    @Test
+    void transformedNested() throws Exception {
+        transformed(2, 4);
+    }
+
+    @Test
+    void transformedDeeplyNested() throws Exception {
+        transformed(3, 3);
+    }
+
+    private static void transformed(int maxDepth, int maxStatements) throws Exception {
+        var transformer = new FinallyClassFileTransformer();
+
+        for (int seed = 0; seed < CLASSES; seed++) {
+            CorpusClass corpusClass = generate(seed, maxDepth, maxStatements);
+
+            Map<String, byte[]> classFiles = CorpusCompiler.compile(corpusClass);
+
+            var loader = new CorpusClassLoader(classFiles);
+
+            Map<String, byte[]> transformedClassFiles = new TreeMap<>();
+
+            for (Map.Entry<String, byte[]> entry : classFiles.entrySet()) {
+                byte[] transformed = transformer.transform(loader, entry.getKey(), null, null, entry.getValue());
+
+                transformedClassFiles.put(entry.getKey(), transformed == null ? entry.getValue() : transformed);
+            }
+
+            check(corpusClass, transformedClassFiles, true);
+        }
+    }
+
+    private static CorpusClass generate(int seed, int maxDepth, int maxStatements) {
+        return new CorpusGenerator(seed, maxDepth, maxStatements).generate("corpus.Corpus" + seed, METHODS);
+    }
+
+    private static void check(CorpusClass corpusClass, Map<String, byte[]> classFiles, boolean transformed) throws Exception {
+        Class<?> clazz = new CorpusClassLoader(classFiles).loadClass(corpusClass.name);
+
+        for (CorpusMethod method : corpusClass.methods) {
+            for (int input = 0; input < CorpusMethod.INPUTS; input++) {
+                List<String> expected = method.expectedTrace(input, transformed);
+                List<String> actual = method.trace(clazz, input);
+
+                if (!expected.equals(actual)) {
+                    fail(corpusClass.name + "." + method.name + "(" + input + ")\nexpected: " + expected
+                            + "\nactual:   " + actual + "\n" + corpusClass.source);
+                }
+            }
+        }
+    }
+}
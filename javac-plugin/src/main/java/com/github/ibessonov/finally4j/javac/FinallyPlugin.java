@@ -0,0 +1,60 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.javac;
+
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.Plugin;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.tools.javac.api.BasicJavacTask;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.util.Context;
+
+/**
+ * Compiler plugin that replaces calls to "Finally" methods inside of {@code finally} blocks right after parsing, when
+ * the structure of {@code try/catch/finally} statements is known exactly. Classes compiled with this plugin don't need
+ * the agent.
+ * <p>
+ * Usage: {@code javac -cp finally4j-javac-plugin.jar -Xplugin:Finally4j ...}. Plugin uses internal compiler API, so
+ * the compiler must be started with {@code -J--add-exports=jdk.compiler/com.sun.tools.javac.<package>=ALL-UNNAMED}
+ * for {@code api}, {@code code}, {@code tree} and {@code util} packages.
+ *
+ * @see FinallyTranslator
+ * @author ibessonov
+ */
+public class FinallyPlugin implements Plugin {
+    @Override
+    public String getName() {
+        return "Finally4j";
+    }
+
+    @Override
+    public void init(JavacTask task, String... args) {
+        Context context = ((BasicJavacTask) task).getContext();
+
+        task.addTaskListener(new TaskListener() {
+            @Override
+            public void finished(TaskEvent e) {
+                if (e.getKind() == TaskEvent.Kind.PARSE) {
+                    CompilationUnitTree compilationUnit = e.getCompilationUnit();
+
+                    new FinallyTranslator(context).translate((JCCompilationUnit) compilationUnit);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,785 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.javac;
+
+import com.sun.source.tree.ImportTree;
+import com.sun.tools.javac.code.TypeTag;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCBlock;
+import com.sun.tools.javac.tree.JCTree.JCBreak;
+import com.sun.tools.javac.tree.JCTree.JCCatch;
+import com.sun.tools.javac.tree.JCTree.JCClassDecl;
+import com.sun.tools.javac.tree.JCTree.JCCompilationUnit;
+import com.sun.tools.javac.tree.JCTree.JCContinue;
+import com.sun.tools.javac.tree.JCTree.JCDoWhileLoop;
+import com.sun.tools.javac.tree.JCTree.JCEnhancedForLoop;
+import com.sun.tools.javac.tree.JCTree.JCExpression;
+import com.sun.tools.javac.tree.JCTree.JCExpressionStatement;
+import com.sun.tools.javac.tree.JCTree.JCFieldAccess;
+import com.sun.tools.javac.tree.JCTree.JCForLoop;
+import com.sun.tools.javac.tree.JCTree.JCIdent;
+import com.sun.tools.javac.tree.JCTree.JCLabeledStatement;
+import com.sun.tools.javac.tree.JCTree.JCLambda;
+import com.sun.tools.javac.tree.JCTree.JCMethodDecl;
+import com.sun.tools.javac.tree.JCTree.JCMethodInvocation;
+import com.sun.tools.javac.tree.JCTree.JCPrimitiveTypeTree;
+import com.sun.tools.javac.tree.JCTree.JCReturn;
+import com.sun.tools.javac.tree.JCTree.JCStatement;
+import com.sun.tools.javac.tree.JCTree.JCSwitch;
+import com.sun.tools.javac.tree.JCTree.JCTry;
+import com.sun.tools.javac.tree.JCTree.JCWhileLoop;
+import com.sun.tools.javac.tree.TreeCopier;
+import com.sun.tools.javac.tree.TreeMaker;
+import com.sun.tools.javac.tree.TreeScanner;
+import com.sun.tools.javac.tree.TreeTranslator;
+import com.sun.tools.javac.util.Context;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.ListBuffer;
+import com.sun.tools.javac.util.Name;
+import com.sun.tools.javac.util.Names;
+
+import javax.lang.model.type.TypeKind;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Translator of a single parsed compilation unit. Every {@code try} statement that calls "Finally" methods in its
+ * {@code finally} block is rewritten from
+ * <pre>
+ * try B catch C finally F
+ * </pre>
+ * into
+ * <pre>
+ * {
+ *     R $result = default; boolean $hasResult = false; Throwable $exception = null;
+ *     try {
+ *         try B' catch C'
+ *     } catch (Throwable $t) {
+ *         $exception = $t;
+ *         throw $t;
+ *     } finally F'
+ * }
+ * </pre>
+ * where every {@code return e;} in {@code B} and {@code C} becomes {@code { $result = e; $hasResult = true; return
+ * $result; }}, and calls in {@code F} read these local variables. Result variables are omitted in {@code void}
+ * methods. Rethrow of the effectively final catch parameter preserves the set of checked exceptions of the statement.
+ * <p>
+ * A return may still be abandoned after {@code $hasResult} is set, if a nested {@code finally} block or closing of a
+ * resource completes abruptly. {@code $hasResult} is reset then, so that {@code F} only sees completed returns: in the
+ * catch-all handler, in catch blocks and on jumps out of nested {@code finally} blocks. Returns that are both started
+ * and abandoned within a nested {@code finally} block are the only ones that stay recorded.
+ * <p>
+ * Statements are translated bottom-up, so nested statements are already translated when the enclosing one is.
+ * Lambdas are skipped, their {@code finally} blocks are left to the agent. Lambdas and classes declared in {@code F}
+ * are not translated either, "Finally" calls in them don't belong to {@code F}.
+ * <p>
+ * Methods imported with {@code import static} are recognized, unless a method with the same name is declared in the
+ * same compilation unit. Inherited methods that shadow them are not known after parsing, such calls are translated
+ * anyway.
+ *
+ * @author ibessonov
+ */
+class FinallyTranslator extends TreeTranslator {
+    private static final String FINALLY_PACKAGE = "com.github.ibessonov.finally4j";
+    private static final String FINALLY_CLASS_NAME = FINALLY_PACKAGE + ".Finally";
+    private static final String FINALLY_SUPPORT_CLASS_NAME = FINALLY_PACKAGE + ".FinallySupport";
+
+    private static final String PREFIX = "$finally4j$";
+
+    /** Names of all static methods of "Finally" class. */
+    private static final Set<String> FINALLY_METHOD_NAMES = Set.of(
+            "isSupported", "hasReturnedValue", "returnedValue", "returnedValueOptional",
+            "returnedValueBoolean", "returnedValueByte", "returnedValueChar", "returnedValueShort",
+            "returnedValueInt", "returnedValueLong", "returnedValueFloat", "returnedValueDouble",
+            "hasThrownException", "thrownException", "thrownExceptionOptional"
+    );
+
+    private final TreeMaker make;
+    private final Names names;
+
+    /** Whether {@code Finally} simple name refers to the "Finally" class in current compilation unit. */
+    private boolean simpleNameImported;
+
+    /** Names of "Finally" methods imported with {@code import static} in current compilation unit. */
+    private Set<String> staticallyImported;
+
+    /** Return type of the enclosing method, {@code null} if it's {@code void}. */
+    private JCExpression returnType;
+
+    /** {@code false} in lambdas, where the return type is not known after parsing. */
+    private boolean returnTypeKnown;
+
+    /** Counter for unique names of generated local variables. */
+    private int counter;
+
+    FinallyTranslator(Context context) {
+        make = TreeMaker.instance(context);
+        names = Names.instance(context);
+    }
+
+    void translate(JCCompilationUnit compilationUnit) {
+        simpleNameImported = isSimpleNameImported(compilationUnit);
+        staticallyImported = staticallyImported(compilationUnit);
+
+        translate((JCTree) compilationUnit);
+    }
+
+    private static Set<String> staticallyImported(JCCompilationUnit compilationUnit) {
+        Set<String> imported = new HashSet<>();
+
+        for (ImportTree importTree : compilationUnit.getImports()) {
+            if (!importTree.isStatic()) {
+                continue;
+            }
+
+            String name = importTree.getQualifiedIdentifier().toString();
+
+            if (name.equals(FINALLY_CLASS_NAME + ".*")) {
+                imported.addAll(FINALLY_METHOD_NAMES);
+            } else if (name.startsWith(FINALLY_CLASS_NAME + ".")) {
+                imported.add(name.substring(FINALLY_CLASS_NAME.length() + 1));
+            }
+        }
+
+        if (!imported.isEmpty()) {
+            // Methods declared in the compilation unit shadow imported ones.
+            new TreeScanner() {
+                @Override
+                public void visitMethodDef(JCMethodDecl tree) {
+                    imported.remove(tree.name.toString());
+
+                    super.visitMethodDef(tree);
+                }
+            }.scan(compilationUnit);
+        }
+
+        return imported;
+    }
+
+    private static boolean isSimpleNameImported(JCCompilationUnit compilationUnit) {
+        boolean imported = compilationUnit.getPackageName() != null
+                && FINALLY_PACKAGE.equals(compilationUnit.getPackageName().toString());
+
+        for (ImportTree importTree : compilationUnit.getImports()) {
+            if (importTree.isStatic()) {
+                continue;
+            }
+
+            String name = importTree.getQualifiedIdentifier().toString();
+
+            if (name.equals(FINALLY_CLASS_NAME) || name.equals(FINALLY_PACKAGE + ".*")) {
+                imported = true;
+            } else if (name.endsWith(".Finally")) {
+                // Single type import of some other "Finally" class shadows everything else.
+                return false;
+            }
+        }
+
+        return imported;
+    }
+
+    @Override
+    public void visitClassDef(JCClassDecl tree) {
+        JCExpression returnType = this.returnType;
+        boolean returnTypeKnown = this.returnTypeKnown;
+
+        // Initializers behave like "void" methods.
+        this.returnType = null;
+        this.returnTypeKnown = true;
+
+        try {
+            super.visitClassDef(tree);
+        } finally {
+            this.returnType = returnType;
+            this.returnTypeKnown = returnTypeKnown;
+        }
+    }
+
+    @Override
+    public void visitMethodDef(JCMethodDecl tree) {
+        JCExpression returnType = this.returnType;
+        boolean returnTypeKnown = this.returnTypeKnown;
+
+        this.returnType = isVoid(tree.restype) ? null : tree.restype;
+        this.returnTypeKnown = true;
+
+        try {
+            super.visitMethodDef(tree);
+        } finally {
+            this.returnType = returnType;
+            this.returnTypeKnown = returnTypeKnown;
+        }
+    }
+
+    @Override
+    public void visitLambda(JCLambda tree) {
+        boolean returnTypeKnown = this.returnTypeKnown;
+
+        this.returnTypeKnown = false;
+
+        try {
+            super.visitLambda(tree);
+        } finally {
+            this.returnTypeKnown = returnTypeKnown;
+        }
+    }
+
+    @Override
+    public void visitExec(JCExpressionStatement tree) {
+        // "Finally.isSupported();" is a valid statement, while "true;" is not.
+        if (isFinallyCall(tree.expr, "isSupported")) {
+            result = tree;
+        } else {
+            super.visitExec(tree);
+        }
+    }
+
+    @Override
+    public void visitApply(JCMethodInvocation tree) {
+        if (isFinallyCall(tree, "isSupported")) {
+            result = make.at(tree.pos).Literal(TypeTag.BOOLEAN, 1);
+        } else {
+            super.visitApply(tree);
+        }
+    }
+
+    @Override
+    public void visitTry(JCTry tree) {
+        super.visitTry(tree);
+
+        if (tree.finalizer != null && returnTypeKnown && callsFinally(tree.finalizer)) {
+            result = rewrite(tree);
+        }
+    }
+
+    private JCStatement rewrite(JCTry tree) {
+        int id = counter++;
+
+        Vars vars = new Vars(
+                returnType == null ? null : names.fromString(PREFIX + "result" + id),
+                returnType == null ? null : names.fromString(PREFIX + "hasResult" + id),
+                names.fromString(PREFIX + "exception" + id)
+        );
+
+        if (vars.result != null) {
+            var returnTranslator = new ReturnTranslator(vars);
+
+            tree.resources = returnTranslator.translate(tree.resources);
+            tree.body = returnTranslator.translate(tree.body);
+            tree.catchers = returnTranslator.translate(tree.catchers);
+
+            if (returnTranslator.translated) {
+                var abandonedReturnTranslator = new AbandonedReturnTranslator(vars);
+
+                tree.body = abandonedReturnTranslator.translate(tree.body);
+                tree.catchers = abandonedReturnTranslator.translateCatchers(tree.catchers);
+            }
+        }
+
+        JCBlock finalizer = new CallTranslator(vars).translate(tree.finalizer);
+
+        make.at(tree.pos);
+
+        var stats = new ListBuffer<JCStatement>();
+
+        if (vars.result != null) {
+            stats.append(make.VarDef(make.Modifiers(0), vars.result, new TreeCopier<Void>(make).copy(returnType), defaultValue(returnType)));
+            stats.append(make.VarDef(make.Modifiers(0), vars.hasResult, make.TypeIdent(TypeTag.BOOLEAN), make.Literal(TypeTag.BOOLEAN, 0)));
+        }
+
+        stats.append(make.VarDef(make.Modifiers(0), vars.exception, qualifiedName("java.lang.Throwable"), make.Literal(TypeTag.BOT, null)));
+
+        JCBlock body = tree.catchers.isEmpty() && tree.resources.isEmpty()
+                ? tree.body
+                : make.Block(0, List.of(make.Try(tree.resources, tree.body, tree.catchers, null)));
+
+        Name throwable = names.fromString(PREFIX + "throwable" + id);
+
+        var handler = new ListBuffer<JCStatement>();
+
+        if (vars.result != null) {
+            // Return that's been started is abandoned, e.g. closing of a resource has failed.
+            handler.append(make.Exec(make.Assign(make.Ident(vars.hasResult), make.Literal(TypeTag.BOOLEAN, 0))));
+        }
+
+        handler.append(make.Exec(make.Assign(make.Ident(vars.exception), make.Ident(throwable))));
+        handler.append(make.Throw(make.Ident(throwable)));
+
+        JCCatch catchAll = make.Catch(
+                make.VarDef(make.Modifiers(0), throwable, qualifiedName("java.lang.Throwable"), null),
+                make.Block(0, handler.toList())
+        );
+
+        stats.append(make.Try(body, List.of(catchAll), finalizer));
+
+        return make.Block(0, stats.toList());
+    }
+
+    /**
+     * Checks whether the block calls "Finally" methods, excluding lambdas and classes declared in it.
+     */
+    private boolean callsFinally(JCBlock block) {
+        var scanner = new TreeScanner() {
+            boolean found;
+
+            @Override
+            public void visitApply(JCMethodInvocation tree) {
+                found |= isFinallyCall(tree, null);
+
+                super.visitApply(tree);
+            }
+
+            @Override
+            public void visitLambda(JCLambda tree) {
+            }
+
+            @Override
+            public void visitClassDef(JCClassDecl tree) {
+            }
+        };
+
+        scanner.scan(block);
+
+        return scanner.found;
+    }
+
+    /**
+     * @param methodName Expected method name, or {@code null} to match any method.
+     */
+    private boolean isFinallyCall(JCExpression expression, String methodName) {
+        if (!(expression instanceof JCMethodInvocation)) {
+            return false;
+        }
+
+        JCExpression meth = ((JCMethodInvocation) expression).meth;
+
+        if (meth instanceof JCIdent) {
+            Name name = ((JCIdent) meth).name;
+
+            return (methodName == null || name.contentEquals(methodName)) && staticallyImported.contains(name.toString());
+        }
+
+        if (!(meth instanceof JCFieldAccess)) {
+            return false;
+        }
+
+        var fieldAccess = (JCFieldAccess) meth;
+
+        if (methodName != null && !fieldAccess.name.contentEquals(methodName)) {
+            return false;
+        }
+
+        JCExpression selected = fieldAccess.selected;
+
+        if (selected instanceof JCIdent) {
+            return simpleNameImported && ((JCIdent) selected).name.contentEquals("Finally");
+        }
+
+        return selected instanceof JCFieldAccess && selected.toString().equals(FINALLY_CLASS_NAME);
+    }
+
+    /**
+     * @return Name of the method invoked by "Finally" call.
+     */
+    private static String methodName(JCMethodInvocation tree) {
+        return tree.meth instanceof JCIdent ? ((JCIdent) tree.meth).name.toString() : ((JCFieldAccess) tree.meth).name.toString();
+    }
+
+    private static boolean isVoid(JCExpression type) {
+        // Constructors have no return type.
+        return type == null || type instanceof JCPrimitiveTypeTree && ((JCPrimitiveTypeTree) type).getPrimitiveTypeKind() == TypeKind.VOID;
+    }
+
+    private JCExpression defaultValue(JCExpression type) {
+        if (!(type instanceof JCPrimitiveTypeTree)) {
+            return make.Literal(TypeTag.BOT, null);
+        }
+
+        switch (((JCPrimitiveTypeTree) type).getPrimitiveTypeKind()) {
+            case BOOLEAN:
+                return make.Literal(TypeTag.BOOLEAN, 0);
+            case BYTE:
+                return make.TypeCast(make.TypeIdent(TypeTag.BYTE), make.Literal(TypeTag.INT, 0));
+            case CHAR:
+                return make.TypeCast(make.TypeIdent(TypeTag.CHAR), make.Literal(TypeTag.INT, 0));
+            case SHORT:
+                return make.TypeCast(make.TypeIdent(TypeTag.SHORT), make.Literal(TypeTag.INT, 0));
+            case INT:
+                return make.Literal(TypeTag.INT, 0);
+            case LONG:
+                return make.Literal(TypeTag.LONG, 0L);
+            case FLOAT:
+                return make.Literal(TypeTag.FLOAT, 0F);
+            case DOUBLE:
+                return make.Literal(TypeTag.DOUBLE, 0D);
+            default:
+                throw new IllegalArgumentException(type.toString());
+        }
+    }
+
+    private JCExpression qualifiedName(String name) {
+        String[] parts = name.split("\\.");
+
+        JCExpression expression = make.Ident(names.fromString(parts[0]));
+
+        for (int i = 1; i < parts.length; i++) {
+            expression = make.Select(expression, names.fromString(parts[i]));
+        }
+
+        return expression;
+    }
+
+    /**
+     * Names of local variables introduced for a single {@code try} statement. Result variables are {@code null} in
+     * {@code void} methods.
+     */
+    private static class Vars {
+        final Name result;
+        final Name hasResult;
+        final Name exception;
+
+        Vars(Name result, Name hasResult, Name exception) {
+            this.result = result;
+            this.hasResult = hasResult;
+            this.exception = exception;
+        }
+    }
+
+    /**
+     * Saves returned values into result variables.
+     */
+    private class ReturnTranslator extends TreeTranslator {
+        private final Vars vars;
+
+        /** Whether any return has been translated. */
+        boolean translated;
+
+        ReturnTranslator(Vars vars) {
+            this.vars = vars;
+        }
+
+        @Override
+        public void visitReturn(JCReturn tree) {
+            if (tree.expr == null) {
+                result = tree;
+
+                return;
+            }
+
+            translated = true;
+
+            make.at(tree.pos);
+
+            result = make.Block(0, List.of(
+                    make.Exec(make.Assign(make.Ident(vars.result), tree.expr)),
+                    make.Exec(make.Assign(make.Ident(vars.hasResult), make.Literal(TypeTag.BOOLEAN, 1))),
+                    make.Return(make.Ident(vars.result))
+            ));
+        }
+
+        @Override
+        public void visitLambda(JCLambda tree) {
+            result = tree;
+        }
+
+        @Override
+        public void visitClassDef(JCClassDecl tree) {
+            result = tree;
+        }
+    }
+
+    /**
+     * Resets {@code $hasResult} where a return that's been started is abandoned. Catch blocks are only considered outside
+     * of nested {@code finally} blocks, and jumps only if they leave the outermost one, everything else may happen while
+     * the return is still in progress.
+     */
+    private class AbandonedReturnTranslator extends TreeTranslator {
+        private final Vars vars;
+
+        /** Whether a nested {@code finally} block is being translated. */
+        private boolean inFinalizer;
+
+        /** Number of enclosing loops in the outermost nested {@code finally} block. */
+        private int loops;
+
+        /** Number of enclosing switch statements in the outermost nested {@code finally} block. */
+        private int switches;
+
+        /** Enclosing labels in the outermost nested {@code finally} block. */
+        private Set<Name> labels = new HashSet<>();
+
+        AbandonedReturnTranslator(Vars vars) {
+            this.vars = vars;
+        }
+
+        @Override
+        public void visitTry(JCTry tree) {
+            tree.resources = translate(tree.resources);
+            tree.body = translate(tree.body);
+            tree.catchers = translateCatchers(tree.catchers);
+
+            if (tree.finalizer != null && !inFinalizer) {
+                int loops = this.loops;
+                int switches = this.switches;
+                Set<Name> labels = this.labels;
+
+                // Only jump targets in the finally block itself are counted.
+                this.inFinalizer = true;
+                this.loops = 0;
+                this.switches = 0;
+                this.labels = new HashSet<>();
+
+                try {
+                    tree.finalizer = translate(tree.finalizer);
+                } finally {
+                    this.inFinalizer = false;
+                    this.loops = loops;
+                    this.switches = switches;
+                    this.labels = labels;
+                }
+            } else {
+                tree.finalizer = translate(tree.finalizer);
+            }
+
+            result = tree;
+        }
+
+        @Override
+        public void visitCatch(JCCatch tree) {
+            super.visitCatch(tree);
+
+            if (!inFinalizer) {
+                tree.body.stats = tree.body.stats.prepend(reset(tree.body.pos));
+            }
+        }
+
+        @Override
+        public void visitBreak(JCBreak tree) {
+            if (inFinalizer && (tree.label == null ? loops + switches == 0 : !labels.contains(tree.label))) {
+                result = make.at(tree.pos).Block(0, List.of(reset(tree.pos), tree));
+            } else {
+                result = tree;
+            }
+        }
+
+        @Override
+        public void visitContinue(JCContinue tree) {
+            if (inFinalizer && (tree.label == null ? loops == 0 : !labels.contains(tree.label))) {
+                result = make.at(tree.pos).Block(0, List.of(reset(tree.pos), tree));
+            } else {
+                result = tree;
+            }
+        }
+
+        @Override
+        public void visitDoLoop(JCDoWhileLoop tree) {
+            loops++;
+
+            try {
+                super.visitDoLoop(tree);
+            } finally {
+                loops--;
+            }
+        }
+
+        @Override
+        public void visitWhileLoop(JCWhileLoop tree) {
+            loops++;
+
+            try {
+                super.visitWhileLoop(tree);
+            } finally {
+                loops--;
+            }
+        }
+
+        @Override
+        public void visitForLoop(JCForLoop tree) {
+            loops++;
+
+            try {
+                super.visitForLoop(tree);
+            } finally {
+                loops--;
+            }
+        }
+
+        @Override
+        public void visitForeachLoop(JCEnhancedForLoop tree) {
+            loops++;
+
+            try {
+                super.visitForeachLoop(tree);
+            } finally {
+                loops--;
+            }
+        }
+
+        @Override
+        public void visitSwitch(JCSwitch tree) {
+            switches++;
+
+            try {
+                super.visitSwitch(tree);
+            } finally {
+                switches--;
+            }
+        }
+
+        @Override
+        public void visitLabelled(JCLabeledStatement tree) {
+            labels.add(tree.label);
+
+            try {
+                super.visitLabelled(tree);
+            } finally {
+                labels.remove(tree.label);
+            }
+        }
+
+        @Override
+        public void visitLambda(JCLambda tree) {
+            result = tree;
+        }
+
+        @Override
+        public void visitClassDef(JCClassDecl tree) {
+            result = tree;
+        }
+
+        private JCStatement reset(int pos) {
+            return make.at(pos).Exec(make.Assign(make.Ident(vars.hasResult), make.Literal(TypeTag.BOOLEAN, 0)));
+        }
+    }
+
+    /**
+     * Replaces calls to "Finally" methods with reads of local variables.
+     */
+    private class CallTranslator extends TreeTranslator {
+        private final Vars vars;
+
+        CallTranslator(Vars vars) {
+            this.vars = vars;
+        }
+
+        @Override
+        public void visitExec(JCExpressionStatement tree) {
+            if (isFinallyCall(tree.expr, null)) {
+                var call = (JCMethodInvocation) tree.expr;
+
+                JCExpression replacement = replace(call, true);
+
+                // Only method invocations are valid expression statements. Other replacements have no side effects.
+                tree.expr = replacement instanceof JCMethodInvocation ? replacement : call;
+
+                result = tree;
+            } else {
+                super.visitExec(tree);
+            }
+        }
+
+        @Override
+        public void visitApply(JCMethodInvocation tree) {
+            super.visitApply(tree);
+
+            if (isFinallyCall(tree, null)) {
+                result = replace(tree, false);
+            }
+        }
+
+        /**
+         * @param statement Whether the call is used as an expression statement.
+         */
+        private JCExpression replace(JCMethodInvocation tree, boolean statement) {
+            String methodName = methodName(tree);
+
+            make.at(tree.pos);
+
+            switch (methodName) {
+                case "hasThrownException":
+                    return make.Binary(JCTree.Tag.NE, make.Ident(vars.exception), make.Literal(TypeTag.BOT, null));
+
+                case "thrownException":
+                case "thrownExceptionOptional":
+                    return support(tree, methodName, List.of(make.Ident(vars.exception)));
+
+                default:
+                    break;
+            }
+
+            // Returned value is never available in "void" methods, original calls behave exactly like that.
+            if (vars.result == null) {
+                return tree;
+            }
+
+            switch (methodName) {
+                case "hasReturnedValue":
+                    return make.Ident(vars.hasResult);
+
+                case "returnedValue":
+                case "returnedValueOptional":
+                    return support(tree, methodName, List.of(make.Ident(vars.hasResult), make.Ident(vars.result)));
+
+                case "returnedValueBoolean":
+                case "returnedValueByte":
+                case "returnedValueChar":
+                case "returnedValueShort":
+                case "returnedValueInt":
+                case "returnedValueLong":
+                case "returnedValueFloat":
+                case "returnedValueDouble":
+                    JCExpression value = support(tree, methodName, List.of(make.Ident(vars.hasResult), make.Ident(vars.result)));
+
+                    if (statement || !isPrimitive(returnType, methodName)) {
+                        return value;
+                    }
+
+                    // Avoid boxing in the most common case, original call throws "NoReturnValueException".
+                    return make.Conditional(make.Ident(vars.hasResult), make.Ident(vars.result), tree);
+
+                default:
+                    return tree;
+            }
+        }
+
+        @Override
+        public void visitLambda(JCLambda tree) {
+            result = tree;
+        }
+
+        @Override
+        public void visitClassDef(JCClassDecl tree) {
+            result = tree;
+        }
+
+        private JCMethodInvocation support(JCMethodInvocation tree, String methodName, List<JCExpression> args) {
+            return make.Apply(tree.typeargs, make.Select(qualifiedName(FINALLY_SUPPORT_CLASS_NAME), names.fromString(methodName)), args);
+        }
+    }
+
+    /**
+     * Checks that the type is exactly the primitive type of "Finally#returnedValue*" method.
+     */
+    private static boolean isPrimitive(JCExpression type, String methodName) {
+        if (!(type instanceof JCPrimitiveTypeTree)) {
+            return false;
+        }
+
+        TypeKind kind = ((JCPrimitiveTypeTree) type).getPrimitiveTypeKind();
+
+        return methodName.equals("returnedValue" + kind.name().charAt(0) + kind.name().substring(1).toLowerCase());
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j;
+
+import com.github.ibessonov.finally4j.Finally.NoReturnValueException;
+import com.github.ibessonov.finally4j.Finally.NoThrownExceptionException;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous counterpart of {@link Finally}. It attaches a {@code finally}-style action to a
+ * {@link CompletionStage}, that sees the result of the stage the same way a {@code finally} block sees the result of a
+ * {@code try} block:
+ * <pre>
+ * AsyncFinally.whenFinally(fetchAccount(id), outcome -&gt; {
+ *     if (outcome.hasThrownException()) {
+ *         log.warn("Failed to fetch account " + id, outcome.thrownException());
+ *     }
+ * });
+ * </pre>
+ * Exceptions are unwrapped from {@link CompletionException}, so the action sees the exception that was actually thrown
+ * by the failed stage, not the wrapper that dependent stages receive.
+ * <p>
+ * Returned stage is completed with the same result as the original one, after the action is executed. If the action
+ * throws an exception, it replaces the returned value, but not the thrown exception, see
+ * {@link CompletionStage#whenComplete}. Unlike {@link Finally}, it doesn't need the agent or the javac plugin.
+ *
+ * @author ibessonov
+ */
+public interface AsyncFinally {
+    /**
+     * Result of the completed stage, as seen by the action. Only valid inside of the action.
+     *
+     * @param <T> Type of the returned value.
+     */
+    interface Outcome<T> {
+        /**
+         * @return {@code true} if the stage has completed normally.
+         */
+        boolean hasReturnedValue();
+
+        /**
+         * @return Value of the stage.
+         * @throws NoReturnValueException If the stage has completed exceptionally.
+         */
+        T returnedValue();
+
+        /**
+         * @return Optional for the value of the stage. Returns empty optional if the stage has completed exceptionally
+         * or if the value is {@code null}.
+         */
+        Optional<T> returnedValueOptional();
+
+        /**
+         * @return Value of the stage.
+         * @throws NoReturnValueException If the stage has completed exceptionally.
+         * @throws ClassCastException If the value is not {@code Boolean}.
+         * @throws NullPointerException If the value is {@code null}.
+         */
+        boolean returnedValueBoolean();
+
+        /**
+         * @return Value of the stage.
+         * @throws NoReturnValueException If the stage has completed exceptionally.
+         * @throws ClassCastException If the value is not {@code Byte}.
+         * @throws NullPointerException If the value is {@code null}.
+         */
+        byte returnedValueByte();
+
+        /**
+         * @return Value of the stage.
+         * @throws NoReturnValueException If the stage has completed exceptionally.
+         * @throws ClassCastException If the value is not {@code Character}.
+         * @throws NullPointerException If the value is {@code null}.
+         */
+        char returnedValueChar();
+
+        /**
+         * @return Value of the stage.
+         * @throws NoReturnValueException If the stage has completed exceptionally.
+         * @throws ClassCastException If the value is not {@code Short}.
+         * @throws NullPointerException If the value is {@code null}.
+         */
+        short returnedValueShort();
+
+        /**
+         * @return Value of the stage.
+         * @throws NoReturnValueException If the stage has completed exceptionally.
+         * @throws ClassCastException If the value is not {@code Integer}.
+         * @throws NullPointerException If the value is {@code null}.
+         */
+        int returnedValueInt();
+
+        /**
+         * @return Value of the stage.
+         * @throws NoReturnValueException If the stage has completed exceptionally.
+         * @throws ClassCastException If the value is not {@code Long}.
+         * @throws NullPointerException If the value is {@code null}.
+         */
+        long returnedValueLong();
+
+        /**
+         * @return Value of the stage.
+         * @throws NoReturnValueException If the stage has completed exceptionally.
+         * @throws ClassCastException If the value is not {@code Float}.
+         * @throws NullPointerException If the value is {@code null}.
+         */
+        float returnedValueFloat();
+
+        /**
+         * @return Value of the stage.
+         * @throws NoReturnValueException If the stage has completed exceptionally.
+         * @throws ClassCastException If the value is not {@code Double}.
+         * @throws NullPointerException If the value is {@code null}.
+         */
+        double returnedValueDouble();
+
+        /**
+         * @return {@code true} if the stage has completed exceptionally.
+         */
+        boolean hasThrownException();
+
+        /**
+         * @return Exception of the stage, unwrapped from {@link CompletionException}.
+         * @throws NoThrownExceptionException If the stage has completed normally.
+         * @throws ClassCastException If type of actual exception differs from expected type.
+         */
+        <X extends Throwable> X thrownException();
+
+        /**
+         * @return Optional for the exception of the stage, unwrapped from {@link CompletionException}. Returns empty
+         * optional if the stage has completed normally.
+         */
+        <X extends Throwable> Optional<X> thrownExceptionOptional();
+    }
+
+    /**
+     * Executes the action when the stage is completed.
+     *
+     * @return New stage with the same result as the original one.
+     * @see CompletionStage#whenComplete
+     */
+    static <T> CompletionStage<T> whenFinally(CompletionStage<T> stage, Consumer<? super Outcome<T>> action) {
+        return stage.whenComplete(new AsyncOutcome<>(action));
+    }
+
+    /**
+     * Executes the action when the future is completed.
+     *
+     * @return New future with the same result as the original one.
+     * @see CompletableFuture#whenComplete
+     */
+    static <T> CompletableFuture<T> whenFinally(CompletableFuture<T> future, Consumer<? super Outcome<T>> action) {
+        return future.whenComplete(new AsyncOutcome<>(action));
+    }
+
+    /**
+     * Executes the action using the executor when the stage is completed.
+     *
+     * @return New stage with the same result as the original one.
+     * @see CompletionStage#whenCompleteAsync(java.util.function.BiConsumer, Executor)
+     */
+    static <T> CompletionStage<T> whenFinallyAsync(CompletionStage<T> stage, Consumer<? super Outcome<T>> action,
+                                                   Executor executor) {
+        return stage.whenCompleteAsync(new AsyncOutcome<>(action), executor);
+    }
+
+    /**
+     * Executes the action using the executor when the future is completed.
+     *
+     * @return New future with the same result as the original one.
+     * @see CompletableFuture#whenCompleteAsync(java.util.function.BiConsumer, Executor)
+     */
+    static <T> CompletableFuture<T> whenFinallyAsync(CompletableFuture<T> future, Consumer<? super Outcome<T>> action,
+                                                     Executor executor) {
+        return future.whenCompleteAsync(new AsyncOutcome<>(action), executor);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j;
+
+import com.github.ibessonov.finally4j.Finally.NoReturnValueException;
+import com.github.ibessonov.finally4j.Finally.NoThrownExceptionException;
+
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Callback of {@link AsyncFinally} that is its own outcome, so that there's a single allocation per attached action.
+ * Every instance is registered and invoked only once.
+ *
+ * @author ibessonov
+ */
+final class AsyncOutcome<T> implements BiConsumer<T, Throwable>, AsyncFinally.Outcome<T> {
+    private final Consumer<? super AsyncFinally.Outcome<T>> action;
+
+    private T value;
+
+    /**
+     * Unwrapped exception, {@code null} if the stage has completed normally.
+     */
+    private Throwable exception;
+
+    AsyncOutcome(Consumer<? super AsyncFinally.Outcome<T>> action) {
+        this.action = action;
+    }
+
+    @Override
+    public void accept(T value, Throwable exception) {
+        this.value = value;
+        this.exception = exception == null ? null : unwrap(exception);
+
+        action.accept(this);
+    }
+
+    /**
+     * @return Cause of the {@link CompletionException}, or the exception itself if it's something else.
+     */
+    static Throwable unwrap(Throwable exception) {
+        while (exception instanceof CompletionException && exception.getCause() != null) {
+            exception = exception.getCause();
+        }
+
+        return exception;
+    }
+
+    @Override
+    public boolean hasReturnedValue() {
+        return exception == null;
+    }
+
+    @Override
+    public T returnedValue() {
+        if (exception != null) {
+            throw new NoReturnValueException();
+        }
+
+        return value;
+    }
+
+    @Override
+    public Optional<T> returnedValueOptional() {
+        return exception == null ? Optional.ofNullable(value) : Optional.empty();
+    }
+
+    @Override
+    public boolean returnedValueBoolean() {
+        return (Boolean) returnedValue();
+    }
+
+    @Override
+    public byte returnedValueByte() {
+        return (Byte) returnedValue();
+    }
+
+    @Override
+    public char returnedValueChar() {
+        return (Character) returnedValue();
+    }
+
+    @Override
+    public short returnedValueShort() {
+        return (Short) returnedValue();
+    }
+
+    @Override
+    public int returnedValueInt() {
+        return (Integer) returnedValue();
+    }
+
+    @Override
+    public long returnedValueLong() {
+        return (Long) returnedValue();
+    }
+
+    @Override
+    public float returnedValueFloat() {
+        return (Float) returnedValue();
+    }
+
+    @Override
+    public double returnedValueDouble() {
+        return (Double) returnedValue();
+    }
+
+    @Override
+    public boolean hasThrownException() {
+        return exception != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <X extends Throwable> X thrownException() {
+        if (exception == null) {
+            throw new NoThrownExceptionException();
+        }
+
+        return (X) exception;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <X extends Throwable> Optional<X> thrownExceptionOptional() {
+        return Optional.ofNullable((X) exception);
+    }
+}
@@ -19,7 +19,7 @@ import java.util.Optional;
 
 /**
  * Utility class that provides special functionality inside of {@code finally} code blocks. Only works if corresponding
- * java agent library is set in JVM parameters.
+ * java agent library is set in JVM parameters, or if classes are compiled with {@code finally4j-javac-plugin}.
  *
  * @author ibessonov
  */
@@ -30,7 +30,8 @@ public interface Finally {
     class NoThrownExceptionException extends RuntimeException {}
 
     /**
-     * @return {@code true} if {@code finally4j-agent.jar} agent is configured properly, {@code false} otherwise.
+     * @return {@code true} if {@code finally4j-agent.jar} agent is configured properly or if the class is compiled with
+     * {@code finally4j-javac-plugin}, {@code false} otherwise.
      */
     static boolean isSupported() {
         return false;
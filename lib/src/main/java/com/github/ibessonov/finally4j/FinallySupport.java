@@ -0,0 +1,89 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j;
+
+import java.util.Optional;
+
+/**
+ * Methods called by the code generated by {@code finally4j-javac-plugin} in place of {@link Finally} methods. Not
+ * intended to be used directly.
+ *
+ * @author ibessonov
+ */
+public final class FinallySupport {
+    private FinallySupport() {
+    }
+
+    public static boolean returnedValueBoolean(boolean hasReturnedValue, Object returnedValue) {
+        return (Boolean) returnedValue(hasReturnedValue, returnedValue);
+    }
+
+    public static byte returnedValueByte(boolean hasReturnedValue, Object returnedValue) {
+        return (Byte) returnedValue(hasReturnedValue, returnedValue);
+    }
+
+    public static char returnedValueChar(boolean hasReturnedValue, Object returnedValue) {
+        return (Character) returnedValue(hasReturnedValue, returnedValue);
+    }
+
+    public static short returnedValueShort(boolean hasReturnedValue, Object returnedValue) {
+        return (Short) returnedValue(hasReturnedValue, returnedValue);
+    }
+
+    public static int returnedValueInt(boolean hasReturnedValue, Object returnedValue) {
+        return (Integer) returnedValue(hasReturnedValue, returnedValue);
+    }
+
+    public static long returnedValueLong(boolean hasReturnedValue, Object returnedValue) {
+        return (Long) returnedValue(hasReturnedValue, returnedValue);
+    }
+
+    public static float returnedValueFloat(boolean hasReturnedValue, Object returnedValue) {
+        return (Float) returnedValue(hasReturnedValue, returnedValue);
+    }
+
+    public static double returnedValueDouble(boolean hasReturnedValue, Object returnedValue) {
+        return (Double) returnedValue(hasReturnedValue, returnedValue);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> T returnedValue(boolean hasReturnedValue, Object returnedValue) {
+        if (!hasReturnedValue) {
+            throw new Finally.NoReturnValueException();
+        }
+
+        return (T) returnedValue;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> Optional<T> returnedValueOptional(boolean hasReturnedValue, Object returnedValue) {
+        return hasReturnedValue ? Optional.ofNullable((T) returnedValue) : Optional.empty();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Throwable> T thrownException(Throwable thrownException) {
+        if (thrownException == null) {
+            throw new Finally.NoThrownExceptionException();
+        }
+
+        return (T) thrownException;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T extends Throwable> Optional<T> thrownExceptionOptional(Throwable thrownException) {
+        return Optional.ofNullable((T) thrownException);
+    }
+}
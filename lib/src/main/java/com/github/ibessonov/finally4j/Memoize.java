@@ -0,0 +1,72 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes the agent cache results of the annotated static method, keyed by its arguments. It replaces the usual
+ * {@code ConcurrentHashMap#computeIfAbsent} boilerplate:
+ * <pre>
+ * &#64;Memoize(maxSize = 10_000, expireAfterWrite = 5, unit = TimeUnit.MINUTES)
+ * static Account account(long id) { ... }
+ * </pre>
+ * The lookup happens at the start of the method, and the cache is populated every time the method returns normally.
+ * Exceptions are never cached, the method is executed again the next time it's called with the same arguments. Returned
+ * {@code null} values are cached just like any other values. Concurrent calls with the same arguments may execute the
+ * method several times, the last returned value wins.
+ * <p>
+ * Arguments are compared with {@link Object#equals(Object)}, so they should be immutable, and arrays are compared by
+ * identity. Primitive arguments of single-argument methods are not boxed, unless {@link #primitiveKeys()} is
+ * {@code false}. Floating point arguments are compared by their bits, so {@code 0.0} and {@code -0.0} are different
+ * keys.
+ * <p>
+ * Instance methods, constructors and {@code void} methods are never instrumented. Only works if corresponding java agent
+ * library is set in JVM parameters, {@code finally4j-javac-plugin} doesn't support it.
+ *
+ * @see com.github.ibessonov.finally4j.memoize.MemoCache
+ * @author ibessonov
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface Memoize {
+    /**
+     * @return Maximal number of cached results. Cache evicts older entries when it's full. Must be positive.
+     */
+    int maxSize() default 1024;
+
+    /**
+     * @return Time after which cached results expire, in {@link #unit()}s. Non-positive values mean that results never
+     *      expire.
+     */
+    long expireAfterWrite() default 0;
+
+    /**
+     * @return Time unit of {@link #expireAfterWrite()}.
+     */
+    TimeUnit unit() default TimeUnit.MILLISECONDS;
+
+    /**
+     * @return Whether a single primitive argument should be used as a key without boxing.
+     */
+    boolean primitiveKeys() default true;
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Makes the agent invoke a static handler every time the annotated method completes abruptly, with the thrown
+ * exception. The exception is rethrown after the handler completes. It's the same as wrapping the method body into a
+ * {@code try/finally} block that calls the handler if {@link Finally#hasThrownException()}.
+ * <p>
+ * Handler class must declare a static method {@code onThrow(Throwable)}. For example:
+ * <pre>
+ * class Metrics {
+ *     static void onThrow(Throwable t) { ... }
+ * }
+ *
+ * &#64;OnThrow(Metrics.class)
+ * long count() { ... }
+ * </pre>
+ * If the handler throws an exception, it replaces the original one. Constructors and static initializers are never
+ * instrumented. Only works if corresponding java agent library is set in JVM parameters,
+ * {@code finally4j-javac-plugin} doesn't support it.
+ *
+ * @see OnReturn
+ * @author ibessonov
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface OnThrow {
+    /**
+     * @return Handler class, must be accessible from the annotated method and must not be an interface.
+     */
+    Class<?> value();
+}
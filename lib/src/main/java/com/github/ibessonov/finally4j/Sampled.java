@@ -0,0 +1,53 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Makes {@link OnReturn} and {@link OnThrow} handlers of the annotated method sampled. Every hook of the method is a
+ * separate site with its own {@link com.github.ibessonov.finally4j.sampling.Sampler}, that invokes the handler once
+ * per {@code period} invocations. Invocations that are not sampled only pay for a decrement and a branch.
+ * <pre>
+ * &#64;OnReturn(Metrics.class)
+ * &#64;Sampled(overhead = 0.001)
+ * long count() { ... }
+ * </pre>
+ * Period adapts to the overhead budget automatically. The period and the budget can be changed at runtime through a
+ * single MXBean, see {@link com.github.ibessonov.finally4j.sampling.SamplerRegistryMXBean}. Only works if
+ * corresponding java agent library is set in JVM parameters, {@code finally4j-javac-plugin} doesn't support it.
+ *
+ * @author ibessonov
+ */
+@Documented
+@Retention(RetentionPolicy.CLASS)
+@Target(ElementType.METHOD)
+public @interface Sampled {
+    /**
+     * @return Initial sampling period, handlers are invoked once per {@code period} invocations. Must be positive.
+     */
+    int period() default 1;
+
+    /**
+     * @return Fraction of wall-clock time that handlers of a single site may take, {@code 0.01} means 10 milliseconds
+     *      per second. Non-positive values disable adaptation, so that the period never changes on its own.
+     */
+    double overhead() default 0.01;
+}
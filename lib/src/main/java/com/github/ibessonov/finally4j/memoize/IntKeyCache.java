@@ -0,0 +1,231 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.memoize;
+
+/**
+ * Cache with {@code int} keys that doesn't box them. Used for methods with a single {@code int}, {@code short},
+ * {@code char}, {@code byte}, {@code boolean} or {@code float} argument, the latter is converted with
+ * {@link Float#floatToRawIntBits(float)}.
+ * <p>
+ * Each stripe is an open addressing hash table with linear probing, that is never more than half full. When the stripe
+ * is full, entries are evicted in the order of their slots, which is effectively random.
+ *
+ * @author ibessonov
+ */
+public final class IntKeyCache extends MemoCache {
+    private final Stripe[] stripes;
+
+    /**
+     * @param maxSize Maximal number of entries.
+     * @param expireAfterWriteNanos Time after which entries expire, non-positive if they never expire.
+     */
+    public IntKeyCache(int maxSize, long expireAfterWriteNanos) {
+        super(maxSize, expireAfterWriteNanos);
+
+        stripes = new Stripe[stripes(maxSize)];
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(maxSize / stripes.length, expireAfterWriteNanos != 0);
+        }
+    }
+
+    /**
+     * @return Cached value, or {@link #MISS} if there's none.
+     */
+    public Object get(int key) {
+        long now = now();
+
+        int hash = hash(key);
+        Stripe stripe = stripes[(hash >>> 28) & (stripes.length - 1)];
+
+        synchronized (stripe) {
+            int i = stripe.find(key, hash);
+
+            Object value = stripe.values[i];
+
+            if (value == null) {
+                return MISS;
+            }
+
+            if (stripe.writeTimes != null && expired(stripe.writeTimes[i], now)) {
+                stripe.delete(i);
+
+                return MISS;
+            }
+
+            return unmask(value);
+        }
+    }
+
+    public void put(int key, Object value) {
+        long now = now();
+
+        int hash = hash(key);
+        Stripe stripe = stripes[(hash >>> 28) & (stripes.length - 1)];
+
+        synchronized (stripe) {
+            stripe.put(key, hash, mask(value), now);
+        }
+    }
+
+    /**
+     * Finalization step of MurmurHash3, consecutive keys are spread evenly across both stripes and slots.
+     */
+    private static int hash(int key) {
+        key = (key ^ (key >>> 16)) * 0x85EBCA6B;
+        key = (key ^ (key >>> 13)) * 0xC2B2AE35;
+
+        return key ^ (key >>> 16);
+    }
+
+    /**
+     * Single stripe of the cache, guarded by its own monitor.
+     */
+    private static final class Stripe {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final int maxSize;
+
+        int[] keys;
+
+        /**
+         * Masked values, {@code null} in empty slots.
+         */
+        Object[] values;
+
+        /**
+         * Times when values have been written, {@code null} if entries never expire.
+         */
+        long[] writeTimes;
+
+        private int size;
+
+        /**
+         * Next slot to evict an entry from.
+         */
+        private int hand;
+
+        Stripe(int maxSize, boolean expiring) {
+            this.maxSize = maxSize;
+
+            allocate(INITIAL_CAPACITY, expiring);
+        }
+
+        /**
+         * @return Slot with given key, or an empty slot where the key should be inserted.
+         */
+        int find(int key, int hash) {
+            int mask = keys.length - 1;
+
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                if (values[i] == null || keys[i] == key) {
+                    return i;
+                }
+            }
+        }
+
+        void put(int key, int hash, Object value, long now) {
+            int i = find(key, hash);
+
+            if (values[i] == null) {
+                if (size == maxSize) {
+                    evict();
+
+                    i = find(key, hash);
+                } else if ((size + 1) * 2 > keys.length) {
+                    resize();
+
+                    i = find(key, hash);
+                }
+
+                keys[i] = key;
+
+                size++;
+            }
+
+            values[i] = value;
+
+            if (writeTimes != null) {
+                writeTimes[i] = now;
+            }
+        }
+
+        /**
+         * Removes the entry and shifts following entries of the same cluster back, so that lookups don't need
+         * tombstones.
+         */
+        void delete(int i) {
+            int mask = keys.length - 1;
+
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+
+                // Entry can be moved if its home slot is not cyclically in (i, j].
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+
+                    if (writeTimes != null) {
+                        writeTimes[i] = writeTimes[j];
+                    }
+
+                    i = j;
+                }
+            }
+
+            values[i] = null;
+
+            size--;
+        }
+
+        private void evict() {
+            while (values[hand] == null) {
+                hand = (hand + 1) & (keys.length - 1);
+            }
+
+            delete(hand);
+        }
+
+        private void resize() {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            long[] oldWriteTimes = writeTimes;
+
+            allocate(oldKeys.length * 2, oldWriteTimes != null);
+
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = find(oldKeys[j], hash(oldKeys[j]));
+
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+
+                    if (writeTimes != null) {
+                        writeTimes[i] = oldWriteTimes[j];
+                    }
+                }
+            }
+
+            hand = 0;
+        }
+
+        private void allocate(int capacity, boolean expiring) {
+            keys = new int[capacity];
+            values = new Object[capacity];
+            writeTimes = expiring ? new long[capacity] : null;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.memoize;
+
+/**
+ * Cache with {@code long} keys that doesn't box them. Used for methods with a single {@code long} or {@code double}
+ * argument, the latter is converted with {@link Double#doubleToRawLongBits(double)}.
+ * <p>
+ * Each stripe is an open addressing hash table with linear probing, that is never more than half full. When the stripe
+ * is full, entries are evicted in the order of their slots, which is effectively random.
+ *
+ * @author ibessonov
+ */
+public final class LongKeyCache extends MemoCache {
+    private final Stripe[] stripes;
+
+    /**
+     * @param maxSize Maximal number of entries.
+     * @param expireAfterWriteNanos Time after which entries expire, non-positive if they never expire.
+     */
+    public LongKeyCache(int maxSize, long expireAfterWriteNanos) {
+        super(maxSize, expireAfterWriteNanos);
+
+        stripes = new Stripe[stripes(maxSize)];
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(maxSize / stripes.length, expireAfterWriteNanos != 0);
+        }
+    }
+
+    /**
+     * @return Cached value, or {@link #MISS} if there's none.
+     */
+    public Object get(long key) {
+        long now = now();
+
+        int hash = hash(key);
+        Stripe stripe = stripes[(hash >>> 28) & (stripes.length - 1)];
+
+        synchronized (stripe) {
+            int i = stripe.find(key, hash);
+
+            Object value = stripe.values[i];
+
+            if (value == null) {
+                return MISS;
+            }
+
+            if (stripe.writeTimes != null && expired(stripe.writeTimes[i], now)) {
+                stripe.delete(i);
+
+                return MISS;
+            }
+
+            return unmask(value);
+        }
+    }
+
+    public void put(long key, Object value) {
+        long now = now();
+
+        int hash = hash(key);
+        Stripe stripe = stripes[(hash >>> 28) & (stripes.length - 1)];
+
+        synchronized (stripe) {
+            stripe.put(key, hash, mask(value), now);
+        }
+    }
+
+    /**
+     * Finalization step of MurmurHash3, consecutive keys are spread evenly across both stripes and slots.
+     */
+    private static int hash(long key) {
+        key = (key ^ (key >>> 33)) * 0xFF51AFD7ED558CCDL;
+        key = (key ^ (key >>> 33)) * 0xC4CEB9FE1A85EC53L;
+
+        return (int) (key ^ (key >>> 33));
+    }
+
+    /**
+     * Single stripe of the cache, guarded by its own monitor.
+     */
+    private static final class Stripe {
+        private static final int INITIAL_CAPACITY = 16;
+
+        private final int maxSize;
+
+        long[] keys;
+
+        /**
+         * Masked values, {@code null} in empty slots.
+         */
+        Object[] values;
+
+        /**
+         * Times when values have been written, {@code null} if entries never expire.
+         */
+        long[] writeTimes;
+
+        private int size;
+
+        /**
+         * Next slot to evict an entry from.
+         */
+        private int hand;
+
+        Stripe(int maxSize, boolean expiring) {
+            this.maxSize = maxSize;
+
+            allocate(INITIAL_CAPACITY, expiring);
+        }
+
+        /**
+         * @return Slot with given key, or an empty slot where the key should be inserted.
+         */
+        int find(long key, int hash) {
+            int mask = keys.length - 1;
+
+            for (int i = hash & mask; ; i = (i + 1) & mask) {
+                if (values[i] == null || keys[i] == key) {
+                    return i;
+                }
+            }
+        }
+
+        void put(long key, int hash, Object value, long now) {
+            int i = find(key, hash);
+
+            if (values[i] == null) {
+                if (size == maxSize) {
+                    evict();
+
+                    i = find(key, hash);
+                } else if ((size + 1) * 2 > keys.length) {
+                    resize();
+
+                    i = find(key, hash);
+                }
+
+                keys[i] = key;
+
+                size++;
+            }
+
+            values[i] = value;
+
+            if (writeTimes != null) {
+                writeTimes[i] = now;
+            }
+        }
+
+        /**
+         * Removes the entry and shifts following entries of the same cluster back, so that lookups don't need
+         * tombstones.
+         */
+        void delete(int i) {
+            int mask = keys.length - 1;
+
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                int home = hash(keys[j]) & mask;
+
+                // Entry can be moved if its home slot is not cyclically in (i, j].
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j];
+                    values[i] = values[j];
+
+                    if (writeTimes != null) {
+                        writeTimes[i] = writeTimes[j];
+                    }
+
+                    i = j;
+                }
+            }
+
+            values[i] = null;
+
+            size--;
+        }
+
+        private void evict() {
+            while (values[hand] == null) {
+                hand = (hand + 1) & (keys.length - 1);
+            }
+
+            delete(hand);
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            Object[] oldValues = values;
+            long[] oldWriteTimes = writeTimes;
+
+            allocate(oldKeys.length * 2, oldWriteTimes != null);
+
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = find(oldKeys[j], hash(oldKeys[j]));
+
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+
+                    if (writeTimes != null) {
+                        writeTimes[i] = oldWriteTimes[j];
+                    }
+                }
+            }
+
+            hand = 0;
+        }
+
+        private void allocate(int capacity, boolean expiring) {
+            keys = new long[capacity];
+            values = new Object[capacity];
+            writeTimes = expiring ? new long[capacity] : null;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.memoize;
+
+/**
+ * Base class of caches that hold results of methods annotated with {@link com.github.ibessonov.finally4j.Memoize}.
+ * Instances are created by the agent in static initializers of instrumented classes and are not intended to be used
+ * directly.
+ * <p>
+ * Caches are split into independently locked stripes, each stripe holds at most {@code maxSize / stripes} entries. Total
+ * number of entries never exceeds the {@code maxSize} passed to the constructor, but the cache may start evicting
+ * entries a little earlier if keys are not distributed evenly.
+ *
+ * @author ibessonov
+ */
+public abstract class MemoCache {
+    /**
+     * Result of the lookup that found nothing. Cached {@code null} values are returned as {@code null}.
+     */
+    public static final Object MISS = new Object();
+
+    /**
+     * Stored in place of {@code null} values.
+     */
+    private static final Object NULL = new Object();
+
+    private static final int MAX_STRIPES = 16;
+
+    /**
+     * Time after which entries expire, {@code 0} if they never expire.
+     */
+    final long expireAfterWriteNanos;
+
+    MemoCache(int maxSize, long expireAfterWriteNanos) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+        }
+
+        this.expireAfterWriteNanos = Math.max(expireAfterWriteNanos, 0);
+    }
+
+    /**
+     * @return Number of stripes for the cache of given size, a power of two.
+     */
+    static int stripes(int maxSize) {
+        return Math.min(MAX_STRIPES, Integer.highestOneBit(maxSize));
+    }
+
+    /**
+     * @return Current time for {@link #expired}, or {@code 0} if entries never expire.
+     */
+    final long now() {
+        return expireAfterWriteNanos == 0 ? 0 : System.nanoTime();
+    }
+
+    final boolean expired(long writeTime, long now) {
+        return expireAfterWriteNanos != 0 && now - writeTime >= expireAfterWriteNanos;
+    }
+
+    static Object mask(Object value) {
+        return value == null ? NULL : value;
+    }
+
+    static Object unmask(Object value) {
+        return value == NULL ? null : value;
+    }
+}
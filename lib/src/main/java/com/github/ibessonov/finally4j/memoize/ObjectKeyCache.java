@@ -0,0 +1,159 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.memoize;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache with object keys. Each stripe is an LRU map. Methods with several arguments, or with none, use
+ * {@link #key(Object[])} as a key.
+ *
+ * @author ibessonov
+ */
+public final class ObjectKeyCache extends MemoCache {
+    private final Stripe[] stripes;
+
+    /**
+     * @param maxSize Maximal number of entries.
+     * @param expireAfterWriteNanos Time after which entries expire, non-positive if they never expire.
+     */
+    public ObjectKeyCache(int maxSize, long expireAfterWriteNanos) {
+        super(maxSize, expireAfterWriteNanos);
+
+        stripes = new Stripe[stripes(maxSize)];
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(maxSize / stripes.length);
+        }
+    }
+
+    /**
+     * @return Key for the list of arguments. Arguments are compared with {@link Object#equals(Object)}.
+     */
+    public static Object key(Object[] arguments) {
+        return new Arguments(arguments);
+    }
+
+    /**
+     * @return Cached value, or {@link #MISS} if there's none.
+     */
+    public Object get(Object key) {
+        long now = now();
+
+        Stripe stripe = stripe(key);
+
+        synchronized (stripe) {
+            Object value = stripe.get(key);
+
+            if (value == null) {
+                return MISS;
+            }
+
+            if (expireAfterWriteNanos != 0) {
+                Written written = (Written) value;
+
+                if (expired(written.time, now)) {
+                    stripe.remove(key);
+
+                    return MISS;
+                }
+
+                value = written.value;
+            }
+
+            return unmask(value);
+        }
+    }
+
+    public void put(Object key, Object value) {
+        long now = now();
+
+        Object stored = expireAfterWriteNanos == 0 ? mask(value) : new Written(mask(value), now);
+
+        Stripe stripe = stripe(key);
+
+        synchronized (stripe) {
+            stripe.put(key, stored);
+        }
+    }
+
+    private Stripe stripe(Object key) {
+        int h = key == null ? 0 : key.hashCode();
+
+        // Same spreading as in HashMap, but the high bits are used, because the map uses the low ones.
+        return stripes[((h ^ (h >>> 16)) * 0x9E3779B9 >>> 28) & (stripes.length - 1)];
+    }
+
+    /**
+     * Single stripe of the cache, guarded by its own monitor.
+     */
+    private static final class Stripe extends LinkedHashMap<Object, Object> {
+        private static final long serialVersionUID = 1L;
+
+        private final int maxSize;
+
+        Stripe(int maxSize) {
+            super(16, 0.75f, true);
+
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Object, Object> eldest) {
+            return size() > maxSize;
+        }
+    }
+
+    /**
+     * Value with the time it's been cached.
+     */
+    private static final class Written {
+        final Object value;
+        final long time;
+
+        Written(Object value, long time) {
+            this.value = value;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Arguments of the method call.
+     */
+    private static final class Arguments {
+        private final Object[] arguments;
+
+        private final int hashCode;
+
+        Arguments(Object[] arguments) {
+            this.arguments = arguments;
+
+            hashCode = Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Arguments && Arrays.equals(arguments, ((Arguments) o).arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.sampling;
+
+/**
+ * Sampler of a single instrumented site, created by the agent in the static initializer of the instrumented class and
+ * not intended to be used directly. Generated code looks like this:
+ * <pre>
+ * if (sampler.sample()) {
+ *     long start = System.nanoTime();
+ *     Handler.onReturn(value);
+ *     sampler.sampled(start);
+ * }
+ * </pre>
+ * Invocations are counted down in a plain field, without any synchronization. Concurrent invocations may lose updates,
+ * which only shifts samples a little. Invocations that are not sampled only decrement the countdown and check it, the
+ * volatile period is only read when the countdown is reloaded by a sampled invocation. Sampled invocations are expected
+ * to be rare, so they're synchronized.
+ * <p>
+ * Period is adapted once per window of {@value #WINDOW_NANOS} nanoseconds, at the end of the first sampled invocation
+ * after the window is over. If handlers took more than the overhead budget, the period grows proportionally. If they
+ * took less than a half of it, the period is halved.
+ * <p>
+ * Samplers can be managed at runtime through {@link SamplerRegistryMXBean}.
+ *
+ * @author ibessonov
+ */
+public final class Sampler {
+    private static final long WINDOW_NANOS = 1_000_000_000L;
+
+    private static final int MAX_PERIOD = 1 << 30;
+
+    private final String site;
+
+    private final long windowNanos;
+
+    /**
+     * Invocations left until the next sample.
+     */
+    private int countdown;
+
+    private volatile int period;
+
+    private volatile double overhead;
+
+    /** Start of the current window, guarded by {@code this}. */
+    private long windowStart;
+
+    /** Time spent in handlers during the current window, guarded by {@code this}. */
+    private long windowSampledNanos;
+
+    private volatile long samples;
+
+    private volatile long sampledNanos;
+
+    /**
+     * Creates the sampler and adds it to the {@link SamplerRegistryMXBean registry}.
+     *
+     * @param site Instrumented site.
+     * @param period Initial sampling period.
+     * @param overhead Fraction of wall-clock time that handlers may take, non-positive to disable adaptation.
+     */
+    public Sampler(String site, int period, double overhead) {
+        this(site, period, overhead, WINDOW_NANOS);
+
+        SamplerRegistry.INSTANCE.add(this);
+    }
+
+    /**
+     * Creates the sampler without registering it, with custom adaptation window.
+     */
+    Sampler(String site, int period, double overhead, long windowNanos) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+
+        this.site = site;
+        this.windowNanos = windowNanos;
+        this.period = period;
+        this.overhead = overhead;
+
+        // First invocation is always sampled.
+        countdown = 1;
+        windowStart = System.nanoTime();
+    }
+
+    /**
+     * @return {@code true} if the invocation should be sampled.
+     */
+    public boolean sample() {
+        if (--countdown > 0) {
+            return false;
+        }
+
+        // Only sampled invocations get here.
+        countdown = period;
+
+        return true;
+    }
+
+    /**
+     * Records the time spent in handlers of the sampled invocation and adapts the period, if necessary.
+     *
+     * @param start Value of {@link System#nanoTime()} before handlers were invoked.
+     */
+    public void sampled(long start) {
+        long now = System.nanoTime();
+        long nanos = now - start;
+
+        synchronized (this) {
+            samples++;
+            sampledNanos += nanos;
+            windowSampledNanos += nanos;
+
+            long elapsed = now - windowStart;
+
+            if (elapsed >= windowNanos) {
+                adapt((double) windowSampledNanos / elapsed);
+
+                windowStart = now;
+                windowSampledNanos = 0;
+            }
+        }
+    }
+
+    private void adapt(double spent) {
+        double overhead = this.overhead;
+
+        if (overhead <= 0) {
+            return;
+        }
+
+        int period = this.period;
+
+        if (spent > overhead) {
+            period = (int) Math.min(MAX_PERIOD, Math.ceil(period * (spent / overhead)));
+        } else if (spent < overhead / 2) {
+            period = Math.max(1, period / 2);
+        }
+
+        setPeriod(period);
+    }
+
+    /**
+     * @return Instrumented site, which is the class, the method and the hook.
+     */
+    public String getSite() {
+        return site;
+    }
+
+    /**
+     * @return Current sampling period.
+     */
+    public int getPeriod() {
+        return period;
+    }
+
+    /**
+     * Sets the sampling period. If adaptation is enabled, it continues from the new period.
+     *
+     * @param period Positive period.
+     * @throws IllegalArgumentException If period is not positive.
+     */
+    public void setPeriod(int period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period must be positive: " + period);
+        }
+
+        this.period = period;
+
+        // Otherwise, it would take the whole old period to apply the new one.
+        if (countdown > period) {
+            countdown = period;
+        }
+    }
+
+    /**
+     * @return Fraction of wall-clock time that handlers may take, non-positive if adaptation is disabled.
+     */
+    public double getOverhead() {
+        return overhead;
+    }
+
+    public void setOverhead(double overhead) {
+        this.overhead = overhead;
+    }
+
+    /**
+     * @return Number of sampled invocations.
+     */
+    public long getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return Total time spent in handlers of sampled invocations, in nanoseconds.
+     */
+    public long getSampledNanos() {
+        return sampledNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "Sampler [site=" + site + ", period=" + period + ", overhead=" + overhead + ", samples=" + samples + "]";
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.sampling;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Registry of all samplers, registered in the platform MBean server once. Samplers are weakly referenced, so that they
+ * can be collected along with classes they've been created for.
+ * <p>
+ * The registry is registered in a background thread, when the first sampler is created. Samplers are created in static
+ * initializers of instrumented classes, and the initialization of the MBean server doesn't belong there.
+ *
+ * @author ibessonov
+ */
+final class SamplerRegistry implements SamplerRegistryMXBean {
+    static final String OBJECT_NAME = "com.github.ibessonov.finally4j:type=Samplers";
+
+    static final SamplerRegistry INSTANCE = new SamplerRegistry();
+
+    /** Live samplers, guarded by {@code this}. */
+    private final List<WeakReference<Sampler>> samplers = new ArrayList<>();
+
+    /** Whether the registration has been started, guarded by {@code this}. */
+    private boolean registered;
+
+    private SamplerRegistry() {
+    }
+
+    /**
+     * Adds the sampler to the registry, and registers the registry in the platform MBean server if it's the first one.
+     */
+    synchronized void add(Sampler sampler) {
+        samplers.removeIf(reference -> reference.get() == null);
+
+        samplers.add(new WeakReference<>(sampler));
+
+        if (!registered) {
+            registered = true;
+
+            var thread = new Thread(this::register, "finally4j-jmx");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Failures are ignored, samplers work without JMX just the same.
+     */
+    private void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            // No-op.
+        }
+    }
+
+    @Override
+    public synchronized List<String> getSites() {
+        var sites = new TreeSet<String>();
+
+        for (Iterator<WeakReference<Sampler>> iterator = samplers.iterator(); iterator.hasNext(); ) {
+            Sampler sampler = iterator.next().get();
+
+            if (sampler == null) {
+                iterator.remove();
+            } else {
+                sites.add(sampler.getSite());
+            }
+        }
+
+        return new ArrayList<>(sites);
+    }
+
+    @Override
+    public int getPeriod(String site) {
+        return samplers(site).get(0).getPeriod();
+    }
+
+    @Override
+    public void setPeriod(String site, int period) {
+        forEach(site, sampler -> sampler.setPeriod(period));
+    }
+
+    @Override
+    public double getOverhead(String site) {
+        return samplers(site).get(0).getOverhead();
+    }
+
+    @Override
+    public void setOverhead(String site, double overhead) {
+        forEach(site, sampler -> sampler.setOverhead(overhead));
+    }
+
+    @Override
+    public long getSamples(String site) {
+        return sum(site, Sampler::getSamples);
+    }
+
+    @Override
+    public long getSampledNanos(String site) {
+        return sum(site, Sampler::getSampledNanos);
+    }
+
+    private void forEach(String site, Consumer<Sampler> action) {
+        for (Sampler sampler : samplers(site)) {
+            action.accept(sampler);
+        }
+    }
+
+    private long sum(String site, ToLongFunction<Sampler> statistic) {
+        long sum = 0;
+
+        for (Sampler sampler : samplers(site)) {
+            sum += statistic.applyAsLong(sampler);
+        }
+
+        return sum;
+    }
+
+    /**
+     * @return Non-empty list of live samplers of the site.
+     * @throws IllegalArgumentException If there are no such samplers.
+     */
+    private synchronized List<Sampler> samplers(String site) {
+        List<Sampler> result = new ArrayList<>(1);
+
+        for (WeakReference<Sampler> reference : samplers) {
+            Sampler sampler = reference.get();
+
+            if (sampler != null && sampler.getSite().equals(site)) {
+                result.add(sampler);
+            }
+        }
+
+        if (result.isEmpty()) {
+            throw new IllegalArgumentException("Unknown site: " + site);
+        }
+
+        return result;
+    }
+}
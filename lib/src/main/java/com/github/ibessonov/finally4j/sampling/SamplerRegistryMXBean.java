@@ -0,0 +1,70 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.sampling;
+
+import java.util.List;
+
+/**
+ * Management interface of all {@link Sampler samplers}. It's registered in the platform MBean server once, with the
+ * name {@code com.github.ibessonov.finally4j:type=Samplers}. Sites look like
+ * {@code "com.example.Service#count()J:onReturn"}. Samplers of the same site in different class loaders are managed
+ * together: setters apply to all of them, and statistics are summed up.
+ *
+ * @author ibessonov
+ */
+public interface SamplerRegistryMXBean {
+    /**
+     * @return Sorted sites of all live samplers, without duplicates.
+     */
+    List<String> getSites();
+
+    /**
+     * @return Current sampling period of the site.
+     * @throws IllegalArgumentException If there's no such site.
+     */
+    int getPeriod(String site);
+
+    /**
+     * Sets the sampling period of the site. If adaptation is enabled, it continues from the new period.
+     *
+     * @param period Positive period.
+     * @throws IllegalArgumentException If period is not positive, or there's no such site.
+     */
+    void setPeriod(String site, int period);
+
+    /**
+     * @return Fraction of wall-clock time that handlers of the site may take, non-positive if adaptation is disabled.
+     * @throws IllegalArgumentException If there's no such site.
+     */
+    double getOverhead(String site);
+
+    /**
+     * @throws IllegalArgumentException If there's no such site.
+     */
+    void setOverhead(String site, double overhead);
+
+    /**
+     * @return Number of sampled invocations of the site.
+     * @throws IllegalArgumentException If there's no such site.
+     */
+    long getSamples(String site);
+
+    /**
+     * @return Total time spent in handlers of sampled invocations of the site, in nanoseconds.
+     * @throws IllegalArgumentException If there's no such site.
+     */
+    long getSampledNanos(String site);
+}
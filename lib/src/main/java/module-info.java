@@ -1,3 +1,7 @@
 module com.github.ibessonov.finally4j {
+    requires java.management;
+
     exports com.github.ibessonov.finally4j;
+    exports com.github.ibessonov.finally4j.memoize;
+    exports com.github.ibessonov.finally4j.sampling;
 }
\ No newline at end of file
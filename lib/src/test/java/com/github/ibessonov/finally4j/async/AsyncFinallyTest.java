@@ -0,0 +1,179 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.async;
+
+import com.github.ibessonov.finally4j.AsyncFinally;
+import com.github.ibessonov.finally4j.AsyncFinally.Outcome;
+import com.github.ibessonov.finally4j.Finally.NoReturnValueException;
+import com.github.ibessonov.finally4j.Finally.NoThrownExceptionException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests {@link AsyncFinally}.
+ *
+ * @author ibessonov
+ */
+class AsyncFinallyTest {
+    @Test
+    void returnedValue() {
+        var future = new CompletableFuture<String>();
+
+        var outcome = new AtomicReference<Outcome<String>>();
+
+        CompletableFuture<String> result = AsyncFinally.whenFinally(future, o -> {
+            assertTrue(o.hasReturnedValue());
+            assertFalse(o.hasThrownException());
+
+            assertEquals("foo", o.returnedValue());
+            assertEquals(Optional.of("foo"), o.returnedValueOptional());
+            assertEquals(Optional.empty(), o.thrownExceptionOptional());
+
+            assertThrows(NoThrownExceptionException.class, o::thrownException);
+
+            outcome.set(o);
+        });
+
+        assertNull(outcome.get());
+
+        future.complete("foo");
+
+        assertEquals("foo", result.join());
+        assertTrue(outcome.get().hasReturnedValue());
+    }
+
+    @Test
+    void nullValue() {
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture(null), o -> {
+            assertTrue(o.hasReturnedValue());
+
+            assertNull(o.returnedValue());
+            assertEquals(Optional.empty(), o.returnedValueOptional());
+
+            assertThrows(NullPointerException.class, o::returnedValueInt);
+        }).join();
+    }
+
+    @Test
+    void primitiveValues() {
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture(true), o -> assertTrue(o.returnedValueBoolean())).join();
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture((byte) 1), o -> assertEquals(1, o.returnedValueByte())).join();
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture('a'), o -> assertEquals('a', o.returnedValueChar())).join();
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture((short) 1), o -> assertEquals(1, o.returnedValueShort())).join();
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture(1), o -> assertEquals(1, o.returnedValueInt())).join();
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture(1L), o -> assertEquals(1L, o.returnedValueLong())).join();
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture(1f), o -> assertEquals(1f, o.returnedValueFloat())).join();
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture(1d), o -> assertEquals(1d, o.returnedValueDouble())).join();
+    }
+
+    @Test
+    void wrongPrimitiveType() {
+        AsyncFinally.whenFinally(CompletableFuture.completedFuture(1), o -> {
+            assertThrows(ClassCastException.class, o::returnedValueLong);
+        }).join();
+    }
+
+    @Test
+    void thrownException() {
+        var e = new IllegalStateException();
+
+        var future = new CompletableFuture<String>();
+
+        CompletableFuture<String> result = AsyncFinally.whenFinally(future, o -> {
+            assertFalse(o.hasReturnedValue());
+            assertTrue(o.hasThrownException());
+
+            assertSame(e, o.thrownException());
+            assertEquals(Optional.of(e), o.thrownExceptionOptional());
+            assertEquals(Optional.empty(), o.returnedValueOptional());
+
+            assertThrows(NoReturnValueException.class, o::returnedValue);
+            assertThrows(NoReturnValueException.class, o::returnedValueInt);
+        });
+
+        future.completeExceptionally(e);
+
+        assertSame(e, assertThrows(CompletionException.class, result::join).getCause());
+    }
+
+    @Test
+    void wrappedException() {
+        var e = new IllegalStateException();
+
+        CompletableFuture<Object> dependent = CompletableFuture.completedFuture("foo").thenApply(s -> {
+            throw e;
+        });
+
+        var thrown = new AtomicReference<Throwable>();
+
+        AsyncFinally.whenFinally(dependent, o -> thrown.set(o.thrownException()));
+
+        assertSame(e, thrown.get());
+    }
+
+    @Test
+    void actionException() {
+        var e = new IllegalArgumentException();
+
+        CompletableFuture<String> result = AsyncFinally.whenFinally(CompletableFuture.completedFuture("foo"), o -> {
+            throw e;
+        });
+
+        assertSame(e, assertThrows(CompletionException.class, result::join).getCause());
+    }
+
+    @Test
+    void completionStage() {
+        CompletionStage<String> stage = CompletableFuture.completedFuture("foo").minimalCompletionStage();
+
+        var value = new AtomicReference<String>();
+
+        CompletionStage<String> result = AsyncFinally.whenFinally(stage, o -> value.set(o.returnedValue()));
+
+        assertEquals("foo", result.toCompletableFuture().join());
+        assertEquals("foo", value.get());
+    }
+
+    @Test
+    void executor() {
+        var executor = Executors.newSingleThreadExecutor(task -> new Thread(task, "async-finally-test"));
+
+        try {
+            var thread = new AtomicReference<String>();
+
+            AsyncFinally.whenFinallyAsync(CompletableFuture.completedFuture(1), o -> {
+                thread.set(Thread.currentThread().getName());
+            }, executor).join();
+
+            assertEquals("async-finally-test", thread.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.hook;
+
+import com.github.ibessonov.finally4j.Finally;
+import com.github.ibessonov.finally4j.OnReturn;
+import com.github.ibessonov.finally4j.OnThrow;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests {@link OnReturn} and {@link OnThrow} hooks.
+ *
+ * @author ibessonov
+ */
+class HooksTest {
+    private static final List<Object> events = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        events.clear();
+    }
+
+    @Test
+    void primitiveReturnTypes() {
+        assertTrue(booleanReturnType0());
+        assertEquals(1, byteReturnType0());
+        assertEquals('a', charReturnType0());
+        assertEquals(1, shortReturnType0());
+        assertEquals(1, intReturnType0());
+        assertEquals(1L, longReturnType0());
+        assertEquals(1f, floatReturnType0());
+        assertEquals(1d, doubleReturnType0());
+
+        assertEquals(List.of("boolean:true", "byte:1", "char:a", "short:1", "int:1", "long:1", "float:1.0", "double:1.0"), events);
+    }
+
+    @Test
+    void objectReturnType() {
+        assertEquals("foo", objectReturnType0());
+        assertEquals(List.of("Object:foo"), events);
+    }
+
+    @Test
+    void voidReturnType() {
+        voidReturnType0(true);
+        voidReturnType0(false);
+
+        assertEquals(List.of("void", "body", "void"), events);
+    }
+
+    @Test
+    void multipleReturns() {
+        assertEquals(1, multipleReturns0(0));
+        assertEquals(2, multipleReturns0(1));
+        assertEquals(3, multipleReturns0(2));
+
+        assertEquals(List.of("int:1", "int:2", "int:3"), events);
+    }
+
+    @Test
+    void instanceMethod() {
+        assertEquals(2L, new Counter().increment());
+
+        assertEquals(List.of("long:2"), events);
+    }
+
+    @Test
+    void thrownException() {
+        var e = new IllegalStateException();
+
+        assertSame(e, assertThrows(IllegalStateException.class, () -> throwException0(e)));
+
+        assertEquals(List.of(e), events);
+    }
+
+    @Test
+    void caughtExceptionIsNotReported() {
+        assertEquals(-1, catchException0());
+
+        assertEquals(List.of("int:-1"), events);
+    }
+
+    @Test
+    void bothHooks() {
+        assertEquals(1, bothHooks0(false));
+
+        var e = assertThrows(IllegalArgumentException.class, () -> bothHooks0(true));
+
+        assertEquals(List.of("int:1", e), events);
+    }
+
+    @Test
+    void returnHandlerExceptionIsNotReported() {
+        assertThrows(UnsupportedOperationException.class, HooksTest::failingReturnHandler0);
+
+        assertEquals(List.of(), events);
+    }
+
+    @Test
+    void finallyInHookedMethod() {
+        assertEquals(5, finallyInHookedMethod0());
+
+        assertEquals(List.of("finally:5", "int:5"), events);
+    }
+
+    @OnReturn(Handler.class)
+    private static boolean booleanReturnType0() {
+        return true;
+    }
+
+    @OnReturn(Handler.class)
+    private static byte byteReturnType0() {
+        return 1;
+    }
+
+    @OnReturn(Handler.class)
+    private static char charReturnType0() {
+        return 'a';
+    }
+
+    @OnReturn(Handler.class)
+    private static short shortReturnType0() {
+        return 1;
+    }
+
+    @OnReturn(Handler.class)
+    private static int intReturnType0() {
+        return 1;
+    }
+
+    @OnReturn(Handler.class)
+    private static long longReturnType0() {
+        return 1L;
+    }
+
+    @OnReturn(Handler.class)
+    private static float floatReturnType0() {
+        return 1f;
+    }
+
+    @OnReturn(Handler.class)
+    private static double doubleReturnType0() {
+        return 1d;
+    }
+
+    @OnReturn(Handler.class)
+    private static Object objectReturnType0() {
+        return "foo";
+    }
+
+    @OnReturn(Handler.class)
+    private static void voidReturnType0(boolean earlyReturn) {
+        if (earlyReturn) {
+            return;
+        }
+
+        events.add("body");
+    }
+
+    @OnReturn(Handler.class)
+    private static int multipleReturns0(int i) {
+        switch (i) {
+            case 0: return 1;
+            case 1: return 2;
+            default: return 3;
+        }
+    }
+
+    @OnThrow(Handler.class)
+    private static void throwException0(RuntimeException e) {
+        throw e;
+    }
+
+    @OnReturn(Handler.class)
+    @OnThrow(Handler.class)
+    private static int catchException0() {
+        try {
+            throw new IllegalStateException();
+        } catch (IllegalStateException e) {
+            return -1;
+        }
+    }
+
+    @OnReturn(Handler.class)
+    @OnThrow(Handler.class)
+    private static int bothHooks0(boolean fail) {
+        if (fail) {
+            throw new IllegalArgumentException();
+        }
+
+        return 1;
+    }
+
+    @OnReturn(FailingHandler.class)
+    @OnThrow(Handler.class)
+    private static int failingReturnHandler0() {
+        return 1;
+    }
+
+    @OnReturn(Handler.class)
+    private static int finallyInHookedMethod0() {
+        try {
+            return 5;
+        } finally {
+            events.add("finally:" + Finally.returnedValueInt());
+        }
+    }
+
+    private static class Counter {
+        private long value = 1;
+
+        @OnReturn(Handler.class)
+        long increment() {
+            return ++value;
+        }
+    }
+
+    private static class Handler {
+        static void onReturn(boolean value) {
+            events.add("boolean:" + value);
+        }
+
+        static void onReturn(byte value) {
+            events.add("byte:" + value);
+        }
+
+        static void onReturn(char value) {
+            events.add("char:" + value);
+        }
+
+        static void onReturn(short value) {
+            events.add("short:" + value);
+        }
+
+        static void onReturn(int value) {
+            events.add("int:" + value);
+        }
+
+        static void onReturn(long value) {
+            events.add("long:" + value);
+        }
+
+        static void onReturn(float value) {
+            events.add("float:" + value);
+        }
+
+        static void onReturn(double value) {
+            events.add("double:" + value);
+        }
+
+        static void onReturn(Object value) {
+            events.add("Object:" + value);
+        }
+
+        static void onReturn() {
+            events.add("void");
+        }
+
+        static void onThrow(Throwable t) {
+            events.add(t);
+        }
+    }
+
+    private static class FailingHandler {
+        static void onReturn(int value) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
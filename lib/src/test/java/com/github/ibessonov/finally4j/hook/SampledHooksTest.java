@@ -0,0 +1,145 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.hook;
+
+import com.github.ibessonov.finally4j.OnReturn;
+import com.github.ibessonov.finally4j.OnThrow;
+import com.github.ibessonov.finally4j.Sampled;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests {@link Sampled} hooks.
+ *
+ * @author ibessonov
+ */
+class SampledHooksTest {
+    private static int returns;
+
+    private static long returnedSum;
+
+    private static int throwns;
+
+    @BeforeEach
+    void setUp() {
+        returns = 0;
+        returnedSum = 0;
+        throwns = 0;
+    }
+
+    @Test
+    void sampledReturns() {
+        for (int i = 0; i < 9; i++) {
+            assertEquals(i, sampledReturn0(i));
+        }
+
+        // First invocation is always sampled.
+        assertEquals(3, returns);
+        assertEquals(0 + 3 + 6, returnedSum);
+    }
+
+    @Test
+    void sampledThrows() {
+        for (int i = 0; i < 4; i++) {
+            assertThrows(IllegalStateException.class, SampledHooksTest::sampledThrow0);
+        }
+
+        assertEquals(2, throwns);
+    }
+
+    @Test
+    void bothHooks() {
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1L, bothHooks0(false));
+
+            assertThrows(IllegalStateException.class, () -> bothHooks0(true));
+        }
+
+        // Hooks are separate sites with separate samplers.
+        assertEquals(4, returns);
+        assertEquals(4, throwns);
+    }
+
+    @Test
+    void jmx() throws Exception {
+        // Separate method, so that the countdown of other tests' samplers is not affected.
+        assertEquals(0, jmx0(0));
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        var name = new ObjectName("com.github.ibessonov.finally4j:type=Samplers");
+
+        // Registry is registered in a background thread.
+        for (int i = 0; i < 100 && !server.isRegistered(name); i++) {
+            Thread.sleep(50);
+        }
+
+        Object[] params = {SampledHooksTest.class.getName() + "#jmx0(I)I:onReturn"};
+
+        assertEquals(5, server.invoke(name, "getPeriod", params, new String[] {String.class.getName()}));
+    }
+
+    @OnReturn(Handler.class)
+    @Sampled(period = 3, overhead = 0)
+    private static int sampledReturn0(int i) {
+        return i;
+    }
+
+    @OnReturn(Handler.class)
+    @Sampled(period = 5, overhead = 0)
+    private static int jmx0(int i) {
+        return i;
+    }
+
+    @OnThrow(Handler.class)
+    @Sampled(period = 2, overhead = 0)
+    private static void sampledThrow0() {
+        throw new IllegalStateException();
+    }
+
+    @OnReturn(Handler.class)
+    @OnThrow(Handler.class)
+    @Sampled(overhead = 0)
+    private static long bothHooks0(boolean fail) {
+        if (fail) {
+            throw new IllegalStateException();
+        }
+
+        return 1L;
+    }
+
+    private static class Handler {
+        static void onReturn(int value) {
+            returns++;
+            returnedSum += value;
+        }
+
+        static void onReturn(long value) {
+            returns++;
+        }
+
+        static void onThrow(Throwable t) {
+            throwns++;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.memoize;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.github.ibessonov.finally4j.memoize.MemoCache.MISS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests caches used by {@link com.github.ibessonov.finally4j.Memoize} methods.
+ *
+ * @author ibessonov
+ */
+class MemoCacheTest {
+    private static final int KEYS = 10_000;
+
+    @Test
+    void longKeys() {
+        var cache = new LongKeyCache(100, 0);
+
+        assertSame(MISS, cache.get(1L));
+
+        cache.put(1L, "a");
+        cache.put(Long.MIN_VALUE, null);
+
+        assertEquals("a", cache.get(1L));
+        assertNull(cache.get(Long.MIN_VALUE));
+
+        cache.put(1L, "b");
+
+        assertEquals("b", cache.get(1L));
+    }
+
+    @Test
+    void intKeys() {
+        var cache = new IntKeyCache(100, 0);
+
+        assertSame(MISS, cache.get(1));
+
+        cache.put(1, "a");
+        cache.put(0, null);
+
+        assertEquals("a", cache.get(1));
+        assertNull(cache.get(0));
+        assertSame(MISS, cache.get(-1));
+    }
+
+    @Test
+    void objectKeys() {
+        var cache = new ObjectKeyCache(100, 0);
+
+        assertSame(MISS, cache.get("a"));
+
+        cache.put(null, "a");
+        cache.put(ObjectKeyCache.key(new Object[] {"b", 1}), null);
+
+        assertEquals("a", cache.get(null));
+        assertNull(cache.get(ObjectKeyCache.key(new Object[] {"b", 1})));
+        assertSame(MISS, cache.get(ObjectKeyCache.key(new Object[] {"b", 2})));
+    }
+
+    @Test
+    void invalidSize() {
+        assertThrows(IllegalArgumentException.class, () -> new LongKeyCache(0, 0));
+    }
+
+    /**
+     * Evictions shift entries in hash tables, every remaining entry must still be found.
+     */
+    @Test
+    void longKeysEviction() {
+        var cache = new LongKeyCache(1000, 0);
+
+        Map<Long, Object> expected = new HashMap<>();
+
+        var random = new Random(0);
+
+        for (int i = 0; i < KEYS * 10; i++) {
+            long key = random.nextInt(KEYS);
+
+            cache.put(key, i);
+            expected.put(key, i);
+        }
+
+        int size = 0;
+
+        for (Map.Entry<Long, Object> entry : expected.entrySet()) {
+            Object value = cache.get(entry.getKey());
+
+            if (value != MISS) {
+                assertEquals(entry.getValue(), value);
+
+                size++;
+            }
+        }
+
+        assertTrue(size <= 1000, "size=" + size);
+        assertTrue(size > 900, "size=" + size);
+    }
+
+    @Test
+    void intKeysEviction() {
+        var cache = new IntKeyCache(1000, 0);
+
+        Map<Integer, Object> expected = new HashMap<>();
+
+        var random = new Random(0);
+
+        for (int i = 0; i < KEYS * 10; i++) {
+            int key = random.nextInt(KEYS);
+
+            cache.put(key, i);
+            expected.put(key, i);
+        }
+
+        int size = 0;
+
+        for (Map.Entry<Integer, Object> entry : expected.entrySet()) {
+            Object value = cache.get(entry.getKey());
+
+            if (value != MISS) {
+                assertEquals(entry.getValue(), value);
+
+                size++;
+            }
+        }
+
+        assertTrue(size <= 1000, "size=" + size);
+        assertTrue(size > 900, "size=" + size);
+    }
+
+    @Test
+    void objectKeysEviction() {
+        var cache = new ObjectKeyCache(1000, 0);
+
+        for (int i = 0; i < KEYS; i++) {
+            cache.put(i, i);
+        }
+
+        int size = 0;
+
+        for (int i = 0; i < KEYS; i++) {
+            if (cache.get(i) != MISS) {
+                size++;
+            }
+        }
+
+        assertTrue(size <= 1000, "size=" + size);
+    }
+
+    @Test
+    void expiration() throws InterruptedException {
+        var longCache = new LongKeyCache(100, 10_000_000L);
+        var objectCache = new ObjectKeyCache(100, 10_000_000L);
+
+        longCache.put(1L, "a");
+        objectCache.put("a", "a");
+
+        assertEquals("a", longCache.get(1L));
+        assertEquals("a", objectCache.get("a"));
+
+        Thread.sleep(20);
+
+        assertSame(MISS, longCache.get(1L));
+        assertSame(MISS, objectCache.get("a"));
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.memoize;
+
+import com.github.ibessonov.finally4j.Memoize;
+import com.github.ibessonov.finally4j.OnReturn;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests {@link Memoize} methods woven by the agent.
+ *
+ * @author ibessonov
+ */
+class MemoizeTest {
+    private static int calls;
+
+    private static int returns;
+
+    @BeforeEach
+    void setUp() {
+        calls = 0;
+        returns = 0;
+    }
+
+    @Test
+    void intKey() {
+        assertEquals(4, intKey0(2));
+        assertEquals(4, intKey0(2));
+        assertEquals(6, intKey0(3));
+
+        assertEquals(2, calls);
+    }
+
+    @Test
+    void longKey() {
+        assertEquals(4L, longKey0(2L));
+        assertEquals(4L, longKey0(2L));
+        assertEquals(1L << 33, longKey0(1L << 32));
+
+        assertEquals(2, calls);
+    }
+
+    @Test
+    void floatingPointKeys() {
+        assertEquals(1d, doubleKey0(0.5));
+        assertEquals(1d, doubleKey0(0.5));
+        assertEquals(0d, doubleKey0(0.0));
+        assertEquals(-0d, doubleKey0(-0.0));
+
+        assertEquals(2f, floatKey0(1f));
+        assertEquals(2f, floatKey0(1f));
+
+        assertEquals(4, calls);
+    }
+
+    @Test
+    void smallPrimitiveKeys() {
+        assertEquals("true", booleanKey0(true));
+        assertEquals("true", booleanKey0(true));
+        assertEquals("false", booleanKey0(false));
+
+        assertEquals('b', charKey0('a'));
+        assertEquals('b', charKey0('a'));
+
+        assertEquals(3, calls);
+    }
+
+    @Test
+    void boxedPrimitiveKeys() {
+        assertEquals(4, boxedKey0(2));
+        assertEquals(4, boxedKey0(2));
+
+        assertEquals(1, calls);
+    }
+
+    @Test
+    void objectKey() {
+        assertEquals("FOO", objectKey0("foo"));
+        assertEquals("FOO", objectKey0(new String("foo")));
+        assertEquals("null", objectKey0(null));
+        assertEquals("null", objectKey0(null));
+
+        assertEquals(2, calls);
+    }
+
+    @Test
+    void nullValue() {
+        assertNull(nullValue0(1));
+        assertNull(nullValue0(1));
+
+        assertEquals(1, calls);
+    }
+
+    @Test
+    void arrayValue() {
+        int[] array = arrayValue0(3);
+
+        assertArrayEquals(new int[3], array);
+        assertSame(array, arrayValue0(3));
+
+        assertEquals(1, calls);
+    }
+
+    @Test
+    void severalArguments() {
+        assertEquals("a1", severalArguments0("a", 1, 1L));
+        assertEquals("a1", severalArguments0("a", 1, 1L));
+        assertEquals("a2", severalArguments0("a", 2, 1L));
+        assertEquals("b1", severalArguments0("b", 1, 1L));
+
+        assertEquals(3, calls);
+    }
+
+    @Test
+    void noArguments() {
+        Object value = noArguments0();
+
+        assertSame(value, noArguments0());
+
+        assertEquals(1, calls);
+    }
+
+    @Test
+    void exceptionsAreNotCached() {
+        assertThrows(IllegalStateException.class, () -> failOnce0(1));
+
+        assertEquals(1, failOnce0(1));
+        assertEquals(1, failOnce0(1));
+
+        assertEquals(2, calls);
+    }
+
+    @Test
+    void multipleReturns() {
+        assertEquals(-1, multipleReturns0(-5));
+        assertEquals(-1, multipleReturns0(-5));
+        assertEquals(1, multipleReturns0(5));
+        assertEquals(1, multipleReturns0(5));
+
+        assertEquals(2, calls);
+    }
+
+    @Test
+    void eviction() {
+        assertEquals(1, evicting0(1));
+        assertEquals(2, evicting0(2));
+        assertEquals(1, evicting0(1));
+
+        assertEquals(3, calls);
+    }
+
+    @Test
+    void expiration() throws InterruptedException {
+        assertEquals(1, expiring0(1));
+        assertEquals(1, expiring0(1));
+
+        Thread.sleep(20);
+
+        assertEquals(1, expiring0(1));
+
+        assertEquals(2, calls);
+    }
+
+    @Test
+    void classWithoutStaticInitializer() {
+        assertEquals(4, NoStaticInitializer.twice(2));
+        assertEquals(4, NoStaticInitializer.twice(2));
+
+        assertEquals(1, calls);
+    }
+
+    @Test
+    void instanceMethodIsIgnored() {
+        assertEquals(2, instanceMethod0(1));
+        assertEquals(2, instanceMethod0(1));
+
+        assertEquals(2, calls);
+    }
+
+    @Test
+    void hookSeesCachedValues() {
+        assertEquals(4, hooked0(2));
+        assertEquals(4, hooked0(2));
+
+        assertEquals(1, calls);
+        assertEquals(2, returns);
+    }
+
+    @Memoize
+    private static int intKey0(int i) {
+        calls++;
+
+        return i * 2;
+    }
+
+    @Memoize
+    private static long longKey0(long l) {
+        calls++;
+
+        return l * 2;
+    }
+
+    @Memoize
+    private static double doubleKey0(double d) {
+        calls++;
+
+        return d * 2;
+    }
+
+    @Memoize
+    private static float floatKey0(float f) {
+        calls++;
+
+        return f * 2;
+    }
+
+    @Memoize
+    private static String booleanKey0(boolean b) {
+        calls++;
+
+        return String.valueOf(b);
+    }
+
+    @Memoize
+    private static char charKey0(char c) {
+        calls++;
+
+        return (char) (c + 1);
+    }
+
+    @Memoize(primitiveKeys = false)
+    private static int boxedKey0(int i) {
+        calls++;
+
+        return i * 2;
+    }
+
+    @Memoize
+    private static String objectKey0(String s) {
+        calls++;
+
+        return s == null ? "null" : s.toUpperCase();
+    }
+
+    @Memoize
+    private static Object nullValue0(int i) {
+        calls++;
+
+        return null;
+    }
+
+    @Memoize
+    private static int[] arrayValue0(int length) {
+        calls++;
+
+        return new int[length];
+    }
+
+    @Memoize
+    private static String severalArguments0(String s, int i, long l) {
+        calls++;
+
+        return s + i;
+    }
+
+    @Memoize
+    private static Object noArguments0() {
+        calls++;
+
+        return new Object();
+    }
+
+    @Memoize
+    private static int failOnce0(int i) {
+        if (calls++ == 0) {
+            throw new IllegalStateException();
+        }
+
+        return i;
+    }
+
+    @Memoize
+    private static int multipleReturns0(int i) {
+        calls++;
+
+        if (i < 0) {
+            return -1;
+        }
+
+        return 1;
+    }
+
+    @Memoize(maxSize = 1)
+    private static int evicting0(int i) {
+        calls++;
+
+        return i;
+    }
+
+    @Memoize(expireAfterWrite = 10, unit = TimeUnit.MILLISECONDS)
+    private static int expiring0(int i) {
+        calls++;
+
+        return i;
+    }
+
+    @Memoize
+    private int instanceMethod0(int i) {
+        calls++;
+
+        return i * 2;
+    }
+
+    @Memoize
+    @OnReturn(ReturnCounter.class)
+    private static int hooked0(int i) {
+        calls++;
+
+        return i * 2;
+    }
+
+    private static class NoStaticInitializer {
+        @Memoize
+        static int twice(int i) {
+            calls++;
+
+            return i * 2;
+        }
+    }
+
+    private static class ReturnCounter {
+        static void onReturn(int value) {
+            returns++;
+        }
+    }
+}
@@ -19,8 +19,11 @@ import com.github.ibessonov.finally4j.Finally;
 import org.junit.jupiter.api.Test;
 
 import java.util.Optional;
+import java.util.function.Supplier;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -49,6 +52,58 @@ class ComplexReturnTest {
         assertEquals("true", conditionInCatchBlock3(true));
     }
 
+    @Test
+    void callsAfterReturnedValueOptional() {
+        assertEquals(1, callsAfterReturnedValueOptional0());
+    }
+
+    @Test
+    void abandonedReturn() {
+        assertThrows(IllegalStateException.class, ComplexReturnTest::abandonedReturn0);
+    }
+
+    @Test
+    void lambdaInFinallyBlock() {
+        assertEquals(1, lambdaInFinallyBlock0());
+    }
+
+    private static int abandonedReturn0() {
+        try {
+            try {
+                return 1;
+            } finally {
+                throwIllegalState();
+            }
+        } finally {
+            assertFalse(Finally.hasReturnedValue());
+            assertTrue(Finally.hasThrownException());
+        }
+    }
+
+    private static void throwIllegalState() {
+        throw new IllegalStateException();
+    }
+
+    private static int lambdaInFinallyBlock0() {
+        try {
+            return 1;
+        } finally {
+            assertEquals(1, Finally.returnedValueInt());
+
+            // Lambda body is a different method, there's no returned value in it.
+            Supplier<Boolean> hasReturnedValue = () -> Finally.hasReturnedValue();
+
+            assertFalse(hasReturnedValue.get());
+
+            assertFalse(new Supplier<Boolean>() {
+                @Override
+                public Boolean get() {
+                    return Finally.hasReturnedValue();
+                }
+            }.get());
+        }
+    }
+
     private static String conditionInTryBlock0(boolean hasReturnValue) {
         try {
             if (hasReturnValue) {
@@ -168,4 +223,19 @@ class ComplexReturnTest {
             }
         }
     }
+
+    private static int callsAfterReturnedValueOptional0() {
+        try {
+            throw new Exception();
+        } catch (Exception e) {
+            return 1;
+        } finally {
+            // Returned value is loaded in place of the call, that's not the end of the finally block.
+            if (Finally.returnedValueOptional().isPresent()) {
+                assertFalse(Finally.hasThrownException());
+            }
+
+            assertEquals(Optional.empty(), Finally.thrownExceptionOptional());
+        }
+    }
 }
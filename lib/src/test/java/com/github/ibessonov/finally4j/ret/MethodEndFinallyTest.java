@@ -0,0 +1,135 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.ret;
+
+import com.github.ibessonov.finally4j.Finally;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Finally blocks that run to the very end of the method, so that there's no label after the last instruction of their
+ * exception handlers.
+ *
+ * @author ibessonov
+ */
+class MethodEndFinallyTest {
+    @Test
+    void single() {
+        assertEquals(1, single0());
+    }
+
+    @Test
+    void sequential() {
+        assertEquals(1, sequential0(true));
+        assertEquals(2, sequential0(false));
+    }
+
+    @Test
+    void nestedInTry() {
+        assertEquals(1, nestedInTry0(true));
+        assertEquals(2, nestedInTry0(false));
+    }
+
+    @Test
+    void nestedInFinally() {
+        assertEquals(1, nestedInFinally0());
+    }
+
+    @Test
+    void thrown() {
+        assertThrows(IllegalStateException.class, () -> thrown0(true));
+        assertEquals(2, thrown0(false));
+    }
+
+    private static int single0() {
+        try {
+            return 1;
+        } finally {
+            assertTrue(Finally.hasReturnedValue());
+            assertEquals(1, Finally.returnedValueInt());
+        }
+    }
+
+    private static int sequential0(boolean first) {
+        try {
+            if (first) {
+                return 1;
+            }
+        } finally {
+            assertEquals(first, Finally.hasReturnedValue());
+            assertFalse(Finally.hasThrownException());
+        }
+
+        try {
+            return 2;
+        } finally {
+            assertTrue(Finally.hasReturnedValue());
+            assertEquals(2, Finally.returnedValueInt());
+        }
+    }
+
+    private static int nestedInTry0(boolean inner) {
+        try {
+            try {
+                if (inner) {
+                    return 1;
+                }
+            } finally {
+                assertEquals(inner, Finally.hasReturnedValue());
+            }
+
+            return 2;
+        } finally {
+            assertTrue(Finally.hasReturnedValue());
+            assertEquals(inner ? 1 : 2, Finally.returnedValueInt());
+        }
+    }
+
+    private static int nestedInFinally0() {
+        try {
+            return 1;
+        } finally {
+            assertEquals(1, Finally.returnedValueInt());
+
+            try {
+                Thread.yield();
+            } finally {
+                assertFalse(Finally.hasReturnedValue());
+            }
+        }
+    }
+
+    private static int thrown0(boolean fail) {
+        try {
+            if (fail) {
+                throw new IllegalStateException();
+            }
+        } finally {
+            assertEquals(fail, Finally.hasThrownException());
+        }
+
+        try {
+            return 2;
+        } finally {
+            assertFalse(Finally.hasThrownException());
+            assertEquals(2, Finally.returnedValueInt());
+        }
+    }
+}
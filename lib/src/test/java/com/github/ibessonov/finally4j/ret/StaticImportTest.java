@@ -0,0 +1,47 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.ret;
+
+import org.junit.jupiter.api.Test;
+
+import static com.github.ibessonov.finally4j.Finally.hasReturnedValue;
+import static com.github.ibessonov.finally4j.Finally.hasThrownException;
+import static com.github.ibessonov.finally4j.Finally.returnedValueInt;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests "Finally" methods imported with {@code import static}.
+ *
+ * @author ibessonov
+ */
+class StaticImportTest {
+    @Test
+    void staticImport() {
+        assertEquals(1, staticImport0());
+    }
+
+    private static int staticImport0() {
+        try {
+            return 1;
+        } finally {
+            assertTrue(hasReturnedValue());
+            assertEquals(1, returnedValueInt());
+            assertFalse(hasThrownException());
+        }
+    }
+}
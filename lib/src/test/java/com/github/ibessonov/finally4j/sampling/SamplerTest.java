@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024 Ivan Bessonov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.github.ibessonov.finally4j.sampling;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.RuntimeMBeanException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests {@link Sampler}.
+ *
+ * @author ibessonov
+ */
+class SamplerTest {
+    @Test
+    void period() {
+        var sampler = new Sampler("period", 3, 0, Long.MAX_VALUE);
+
+        assertEquals(3, sampled(sampler, 7));
+    }
+
+    @Test
+    void invalidPeriod() {
+        assertThrows(IllegalArgumentException.class, () -> new Sampler("invalid", 0, 0, Long.MAX_VALUE));
+        assertThrows(IllegalArgumentException.class, () -> new Sampler("invalid", 1, 0, Long.MAX_VALUE).setPeriod(-1));
+    }
+
+    @Test
+    void setPeriod() {
+        var sampler = new Sampler("setPeriod", 1000, 0, Long.MAX_VALUE);
+
+        assertEquals(1, sampled(sampler, 10));
+
+        sampler.setPeriod(2);
+
+        assertEquals(5, sampled(sampler, 10));
+    }
+
+    @Test
+    void adaptation() throws InterruptedException {
+        // Every sampled invocation ends the window.
+        var sampler = new Sampler("adaptation", 4, 0.01, 0);
+
+        assertTrue(sampler.sample());
+
+        // Handler that took a whole second.
+        sampler.sampled(System.nanoTime() - 1_000_000_000L);
+
+        int period = sampler.getPeriod();
+
+        assertTrue(period > 4, "period=" + period);
+
+        Thread.sleep(10);
+
+        // Handler that took no time.
+        sampler.sampled(System.nanoTime());
+
+        assertEquals(period / 2, sampler.getPeriod());
+
+        assertEquals(2, sampler.getSamples());
+        assertTrue(sampler.getSampledNanos() >= 1_000_000_000L);
+    }
+
+    @Test
+    void noAdaptation() {
+        var sampler = new Sampler("noAdaptation", 4, 0, 0);
+
+        sampler.sampled(System.nanoTime() - 1_000_000_000L);
+
+        assertEquals(4, sampler.getPeriod());
+    }
+
+    @Test
+    void jmx() throws Exception {
+        var sampler = new Sampler("jmx \"site\"", 10, 0.5);
+        var duplicate = new Sampler("jmx \"site\"", 1, 0);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        var name = new ObjectName(SamplerRegistry.OBJECT_NAME);
+
+        // Registry is registered in a background thread.
+        for (int i = 0; i < 100 && !server.isRegistered(name); i++) {
+            Thread.sleep(50);
+        }
+
+        assertTrue(((String[]) server.getAttribute(name, "Sites")).length > 0);
+
+        Object[] params = {"jmx \"site\""};
+        String[] signature = {String.class.getName()};
+
+        assertEquals(10, server.invoke(name, "getPeriod", params, signature));
+
+        server.invoke(name, "setPeriod", new Object[] {"jmx \"site\"", 20},
+                new String[] {String.class.getName(), int.class.getName()});
+
+        // Duplicate sites are managed together.
+        assertEquals(20, sampler.getPeriod());
+        assertEquals(20, duplicate.getPeriod());
+
+        sampler.sampled(System.nanoTime());
+        duplicate.sampled(System.nanoTime());
+
+        assertEquals(2L, server.invoke(name, "getSamples", params, signature));
+
+        assertThrows(RuntimeMBeanException.class,
+                () -> server.invoke(name, "getPeriod", new Object[] {"unknown"}, signature));
+    }
+
+    @Test
+    void weakReferences() {
+        SamplerRegistry.INSTANCE.add(new Sampler("weak", 1, 0, Long.MAX_VALUE));
+
+        for (int i = 0; i < 100 && SamplerRegistry.INSTANCE.getSites().contains("weak"); i++) {
+            System.gc();
+        }
+
+        assertFalse(SamplerRegistry.INSTANCE.getSites().contains("weak"));
+    }
+
+    private static int sampled(Sampler sampler, int invocations) {
+        int sampled = 0;
+
+        for (int i = 0; i < invocations; i++) {
+            if (sampler.sample()) {
+                sampled++;
+            }
+        }
+
+        return sampled;
+    }
+}